@@ -5,7 +5,10 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
+import android.util.Log;
 import android.view.View;
 import com.facebook.react.bridge.*;
 import com.facebook.react.common.MapBuilder;
@@ -15,7 +18,30 @@ import com.facebook.react.modules.core.PermissionListener;
 import com.google.android.gms.location.LocationRequest;
 import com.unitedd.location.constant.ErrorType;
 import com.unitedd.location.constant.EventType;
+import com.unitedd.location.geofence.Geofence;
+import com.unitedd.location.geofence.GeofenceEngine;
+import com.unitedd.location.journal.LocationJournal;
+import com.unitedd.location.pipeline.ColumnarEncoder;
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.FixPipeline;
+import com.unitedd.location.pipeline.FixSink;
+import com.unitedd.location.pipeline.KalmanSmoother;
+import com.unitedd.location.pipeline.KinematicFilter;
+import com.unitedd.location.pipeline.LatencyHistogram;
+import com.unitedd.location.pipeline.MotionEstimator;
+import com.unitedd.location.pipeline.PipelineStats;
+import com.unitedd.location.pipeline.ReorderBuffer;
+import com.unitedd.location.pipeline.SamplingScheduler;
+import com.unitedd.location.pipeline.TrackBuffer;
+import com.unitedd.location.pipeline.TrackSimplifier;
+import com.unitedd.location.pipeline.TripSegmenter;
+import com.unitedd.location.store.TrackStore;
+import com.unitedd.location.upload.BatchUploader;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 @ReactModule(name = "BackgroundLocation")
@@ -23,17 +49,76 @@ public class BackgroundLocationModule extends ReactContextBaseJavaModule impleme
   ActivityEventListener,
   LifecycleEventListener,
   PermissionListener,
-  LocationAssistant.Listener {
+  LocationEngine.Consumer,
+  LocationBatcher.Callback,
+  BatchUploader.Listener,
+  SamplingScheduler.Listener,
+  GeofenceEngine.Listener,
+  TripSegmenter.Listener,
+  FixSink {
 
   private @Nullable LocationAssistant mLocationAssistant;
-  private @Nullable Promise mPromise;
-  private boolean isObservingLocation = false;
+  private final LocationBatcher mBatcher;
+  private final Fix mFix = new Fix();
+  private @Nullable WritableArray mCollected;
+  private volatile FixPipeline mPipeline = new FixPipeline(this);
+  private volatile FixPipeline mHead;
+  private final LocationEngine mEngine;
+  private Handler mProcessingHandler;
+  private TrackBuffer mHistory = new TrackBuffer(DEFAULT_HISTORY_SIZE);
+  private boolean isJournaling = false;
+  private @Nullable TrackStore mStore;
+  private boolean isStoring = false;
+  private @Nullable BatchUploader mUploader;
+  private final GeofenceEngine mGeofences = new GeofenceEngine(this);
+  private volatile @Nullable TripSegmenter mSegmenter;
+  private final PipelineStats mStats = new PipelineStats();
+  private volatile Subscription[] mSubscriptions = new Subscription[0];
+  // Combined settings of all subscriptions, and of the ones that set them explicitly
+  private LocationAssistant.Accuracy mAccuracy = LocationAssistant.Accuracy.MEDIUM;
+  private long mUpdateInterval = 5000;
+  private LocationAssistant.Accuracy mFloorAccuracy = LocationAssistant.Accuracy.PASSIVE;
+  private long mFloorInterval = SamplingScheduler.NO_FLOOR;
+  private volatile @Nullable SamplingScheduler.Tier mTier;
+  private final Object mRequestLock = new Object();
+  private final List<Promise> mPromises = new ArrayList<>();
+  private final List<PositionRequest> mPositionRequests = new ArrayList<>();
+  private volatile boolean hasPositionRequests = false;
+  private final Handler mPositionHandler = new Handler(Looper.getMainLooper());
+  private volatile boolean isObservingLocation = false;
+  // The options of the observer that started the session, or null while getCurrentPosition runs it with the defaults
+  private @Nullable ReadableMap mSessionOptions;
   private static final String TAG = "RCT_BACKGROUND_LOCATION";
+  private static final String DEFAULT_SUBSCRIPTION = "default";
+  private static final String POSITION_SUBSCRIPTION = "currentPosition";
+  private static final int POSITION_UPDATE_INTERVAL = 1000;
+  private static final long DEFAULT_POSITION_TIMEOUT = 60000;
+  private static final int DEFAULT_HISTORY_SIZE = 1000;
+  private static final int SIMPLIFY_WINDOW_SIZE = 64;
+  private static final long MOTION_WINDOW = 10000;
+  private static final int REORDER_CAPACITY = 16;
+  private static final double DEFAULT_STOP_RADIUS = 100;
+  private static final long DEFAULT_STOP_DURATION = 300000;
+  /** The options that configure the whole session rather than one subscription */
+  private static final String[] SESSION_OPTIONS = {
+    "allowMockLocations", "batchSize", "maxBatchLatencyMs", "maxWaitTime", "journal", "store", "historySize",
+    "encoding", "compactFields", "adaptive", "smoothing", "smoothingAcceleration", "simplifyTolerance",
+    "reorderWindow", "outlierFilter", "deriveMotion", "segmentTrips", "stopRadius", "stopDuration", "upload",
+    "processInBackground", "replay", "notification"};
 
   public BackgroundLocationModule(ReactApplicationContext reactContext) {
     super(reactContext);
     reactContext.addActivityEventListener(this);
     reactContext.addLifecycleEventListener(this);
+    mBatcher = new LocationBatcher(new Handler(Looper.getMainLooper()), this);
+
+    // The engine may still be running for a previous React instance; it keeps buffering fixes until the next
+    // subscription takes them over
+    mEngine = LocationEngine.getInstance(reactContext);
+    mEngine.attach(this);
+    mLocationAssistant = mEngine.getAssistant();
+    mProcessingHandler = new Handler(mEngine.getLooper());
+    mHead = new FixPipeline(mPlausibleSink);
   }
 
   @Override
@@ -57,36 +142,459 @@ public class BackgroundLocationModule extends ReactContextBaseJavaModule impleme
 
   @ReactMethod
   public void startObserving(ReadableMap options, final Promise promise) {
-    mPromise = promise;
-    LocationAssistant.Accuracy accuracy = LocationAssistant.Accuracy.MEDIUM;
+    subscribe(options, promise);
+  }
 
-    if (options.hasKey("accuracy")) switch (options.getInt("accuracy")) {
-      case LocationRequest.PRIORITY_HIGH_ACCURACY:
-        accuracy = LocationAssistant.Accuracy.HIGH; break;
-      case LocationRequest.PRIORITY_LOW_POWER:
-        accuracy = LocationAssistant.Accuracy.LOW; break;
-      case LocationRequest.PRIORITY_NO_POWER:
-        accuracy = LocationAssistant.Accuracy.PASSIVE; break;
-      case LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY:
-        accuracy = LocationAssistant.Accuracy.MEDIUM; break;
+  /**
+   * Adds a subscription, starting a session if there is none yet. Further subscribers share the session, so they
+   * may repeat its options but the promise is rejected if they set any of them differently.
+   *
+   * @param options the options passed from JS
+   * @param promise resolved once updates have been requested, or {@code null}
+   */
+  private void subscribe(ReadableMap options, @Nullable Promise promise) {
+    Subscription subscription = parseSubscription(options, null);
+    boolean isObserver = !subscription.id.equals(POSITION_SUBSCRIPTION);
+
+    // Further subscribers share the running request, which is only re-issued if they need stricter settings
+    if (mSubscriptions.length > 0 && (mSessionOptions != null || !isObserver)) {
+      String conflict = isObserver ? findConflictingOption(options) : null;
+      if (conflict != null) {
+        if (promise != null)
+          promise.reject("INIT_ERROR", "Option " + conflict + " differs from the running session");
+        return;
+      }
+
+      putSubscription(subscription);
+      combineSubscriptions();
+      updateRequest();
+
+      if (promise == null) return;
+      synchronized (mPromises) {
+        if (isObservingLocation)
+          promise.resolve(null);
+        else
+          mPromises.add(promise);
+      }
+      return;
     }
 
-    long updateInterval = options.hasKey("updateInterval")
-      ? options.getInt("updateInterval") : 5000;
+    // A session only serving getCurrentPosition runs with the default options, so the first observer restarts it
+    // with its own; the pending position requests are served by the restarted session
+    if (mSubscriptions.length > 0) {
+      isObservingLocation = false;
+      mEngine.stop();
+    }
+    mSessionOptions = isObserver ? options : null;
+
+    if (promise != null) {
+      synchronized (mPromises) {
+        mPromises.add(promise);
+      }
+    }
+    putSubscription(subscription);
+    combineSubscriptions();
+    mTier = null;
+
     boolean allowMockLocations = options.hasKey("allowMockLocations")
       ? options.getBoolean("allowMockLocations") : false;
+    int batchSize = options.hasKey("batchSize")
+      ? options.getInt("batchSize") : 1;
+    long maxBatchLatency = options.hasKey("maxBatchLatencyMs")
+      ? options.getInt("maxBatchLatencyMs") : 0;
+    long maxWaitTime = options.hasKey("maxWaitTime")
+      ? options.getInt("maxWaitTime") : 0;
+
+    isJournaling = options.hasKey("journal") && options.getBoolean("journal");
+    mEngine.setJournaling(isJournaling);
+    isStoring = options.hasKey("store") && options.getBoolean("store");
+    int historySize = options.hasKey("historySize")
+      ? options.getInt("historySize") : DEFAULT_HISTORY_SIZE;
 
-    // If assistant already exist, reject promise
-    mLocationAssistant = new LocationAssistant(getCurrentActivity(), this, accuracy, updateInterval, allowMockLocations);
-    mLocationAssistant.setQuiet(true);
-    mLocationAssistant.start();
+    synchronized (this) {
+      if (historySize != mHistory.capacity())
+        mHistory = new TrackBuffer(historySize);
+    }
+
+    ColumnarEncoder encoder = null;
+    if (options.hasKey("encoding") && "compact".equals(options.getString("encoding"))) {
+      int fields = 0;
+      if (options.hasKey("compactFields")) {
+        ReadableArray names = options.getArray("compactFields");
+        for (int i = 0; i < names.size(); i++)
+          fields |= ColumnarEncoder.fieldOf(names.getString(i));
+      }
+      encoder = new ColumnarEncoder(fields, batchSize);
+    }
+    mBatcher.configure(batchSize, maxBatchLatency, encoder);
+    mPipeline = buildPipeline(options);
+    mHead = buildHead(options);
+
+    if (options.hasKey("segmentTrips") && options.getBoolean("segmentTrips")) {
+      double stopRadius = options.hasKey("stopRadius")
+        ? options.getDouble("stopRadius") : DEFAULT_STOP_RADIUS;
+      long stopDuration = options.hasKey("stopDuration")
+        ? options.getInt("stopDuration") : DEFAULT_STOP_DURATION;
+      mSegmenter = new TripSegmenter(this, stopRadius, stopDuration);
+    } else
+      mSegmenter = null;
+
+    if (mUploader != null) {
+      mUploader.shutdown();
+      mUploader = null;
+    }
+    LocationJournal uploadJournal = options.hasKey("upload") ? mEngine.getUploadJournal() : null;
+    if (uploadJournal != null) {
+      try {
+        mUploader = new BatchUploader(buildUploadConfig(options.getMap("upload")), uploadJournal, this);
+      } catch (IOException e) {
+        Log.e(TAG, "Could not read upload journal:\n" + e.toString());
+      }
+    }
+
+    boolean processInBackground = options.hasKey("processInBackground")
+      && options.getBoolean("processInBackground");
+
+    LocationSource locationSource = null;
+    if (options.hasKey("replay")) {
+      ReadableMap replay = options.getMap("replay");
+      double speed = replay.hasKey("speed") ? replay.getDouble("speed") : 1;
+      locationSource = new TraceReplaySource(new File(replay.getString("path")), speed);
+    }
+
+    if (options.hasKey("notification")) {
+      ReadableMap notification = options.getMap("notification");
+      mEngine.setNotification(
+        notification.hasKey("title") ? notification.getString("title") : null,
+        notification.hasKey("text") ? notification.getString("text") : null);
+    }
+
+    boolean wasRunning = mEngine.start(getCurrentActivity(), getRequestedAccuracy(), getRequestedInterval(),
+      maxWaitTime, allowMockLocations, processInBackground, locationSource, mStats);
+    mLocationAssistant = mEngine.getAssistant();
+    mProcessingHandler = new Handler(mEngine.getLooper());
+
+    // Reattaching to a running engine needs no new connection, and what it buffered meanwhile is handed over
+    if (wasRunning)
+      onUpdatesRequested();
+    mEngine.handOver();
   }
 
   @ReactMethod
   public void stopObserving() {
+    synchronized (this) {
+      mSubscriptions = new Subscription[0];
+    }
+
     isObservingLocation = false;
-    if (mLocationAssistant != null)
-      mLocationAssistant.stop();
+    mSessionOptions = null;
+    // Flush on the processing thread, after any fix that is still queued there
+    mProcessingHandler.post(mFlushRunnable);
+    mEngine.stop();
+  }
+
+  @ReactMethod
+  public void updateOptions(ReadableMap options, Promise promise) {
+    String id = options.hasKey("id")
+      ? options.getString("id") : DEFAULT_SUBSCRIPTION;
+    Subscription previous = null;
+    for (Subscription subscription : mSubscriptions)
+      if (subscription.id.equals(id))
+        previous = subscription;
+
+    if (previous == null) {
+      promise.reject("INIT_ERROR", "Not observing location for subscription " + id);
+      return;
+    }
+
+    String conflict = findConflictingOption(options);
+    if (conflict != null) {
+      promise.reject("INIT_ERROR", "Option " + conflict + " cannot be changed without restarting the session");
+      return;
+    }
+
+    // The request is changed in place on the live connection, so there is no reconnect and no new first fix
+    putSubscription(parseSubscription(options, previous));
+    combineSubscriptions();
+    updateRequest();
+    promise.resolve(null);
+  }
+
+  @ReactMethod
+  public void removeSubscription(String id) {
+    synchronized (this) {
+      List<Subscription> remaining = new ArrayList<>(mSubscriptions.length);
+      for (Subscription subscription : mSubscriptions)
+        if (!subscription.id.equals(id))
+          remaining.add(subscription);
+      if (remaining.size() == mSubscriptions.length) return;
+      mSubscriptions = remaining.toArray(new Subscription[remaining.size()]);
+    }
+
+    if (mSubscriptions.length == 0)
+      stopObserving();
+    else {
+      // Once only getCurrentPosition is left, the next observer configures the session again
+      if (mSubscriptions.length == 1 && mSubscriptions[0].id.equals(POSITION_SUBSCRIPTION))
+        mSessionOptions = null;
+      combineSubscriptions();
+      updateRequest();
+    }
+  }
+
+  @ReactMethod
+  public void getCurrentPosition(ReadableMap options, Promise promise) {
+    long maximumAge = options.hasKey("maximumAge")
+      ? (long) options.getDouble("maximumAge") : 0;
+    double maxAccuracy = options.hasKey("maxAccuracy")
+      ? options.getDouble("maxAccuracy") : 0;
+    long timeout = options.hasKey("timeout")
+      ? (long) options.getDouble("timeout") : DEFAULT_POSITION_TIMEOUT;
+
+    WritableMap cached = getCachedPosition(maximumAge, maxAccuracy);
+    if (cached != null) {
+      promise.resolve(cached);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    final PositionRequest request = new PositionRequest(promise, now - maximumAge, now, maxAccuracy);
+    request.timeout = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (BackgroundLocationModule.this) {
+          if (!mPositionRequests.remove(request)) return;
+          hasPositionRequests = !mPositionRequests.isEmpty();
+        }
+        request.promise.reject("TIMEOUT", "Location request timed out");
+        releasePositionSubscription();
+      }
+    };
+
+    synchronized (this) {
+      mPositionRequests.add(request);
+      hasPositionRequests = true;
+    }
+    mPositionHandler.postDelayed(request.timeout, timeout);
+
+    // Concurrent callers share one short-lived subscription, which also starts a session with the default options
+    // if there is none, until the first observer restarts it with its own
+    boolean isSubscribed = false;
+    for (Subscription subscription : mSubscriptions)
+      isSubscribed |= subscription.id.equals(POSITION_SUBSCRIPTION);
+    if (!isSubscribed) {
+      WritableMap subscription = Arguments.createMap();
+      subscription.putString("id", POSITION_SUBSCRIPTION);
+      subscription.putInt("updateInterval", POSITION_UPDATE_INTERVAL);
+      if (options.hasKey("accuracy"))
+        subscription.putInt("accuracy", options.getInt("accuracy"));
+      subscribe(subscription, null);
+    }
+  }
+
+  @ReactMethod
+  public void getStats(Promise promise) {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("received", mStats.received.get());
+    map.putDouble("rejected", mStats.rejected.get());
+    map.putDouble("filtered", mStats.getFiltered());
+    map.putDouble("emitted", mStats.emitted.get());
+    map.putDouble("reconnects", mStats.reconnects.get());
+    WritableMap outliers = Arguments.createMap();
+    outliers.putDouble("speed", mStats.speedOutliers.get());
+    outliers.putDouble("acceleration", mStats.accelerationOutliers.get());
+    outliers.putDouble("accuracy", mStats.accuracyOutliers.get());
+    map.putMap("outliers", outliers);
+    map.putDouble("duplicates", mStats.duplicates.get());
+    map.putDouble("outOfOrder", mStats.outOfOrder.get());
+    map.putDouble("timeToFirstFix", mStats.timeToFirstFix.get());
+    map.putMap("providerToCallback", toMap(mStats.providerToCallback));
+    map.putMap("callbackToEmit", toMap(mStats.callbackToEmit));
+    map.putMap("reconfigurationGap", toMap(mStats.reconfigurationGap));
+    promise.resolve(map);
+  }
+
+  @ReactMethod
+  public void resetStats() {
+    mStats.reset();
+    LocationAssistant assistant = mLocationAssistant;
+    if (assistant != null)
+      assistant.restartTimeToFirstFix();
+  }
+
+  @ReactMethod
+  public void getAcquisitionStats(Promise promise) {
+    LocationAssistant assistant = mLocationAssistant;
+    if (assistant == null) {
+      promise.resolve(null);
+      return;
+    }
+
+    WritableMap states = Arguments.createMap();
+    for (LocationAssistant.State state : LocationAssistant.State.values()) {
+      WritableMap stats = Arguments.createMap();
+      stats.putInt("transitions", assistant.getTransitionCount(state));
+      stats.putDouble("time", assistant.getTimeInState(state));
+      states.putMap(state.name(), stats);
+    }
+
+    WritableMap map = Arguments.createMap();
+    map.putString("state", assistant.getState().name());
+    map.putMap("states", states);
+    map.putDouble("timeToFirstFix", assistant.getTimeToFirstFix());
+    promise.resolve(map);
+  }
+
+  @ReactMethod
+  public void getRecentLocations(double sinceMs, int limit, Promise promise) {
+    WritableArray locations = Arguments.createArray();
+    Fix fix = new Fix();
+
+    synchronized (this) {
+      int count = Math.min(mHistory.countSince((long) sinceMs), limit);
+      for (int age = count - 1; age >= 0; age--) {
+        mHistory.get(age, fix);
+        locations.pushMap(toMap(fix));
+      }
+    }
+
+    promise.resolve(locations);
+  }
+
+  @ReactMethod
+  public void getPendingLocations(int limit, Promise promise) {
+    LocationJournal journal = getJournal();
+    if (journal == null) {
+      promise.reject("JOURNAL_ERROR", "Location journal is not available");
+      return;
+    }
+
+    final WritableArray locations = Arguments.createArray();
+    try {
+      journal.readPending(limit, new LocationJournal.RecordSink() {
+        @Override
+        public void onRecord(long sequence, Fix fix) {
+          WritableMap map = toMap(fix);
+          map.putDouble("sequence", sequence);
+          locations.pushMap(map);
+        }
+      });
+    } catch (IOException e) {
+      promise.reject("JOURNAL_ERROR", e.getMessage());
+      return;
+    }
+
+    promise.resolve(locations);
+  }
+
+  @ReactMethod
+  public void acknowledge(double upToSequence, Promise promise) {
+    LocationJournal journal = getJournal();
+    if (journal == null) {
+      promise.reject("JOURNAL_ERROR", "Location journal is not available");
+      return;
+    }
+
+    try {
+      journal.acknowledge((long) upToSequence);
+      promise.resolve(null);
+    } catch (IOException e) {
+      promise.reject("JOURNAL_ERROR", e.getMessage());
+    }
+  }
+
+  @ReactMethod
+  public void queryTrack(double from, double to, @Nullable ReadableMap bbox, int limit, @Nullable String cursor,
+                         Promise promise) {
+    TrackStore store = getStore();
+    if (store == null) {
+      promise.reject("STORE_ERROR", "Track store is not available");
+      return;
+    }
+
+    double[] bounds = bbox == null ? null : new double[]{
+      bbox.getDouble("minLatitude"), bbox.getDouble("minLongitude"),
+      bbox.getDouble("maxLatitude"), bbox.getDouble("maxLongitude")};
+    List<Fix> fixes = new ArrayList<>();
+    String next;
+    try {
+      next = store.query((long) from, (long) to, bounds, limit, cursor, fixes);
+    } catch (RuntimeException e) {
+      promise.reject("STORE_ERROR", e.getMessage());
+      return;
+    }
+
+    WritableArray locations = Arguments.createArray();
+    for (Fix fix : fixes)
+      locations.pushMap(toMap(fix));
+
+    WritableMap page = Arguments.createMap();
+    page.putArray("locations", locations);
+    if (next != null)
+      page.putString("cursor", next);
+    else
+      page.putNull("cursor");
+    promise.resolve(page);
+  }
+
+  @ReactMethod
+  public void pruneBefore(double timestamp, Promise promise) {
+    TrackStore store = getStore();
+    if (store == null) {
+      promise.reject("STORE_ERROR", "Track store is not available");
+      return;
+    }
+
+    try {
+      promise.resolve(store.pruneBefore((long) timestamp));
+    } catch (RuntimeException e) {
+      promise.reject("STORE_ERROR", e.getMessage());
+    }
+  }
+
+  @ReactMethod
+  public void addGeofences(ReadableArray fences, Promise promise) {
+    List<Geofence> parsed = new ArrayList<>(fences.size());
+
+    try {
+      for (int i = 0; i < fences.size(); i++) {
+        ReadableMap fence = fences.getMap(i);
+        String id = fence.getString("id");
+        long dwellTime = fence.hasKey("dwellTime") ? fence.getInt("dwellTime") : 0;
+
+        if (fence.hasKey("polygon")) {
+          ReadableArray polygon = fence.getArray("polygon");
+          double[] latitudes = new double[polygon.size()];
+          double[] longitudes = new double[polygon.size()];
+          for (int j = 0; j < polygon.size(); j++) {
+            latitudes[j] = polygon.getMap(j).getDouble("latitude");
+            longitudes[j] = polygon.getMap(j).getDouble("longitude");
+          }
+          parsed.add(Geofence.polygon(id, latitudes, longitudes, dwellTime));
+        } else
+          parsed.add(Geofence.circle(id, fence.getDouble("latitude"), fence.getDouble("longitude"),
+            fence.getDouble("radius"), dwellTime));
+      }
+    } catch (RuntimeException e) {
+      promise.reject("GEOFENCE_ERROR", "Invalid geofence: " + e.getMessage());
+      return;
+    }
+
+    mGeofences.addAll(parsed);
+    promise.resolve(mGeofences.size());
+  }
+
+  @ReactMethod
+  public void removeGeofences(ReadableArray ids) {
+    List<String> parsed = new ArrayList<>(ids.size());
+    for (int i = 0; i < ids.size(); i++)
+      parsed.add(ids.getString(i));
+    mGeofences.removeAll(parsed);
+  }
+
+  @ReactMethod
+  public void clearGeofences() {
+    mGeofences.clear();
   }
 
   @Override
@@ -97,10 +605,7 @@ public class BackgroundLocationModule extends ReactContextBaseJavaModule impleme
     if (requestCode == mLocationAssistant.REQUEST_CHECK_SETTINGS && resultCode != Activity.RESULT_OK) {
       String message = "Settings declined";
 
-      if (mPromise != null) {
-        mPromise.reject("SETTINGS_ERROR", message);
-        mPromise = null;
-      } else
+      if (!rejectPromises("SETTINGS_ERROR", message))
         emitError(ErrorType.SETTINGS_ERROR, message);
     }
   }
@@ -110,18 +615,32 @@ public class BackgroundLocationModule extends ReactContextBaseJavaModule impleme
 
   @Override
   public void onHostResume() {
+    mEngine.setActivity(getCurrentActivity());
     if (mLocationAssistant == null) return;
     if (isObservingLocation && !mLocationAssistant.isChangingSettings())
       mLocationAssistant.reset();
   }
 
   @Override
-  public void onHostPause() {}
+  public void onHostPause() {
+    mBatcher.flush();
+  }
 
   @Override
   public void onHostDestroy() {
-    stopObserving();
-    mLocationAssistant = null;
+    // Tracking goes on in the engine, only dialogs need an Activity
+    mEngine.setActivity(null);
+  }
+
+  @Override
+  public void onCatalystInstanceDestroy() {
+    // The engine buffers fixes until the next React instance takes them over
+    mEngine.detach(this);
+    mPositionHandler.removeCallbacksAndMessages(null);
+    if (mUploader != null)
+      mUploader.shutdown();
+    if (mStore != null)
+      mStore.flush();
   }
 
   @Override
@@ -135,10 +654,7 @@ public class BackgroundLocationModule extends ReactContextBaseJavaModule impleme
       if (!granted) {
         String message = "Permissions declined";
 
-        if (mPromise != null) {
-          mPromise.reject("PERMISSION_ERROR", message);
-          mPromise = null;
-        } else
+        if (!rejectPromises("PERMISSION_ERROR", message))
           emitError(ErrorType.PERMISSION_ERROR, message);
       }
     }
@@ -166,39 +682,261 @@ public class BackgroundLocationModule extends ReactContextBaseJavaModule impleme
 
   @Override
   public void onUpdatesRequested() {
-    isObservingLocation = true;
-
-    if (mPromise != null) {
-      mPromise.resolve(null);
-      mPromise = null;
+    // Called on the main thread, while subscribers add promises on the native modules thread
+    synchronized (mPromises) {
+      isObservingLocation = true;
+      for (Promise promise : mPromises)
+        promise.resolve(null);
+      mPromises.clear();
     }
   }
 
   @Override
   public void onNewLocationAvailable(Location location) {
-    WritableMap map = Arguments.createMap();
-    map.putDouble("latitude", location.getLatitude());
-    map.putDouble("longitude", location.getLongitude());
-    map.putDouble("altitude", location.getAltitude());
-    map.putDouble("accuracy", location.getAccuracy());
-    map.putDouble("speed", location.getSpeed());
-    map.putDouble("heading", location.getBearing());
-    map.putDouble("timestamp", location.getTime());
+    LocationEngine.toFix(location, mFix);
+    mFix.receivedNanos = System.nanoTime();
+    process(mFix);
+  }
+
+  @Override
+  public void onNewLocationsAvailable(List<Location> locations) {
+    // A batch of the provider goes to JS as one event rather than one per fix
+    if (!mBatcher.isBatching() && !mBatcher.isCompact())
+      mCollected = Arguments.createArray();
+
+    for (int i = 0; i < locations.size(); i++) {
+      LocationEngine.toFix(locations.get(i), mFix);
+      mFix.receivedNanos = System.nanoTime();
+      process(mFix);
+    }
+
+    WritableArray collected = mCollected;
+    mCollected = null;
+    if (collected != null && collected.size() > 0)
+      onBatchReady(collected);
+  }
+
+  @Override
+  public void onBufferedFix(Fix fix) {
+    mFix.set(fix);
+    mFix.receivedNanos = System.nanoTime();
+    process(mFix);
+  }
+
+  private void process(Fix fix) {
+    // Duplicates and outliers are dropped and missing speeds filled in before anything else sees the fix
+    mHead.onFix(fix);
+  }
+
+  private final FixSink mPlausibleSink = new FixSink() {
+    @Override
+    public void onFix(Fix fix) {
+      processPlausible(fix);
+    }
+  };
+
+  private void processPlausible(Fix fix) {
+    if (hasPositionRequests)
+      resolvePositionRequests(fix);
+    mGeofences.onFix(fix);
+    TripSegmenter segmenter = mSegmenter;
+    if (segmenter != null)
+      segmenter.onFix(fix);
+    mPipeline.onFix(fix);
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    Subscription[] subscriptions = mSubscriptions;
+    WritableArray ids = null;
+
+    for (Subscription subscription : subscriptions) {
+      // The subscription of getCurrentPosition only keeps the request running, it is resolved before the pipeline
+      if (subscription.id.equals(POSITION_SUBSCRIPTION)) continue;
+      if (subscription.accept(fix)) {
+        if (ids == null)
+          ids = Arguments.createArray();
+        ids.pushString(subscription.id);
+      }
+    }
+    // Without subscriptions, this is a fix released by flushing the pipeline after the last one stopped
+    if (ids == null && subscriptions.length > 0) return;
+
+    synchronized (this) {
+      mHistory.append(fix);
+    }
+
+    if (isJournaling) {
+      LocationJournal journal = getJournal();
+      if (journal != null)
+        journal.append(fix);
+    }
+
+    if (isStoring) {
+      TrackStore store = getStore();
+      if (store != null)
+        store.append(fix);
+    }
+
+    if (mUploader != null)
+      mUploader.onFix(fix);
+
+    mStats.emitted.incrementAndGet();
+    mStats.callbackToEmit.record(System.nanoTime() - fix.receivedNanos);
+
+    // The compact format skips building a map per fix altogether
+    if (mBatcher.isCompact()) {
+      mBatcher.add(fix);
+      return;
+    }
+
+    WritableMap map = toMap(fix);
+    if (ids != null)
+      map.putArray("subscriptions", ids);
+
+    if (mBatcher.isBatching()) {
+      mBatcher.add(map);
+      return;
+    }
+    if (mCollected != null) {
+      mCollected.pushMap(map);
+      return;
+    }
 
     getReactApplicationContext()
       .getJSModule(RCTDeviceEventEmitter.class)
       .emit(EventType.LOCATION, map);
   }
 
+  @Override
+  public void onBatchReady(WritableArray locations) {
+    getReactApplicationContext()
+      .getJSModule(RCTDeviceEventEmitter.class)
+      .emit(EventType.LOCATIONS, locations);
+  }
+
+  @Override
+  public void onCompactBatchReady(WritableMap batch) {
+    getReactApplicationContext()
+      .getJSModule(RCTDeviceEventEmitter.class)
+      .emit(EventType.LOCATIONS, batch);
+  }
+
+  @Override
+  public void onTierChanged(SamplingScheduler.Tier tier, @Nullable SamplingScheduler.Tier previous, double speed) {
+    mTier = tier;
+    updateRequest();
+
+    WritableMap map = Arguments.createMap();
+    map.putString("tier", tier.name());
+    if (previous != null)
+      map.putString("previousTier", previous.name());
+    map.putDouble("speed", speed);
+
+    getReactApplicationContext()
+      .getJSModule(RCTDeviceEventEmitter.class)
+      .emit(EventType.TIER_CHANGE, map);
+  }
+
+  @Override
+  public void onGeofenceTransition(Geofence fence, GeofenceEngine.Transition transition, Fix fix) {
+    WritableMap map = Arguments.createMap();
+    map.putString("id", fence.id);
+    map.putString("transition", transition.name());
+    map.putMap("location", toMap(fix));
+
+    getReactApplicationContext()
+      .getJSModule(RCTDeviceEventEmitter.class)
+      .emit(EventType.GEOFENCE, map);
+  }
+
+  @Override
+  public void onTripStart(double latitude, double longitude, long time, long stopDuration) {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("latitude", latitude);
+    map.putDouble("longitude", longitude);
+    map.putDouble("timestamp", time);
+    if (stopDuration >= 0)
+      map.putDouble("stopDuration", stopDuration);
+    else
+      map.putNull("stopDuration");
+
+    getReactApplicationContext()
+      .getJSModule(RCTDeviceEventEmitter.class)
+      .emit(EventType.TRIP_START, map);
+  }
+
+  @Override
+  public void onStopStart(double latitude, double longitude, long time, @Nullable TripSegmenter.Summary trip) {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("latitude", latitude);
+    map.putDouble("longitude", longitude);
+    map.putDouble("timestamp", time);
+    if (trip != null) {
+      map.putDouble("tripDistance", trip.distance);
+      map.putDouble("tripDuration", trip.getDuration());
+    } else {
+      map.putNull("tripDistance");
+      map.putNull("tripDuration");
+    }
+
+    getReactApplicationContext()
+      .getJSModule(RCTDeviceEventEmitter.class)
+      .emit(EventType.STOP_START, map);
+  }
+
+  @Override
+  public void onTripEnd(TripSegmenter.Summary trip) {
+    WritableMap bbox = Arguments.createMap();
+    bbox.putDouble("minLatitude", trip.minLatitude);
+    bbox.putDouble("minLongitude", trip.minLongitude);
+    bbox.putDouble("maxLatitude", trip.maxLatitude);
+    bbox.putDouble("maxLongitude", trip.maxLongitude);
+
+    WritableMap map = Arguments.createMap();
+    map.putDouble("startTime", trip.startTime);
+    map.putDouble("endTime", trip.endTime);
+    map.putDouble("duration", trip.getDuration());
+    map.putDouble("distance", trip.distance);
+    map.putDouble("maxSpeed", trip.maxSpeed);
+    map.putDouble("averageSpeed", trip.getAverageSpeed());
+    map.putMap("bbox", bbox);
+
+    getReactApplicationContext()
+      .getJSModule(RCTDeviceEventEmitter.class)
+      .emit(EventType.TRIP_END, map);
+  }
+
+  @Override
+  public void onBatchUploaded(int count, int bytes, long latency, int attempts) {
+    WritableMap map = Arguments.createMap();
+    map.putInt("count", count);
+    map.putInt("bytes", bytes);
+    map.putDouble("latency", latency);
+    map.putInt("attempts", attempts);
+
+    getReactApplicationContext()
+      .getJSModule(RCTDeviceEventEmitter.class)
+      .emit(EventType.UPLOAD, map);
+  }
+
+  @Override
+  public void onBatchFailed(int count, String message) {
+    WritableMap map = Arguments.createMap();
+    map.putInt("count", count);
+    map.putString("error", message);
+
+    getReactApplicationContext()
+      .getJSModule(RCTDeviceEventEmitter.class)
+      .emit(EventType.UPLOAD, map);
+  }
+
   @Override
   public void onMockLocationsDetected(View.OnClickListener fromView, DialogInterface.OnClickListener fromDialog) {}
 
   @Override
   public void onError(LocationAssistant.ErrorType type, String message) {
-    if (mPromise != null) {
-      mPromise.reject("INIT_ERROR", message);
-      mPromise = null;
-    } else {
+    if (!rejectPromises("INIT_ERROR", message)) {
       int code = type == LocationAssistant.ErrorType.RETRIEVAL
         ? ErrorType.SETTINGS_ERROR
         : ErrorType.RETRIEVAL_ERROR;
@@ -207,6 +945,441 @@ public class BackgroundLocationModule extends ReactContextBaseJavaModule impleme
     }
   }
 
+  private final Runnable mFlushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mHead.flush();
+      mPipeline.flush();
+      mBatcher.flush();
+      if (mUploader != null)
+        mUploader.flush();
+      if (mStore != null)
+        mStore.flush();
+    }
+  };
+
+  private static WritableMap toMap(Fix fix) {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("latitude", fix.latitude);
+    map.putDouble("longitude", fix.longitude);
+    map.putDouble("altitude", fix.altitude);
+    map.putDouble("accuracy", fix.accuracy);
+    map.putDouble("speed", fix.speed);
+    map.putDouble("heading", fix.bearing);
+    map.putDouble("timestamp", fix.time);
+    if (fix.isSpeedDerived)
+      map.putBoolean("speedDerived", true);
+    if (fix.isBearingDerived)
+      map.putBoolean("headingDerived", true);
+    if (fix.hasSmoothed) {
+      map.putDouble("smoothedLatitude", fix.smoothedLatitude);
+      map.putDouble("smoothedLongitude", fix.smoothedLongitude);
+    }
+    return map;
+  }
+
+  private static WritableMap toMap(LatencyHistogram histogram) {
+    WritableArray buckets = Arguments.createArray();
+    for (int i = 0; i < LatencyHistogram.BUCKETS; i++)
+      buckets.pushDouble(histogram.getBucketCount(i));
+
+    // All latencies in microseconds
+    WritableMap map = Arguments.createMap();
+    map.putDouble("count", histogram.getCount());
+    map.putDouble("mean", histogram.getMean());
+    map.putDouble("p50", histogram.getQuantile(0.5));
+    map.putDouble("p90", histogram.getQuantile(0.9));
+    map.putDouble("p99", histogram.getQuantile(0.99));
+    map.putDouble("max", histogram.getMax());
+    map.putArray("buckets", buckets);
+    return map;
+  }
+
+  private @Nullable LocationJournal getJournal() {
+    return mEngine.getJournal();
+  }
+
+  /**
+   * @param options  the options passed from JS
+   * @param previous the subscription whose settings are kept for any option that is missing, or {@code null} to
+   *                 fall back to the defaults
+   */
+  private static Subscription parseSubscription(ReadableMap options, @Nullable Subscription previous) {
+    LocationAssistant.Accuracy accuracy = previous != null
+      ? previous.accuracy : LocationAssistant.Accuracy.MEDIUM;
+
+    if (options.hasKey("accuracy")) switch (options.getInt("accuracy")) {
+      case LocationRequest.PRIORITY_HIGH_ACCURACY:
+        accuracy = LocationAssistant.Accuracy.HIGH; break;
+      case LocationRequest.PRIORITY_LOW_POWER:
+        accuracy = LocationAssistant.Accuracy.LOW; break;
+      case LocationRequest.PRIORITY_NO_POWER:
+        accuracy = LocationAssistant.Accuracy.PASSIVE; break;
+      case LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY:
+        accuracy = LocationAssistant.Accuracy.MEDIUM; break;
+    }
+
+    String id = options.hasKey("id")
+      ? options.getString("id") : DEFAULT_SUBSCRIPTION;
+    long updateInterval = options.hasKey("updateInterval")
+      ? options.getInt("updateInterval") : previous != null ? previous.updateInterval : 5000;
+    double distanceFilter = options.hasKey("distanceFilter")
+      ? options.getDouble("distanceFilter") : previous != null ? previous.distanceFilter : 0;
+    long minUpdateInterval = options.hasKey("minUpdateInterval")
+      ? options.getInt("minUpdateInterval") : previous != null ? previous.minUpdateInterval : 0;
+    boolean isAccuracySet = options.hasKey("accuracy") || previous != null && previous.isAccuracySet;
+    boolean isIntervalSet = options.hasKey("updateInterval") || previous != null && previous.isIntervalSet;
+    return new Subscription(id, accuracy, updateInterval, distanceFilter, minUpdateInterval, isAccuracySet,
+      isIntervalSet);
+  }
+
+  /**
+   * @return the first session option that the given options set differently from the running session, or
+   * {@code null} if there is none
+   */
+  private @Nullable String findConflictingOption(ReadableMap options) {
+    ReadableMap session = mSessionOptions;
+    for (String key : SESSION_OPTIONS) {
+      if (!options.hasKey(key)) continue;
+      if (session == null || !session.hasKey(key) || !isSameValue(options, session, key)) return key;
+    }
+    return null;
+  }
+
+  private static boolean isSameValue(ReadableMap a, ReadableMap b, String key) {
+    ReadableType type = a.getType(key);
+    if (type != b.getType(key)) return false;
+
+    switch (type) {
+      case Boolean:
+        return a.getBoolean(key) == b.getBoolean(key);
+      case Number:
+        return a.getDouble(key) == b.getDouble(key);
+      case String:
+        return a.getString(key).equals(b.getString(key));
+      case Map:
+        return isSameMap(a.getMap(key), b.getMap(key));
+      case Array:
+        return isSameArray(a.getArray(key), b.getArray(key));
+      default:
+        return true;
+    }
+  }
+
+  private static boolean isSameMap(ReadableMap a, ReadableMap b) {
+    int count = 0;
+    ReadableMapKeySetIterator iterator = a.keySetIterator();
+    while (iterator.hasNextKey()) {
+      String key = iterator.nextKey();
+      if (!b.hasKey(key) || !isSameValue(a, b, key)) return false;
+      count++;
+    }
+
+    iterator = b.keySetIterator();
+    while (iterator.hasNextKey()) {
+      iterator.nextKey();
+      count--;
+    }
+    return count == 0;
+  }
+
+  private static boolean isSameArray(ReadableArray a, ReadableArray b) {
+    if (a.size() != b.size()) return false;
+    for (int i = 0; i < a.size(); i++) {
+      ReadableType type = a.getType(i);
+      if (type != b.getType(i)) return false;
+
+      boolean same;
+      switch (type) {
+        case Boolean:
+          same = a.getBoolean(i) == b.getBoolean(i); break;
+        case Number:
+          same = a.getDouble(i) == b.getDouble(i); break;
+        case String:
+          same = a.getString(i).equals(b.getString(i)); break;
+        case Map:
+          same = isSameMap(a.getMap(i), b.getMap(i)); break;
+        case Array:
+          same = isSameArray(a.getArray(i), b.getArray(i)); break;
+        default:
+          same = true;
+      }
+      if (!same) return false;
+    }
+    return true;
+  }
+
+  private synchronized void putSubscription(Subscription subscription) {
+    List<Subscription> subscriptions = new ArrayList<>(mSubscriptions.length + 1);
+    for (Subscription existing : mSubscriptions)
+      if (!existing.id.equals(subscription.id))
+        subscriptions.add(existing);
+    subscriptions.add(subscription);
+    mSubscriptions = subscriptions.toArray(new Subscription[subscriptions.size()]);
+  }
+
+  /**
+   * Combines the settings of all subscriptions into the strictest accuracy and the shortest interval, and those
+   * of the subscriptions that set them explicitly into the floor the sampling tier cannot go below.
+   */
+  private synchronized void combineSubscriptions() {
+    LocationAssistant.Accuracy accuracy = LocationAssistant.Accuracy.PASSIVE;
+    LocationAssistant.Accuracy floorAccuracy = LocationAssistant.Accuracy.PASSIVE;
+    long updateInterval = Long.MAX_VALUE;
+    long floorInterval = SamplingScheduler.NO_FLOOR;
+
+    for (Subscription subscription : mSubscriptions) {
+      // Accuracy levels are declared from the strictest to the loosest
+      if (subscription.accuracy.ordinal() < accuracy.ordinal())
+        accuracy = subscription.accuracy;
+      if (subscription.isAccuracySet && subscription.accuracy.ordinal() < floorAccuracy.ordinal())
+        floorAccuracy = subscription.accuracy;
+      updateInterval = Math.min(updateInterval, subscription.updateInterval);
+      if (subscription.isIntervalSet)
+        floorInterval = Math.min(floorInterval, subscription.updateInterval);
+    }
+
+    mAccuracy = accuracy;
+    mUpdateInterval = updateInterval;
+    mFloorAccuracy = floorAccuracy;
+    mFloorInterval = floorInterval;
+  }
+
+  /**
+   * Sends the effective request to the running location client; the client ignores it if nothing changed.
+   * This is the only place the request is changed, so that the sampling tier and the subscriptions cannot
+   * override each other.
+   */
+  private void updateRequest() {
+    // Tier changes arrive on the processing thread, so serialize sending without holding the module lock
+    synchronized (mRequestLock) {
+      LocationAssistant.Accuracy accuracy;
+      long updateInterval;
+      synchronized (this) {
+        accuracy = getRequestedAccuracy();
+        updateInterval = getRequestedInterval();
+      }
+
+      LocationAssistant assistant = mLocationAssistant;
+      if (assistant != null)
+        assistant.setUpdateParameters(accuracy, updateInterval);
+    }
+  }
+
+  /**
+   * @return the accuracy of the sampling tier, unless a subscription explicitly asked for a stricter one, or the
+   * combined accuracy of the subscriptions before the first tier is known
+   */
+  private synchronized LocationAssistant.Accuracy getRequestedAccuracy() {
+    SamplingScheduler.Tier tier = mTier;
+    if (tier == null) return mAccuracy;
+
+    LocationAssistant.Accuracy accuracy = tier == SamplingScheduler.Tier.DRIVING ? LocationAssistant.Accuracy.HIGH
+      : tier == SamplingScheduler.Tier.WALKING ? LocationAssistant.Accuracy.MEDIUM
+      : LocationAssistant.Accuracy.LOW;
+    // Accuracy levels are declared from the strictest to the loosest
+    return accuracy.ordinal() < mFloorAccuracy.ordinal() ? accuracy : mFloorAccuracy;
+  }
+
+  /**
+   * @return the interval of the sampling tier, unless a subscription explicitly asked for a shorter one, or the
+   * combined interval of the subscriptions before the first tier is known
+   */
+  private synchronized long getRequestedInterval() {
+    SamplingScheduler.Tier tier = mTier;
+    if (tier == null) return mUpdateInterval;
+    return SamplingScheduler.getRequestedInterval(tier, mFloorInterval);
+  }
+
+  /**
+   * Looks for a position no older than the given age and at least as accurate as given in the last emitted fix, the
+   * assistant's best location and the last location known to the location source, in that order.
+   *
+   * @param maximumAge  the maximum age (in milliseconds) of the position, 0 to always request a new one
+   * @param maxAccuracy the maximum accuracy (in metres) of the position, 0 for any
+   * @return the position, or {@code null} if none is recent and accurate enough
+   */
+  private @Nullable WritableMap getCachedPosition(long maximumAge, double maxAccuracy) {
+    if (maximumAge <= 0) return null;
+    long notBefore = System.currentTimeMillis() - maximumAge;
+    Fix fix = new Fix();
+
+    synchronized (this) {
+      if (mHistory.size() > 0) {
+        mHistory.get(0, fix);
+        if (isCachedUsable(fix, notBefore, maxAccuracy)) return toMap(fix);
+      }
+    }
+
+    LocationAssistant assistant = mLocationAssistant;
+    if (assistant == null) return null;
+
+    Location location = assistant.getBestLocation();
+    if (location != null) {
+      LocationEngine.toFix(location, fix);
+      if (isCachedUsable(fix, notBefore, maxAccuracy)) return toMap(fix);
+    }
+    location = assistant.getLastKnownLocation();
+    if (location != null) {
+      LocationEngine.toFix(location, fix);
+      if (isCachedUsable(fix, notBefore, maxAccuracy)) return toMap(fix);
+    }
+    return null;
+  }
+
+  private static boolean isCachedUsable(Fix fix, long notBefore, double maxAccuracy) {
+    return fix.time >= notBefore && (maxAccuracy <= 0 || fix.accuracy <= maxAccuracy);
+  }
+
+  private void resolvePositionRequests(Fix fix) {
+    List<PositionRequest> resolved = new ArrayList<>();
+
+    synchronized (this) {
+      for (int i = mPositionRequests.size() - 1; i >= 0; i--) {
+        if (mPositionRequests.get(i).isSatisfiedBy(fix))
+          resolved.add(mPositionRequests.remove(i));
+      }
+      hasPositionRequests = !mPositionRequests.isEmpty();
+    }
+
+    for (PositionRequest request : resolved) {
+      mPositionHandler.removeCallbacks(request.timeout);
+      request.promise.resolve(toMap(fix));
+    }
+    if (!resolved.isEmpty())
+      releasePositionSubscription();
+  }
+
+  /**
+   * Drops the subscription serving {@link #getCurrentPosition} once no caller is waiting for it anymore.
+   */
+  private void releasePositionSubscription() {
+    // Subscriptions are only changed on the native modules thread, like for all other React methods
+    getReactApplicationContext().runOnNativeModulesQueueThread(new Runnable() {
+      @Override
+      public void run() {
+        if (!hasPositionRequests)
+          removeSubscription(POSITION_SUBSCRIPTION);
+      }
+    });
+  }
+
+  /**
+   * Rejects all promises waiting for location updates to be requested, including those of
+   * {@link #getCurrentPosition}.
+   *
+   * @return whether there were any
+   */
+  private boolean rejectPromises(String code, String message) {
+    List<PositionRequest> positionRequests;
+    synchronized (this) {
+      positionRequests = new ArrayList<>(mPositionRequests);
+      mPositionRequests.clear();
+      hasPositionRequests = false;
+    }
+    List<Promise> promises;
+    synchronized (mPromises) {
+      promises = new ArrayList<>(mPromises);
+      mPromises.clear();
+    }
+    if (promises.isEmpty() && positionRequests.isEmpty()) return false;
+
+    for (Promise promise : promises)
+      promise.reject(code, message);
+
+    for (PositionRequest request : positionRequests) {
+      mPositionHandler.removeCallbacks(request.timeout);
+      request.promise.reject(code, message);
+    }
+    if (!positionRequests.isEmpty())
+      releasePositionSubscription();
+    return true;
+  }
+
+  private synchronized @Nullable TrackStore getStore() {
+    if (mStore == null) {
+      try {
+        mStore = new TrackStore(getReactApplicationContext(), "location-track.db");
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Could not open track store:\n" + e.toString());
+      }
+    }
+    return mStore;
+  }
+
+  private FixPipeline buildPipeline(ReadableMap options) {
+    FixPipeline pipeline = new FixPipeline(this);
+
+    if (options.hasKey("adaptive") && options.getBoolean("adaptive"))
+      pipeline.add(new SamplingScheduler(this));
+
+    if (options.hasKey("smoothing") && options.getBoolean("smoothing")) {
+      double acceleration = options.hasKey("smoothingAcceleration")
+        ? options.getDouble("smoothingAcceleration") : 1;
+      pipeline.add(new KalmanSmoother(acceleration));
+    }
+
+    double simplifyTolerance = options.hasKey("simplifyTolerance")
+      ? options.getDouble("simplifyTolerance") : 0;
+    if (simplifyTolerance > 0)
+      pipeline.add(new TrackSimplifier(simplifyTolerance, SIMPLIFY_WINDOW_SIZE));
+
+    return pipeline;
+  }
+
+  /**
+   * Builds the stages that run before position requests, geofences, the trip segmenter and the pipeline.
+   */
+  private FixPipeline buildHead(ReadableMap options) {
+    long reorderWindow = options.hasKey("reorderWindow")
+      ? options.getInt("reorderWindow") : 0;
+    FixPipeline head = new FixPipeline(mPlausibleSink)
+      .add(new ReorderBuffer(reorderWindow, REORDER_CAPACITY, mStats));
+
+    if (options.hasKey("outlierFilter"))
+      head.add(buildFilter(options.getMap("outlierFilter")));
+
+    if (options.hasKey("deriveMotion") && options.getBoolean("deriveMotion"))
+      head.add(new MotionEstimator(MOTION_WINDOW));
+
+    return head;
+  }
+
+  private KinematicFilter buildFilter(ReadableMap options) {
+    boolean isWalking = options.hasKey("profile") && "walking".equals(options.getString("profile"));
+    double maxSpeed = options.hasKey("maxSpeed") ? options.getDouble("maxSpeed")
+      : isWalking ? KinematicFilter.WALKING_MAX_SPEED : KinematicFilter.DRIVING_MAX_SPEED;
+    double maxAcceleration = options.hasKey("maxAcceleration") ? options.getDouble("maxAcceleration")
+      : isWalking ? KinematicFilter.WALKING_MAX_ACCELERATION : KinematicFilter.DRIVING_MAX_ACCELERATION;
+    double maxAccuracy = options.hasKey("maxAccuracy") ? options.getDouble("maxAccuracy") : 0;
+
+    return new KinematicFilter(maxSpeed, maxAcceleration, maxAccuracy, mStats);
+  }
+
+  private static BatchUploader.Config buildUploadConfig(ReadableMap options) {
+    BatchUploader.Config config = new BatchUploader.Config();
+    config.url = options.getString("url");
+
+    if (options.hasKey("headers")) {
+      ReadableMap headers = options.getMap("headers");
+      ReadableMapKeySetIterator iterator = headers.keySetIterator();
+      while (iterator.hasNextKey()) {
+        String key = iterator.nextKey();
+        config.headers.put(key, headers.getString(key));
+      }
+    }
+
+    if (options.hasKey("batchSize"))
+      config.batchSize = options.getInt("batchSize");
+    if (options.hasKey("maxBatchLatencyMs"))
+      config.maxBatchLatency = options.getInt("maxBatchLatencyMs");
+    if (options.hasKey("maxConcurrency"))
+      config.maxConcurrency = options.getInt("maxConcurrency");
+    if (options.hasKey("maxRetries"))
+      config.maxRetries = options.getInt("maxRetries");
+    return config;
+  }
+
   private void emitError(int code, String message) {
     WritableMap map = Arguments.createMap();
     map.putInt("code", code);
@@ -217,4 +1390,31 @@ public class BackgroundLocationModule extends ReactContextBaseJavaModule impleme
       .emit(EventType.ERROR, map);
   }
 
+  private static class PositionRequest {
+    final Promise promise;
+    /** The earliest time (in milliseconds since the epoch) of a fix that satisfies this request */
+    final long notBefore;
+    /** The time (in milliseconds since the epoch) of the request */
+    final long requestedAt;
+    /** The worst accuracy (in metres) of a fix taken before the request that satisfies it, 0 for any */
+    final double maxAccuracy;
+    Runnable timeout;
+
+    PositionRequest(Promise promise, long notBefore, long requestedAt, double maxAccuracy) {
+      this.promise = promise;
+      this.notBefore = notBefore;
+      this.requestedAt = requestedAt;
+      this.maxAccuracy = maxAccuracy;
+    }
+
+    /**
+     * The initial fix of a new session may be an old one, so it has to meet the same bounds as a cached position.
+     * Fixes taken after the request are live and satisfy it whatever their accuracy.
+     */
+    boolean isSatisfiedBy(Fix fix) {
+      if (fix.time >= requestedAt) return true;
+      return isCachedUsable(fix, notBefore, maxAccuracy);
+    }
+  }
+
 }
@@ -0,0 +1,56 @@
+package com.unitedd.location;
+
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.support.annotation.Nullable;
+import android.support.v7.app.NotificationCompat;
+
+/**
+ * Keeps the process in the foreground while the {@link LocationEngine} runs, so that tracking continues without
+ * any Activity and is not cut short by the system.
+ */
+public class BackgroundLocationService extends Service {
+
+  static final String EXTRA_TITLE = "title";
+  static final String EXTRA_TEXT = "text";
+  private static final int NOTIFICATION_ID = 0x10ca;
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    // Without a running engine, e.g. after the process was restarted, there is nothing to keep alive
+    if (intent == null || !LocationEngine.getInstance(this).isRunning()) {
+      stopSelf(startId);
+      return START_NOT_STICKY;
+    }
+
+    String title = intent.getStringExtra(EXTRA_TITLE);
+    String text = intent.getStringExtra(EXTRA_TEXT);
+    Intent launchIntent = getPackageManager().getLaunchIntentForPackage(getPackageName());
+
+    NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
+    builder.setSmallIcon(getApplicationInfo().icon)
+      .setContentTitle(title != null ? title : getApplicationInfo().loadLabel(getPackageManager()))
+      .setContentText(text != null ? text : "Tracking location")
+      .setOngoing(true);
+    if (launchIntent != null)
+      builder.setContentIntent(PendingIntent.getActivity(this, 0, launchIntent, 0));
+
+    startForeground(NOTIFICATION_ID, builder.build());
+    return START_NOT_STICKY;
+  }
+
+  @Override
+  public void onDestroy() {
+    stopForeground(true);
+    super.onDestroy();
+  }
+
+  @Nullable
+  @Override
+  public IBinder onBind(Intent intent) {
+    return null;
+  }
+
+}
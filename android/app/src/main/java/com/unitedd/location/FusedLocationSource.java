@@ -0,0 +1,44 @@
+package com.unitedd.location;
+
+import android.location.Location;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationAvailability;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+
+/**
+ * Gets fixes from the fused location provider of Google Play services.
+ * Methods throw {@link SecurityException} when the location permission is missing.
+ */
+public class FusedLocationSource implements LocationSource {
+  private final GoogleApiClient googleApiClient;
+
+  public FusedLocationSource(GoogleApiClient googleApiClient) {
+    this.googleApiClient = googleApiClient;
+  }
+
+  @Override
+  public void requestLocationUpdates(LocationRequest request, LocationCallback callback, @Nullable Looper looper) {
+    LocationServices.FusedLocationApi.requestLocationUpdates(googleApiClient, request, callback, looper);
+  }
+
+  @Override
+  public void removeLocationUpdates(LocationCallback callback) {
+    if (googleApiClient.isConnected())
+      LocationServices.FusedLocationApi.removeLocationUpdates(googleApiClient, callback);
+  }
+
+  @Override
+  public @Nullable Location getLastLocation() {
+    return LocationServices.FusedLocationApi.getLastLocation(googleApiClient);
+  }
+
+  @Override
+  public boolean isLocationAvailable() {
+    LocationAvailability availability = LocationServices.FusedLocationApi.getLocationAvailability(googleApiClient);
+    return availability != null && availability.isLocationAvailable();
+  }
+}
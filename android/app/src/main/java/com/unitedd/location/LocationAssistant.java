@@ -28,6 +28,8 @@ import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
@@ -41,12 +43,16 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.location.*;
+import com.unitedd.location.pipeline.PipelineStats;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A helper class that monitors the available location info on behalf of a requesting activity or application.
  */
 public class LocationAssistant
-  implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener, LocationListener {
+  implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
 
   /**
    * Delivers relevant events required to obtain (valid) location info.
@@ -98,6 +104,14 @@ public class LocationAssistant
      */
     void onNewLocationAvailable(Location location);
 
+    /**
+     * Called instead of {@link #onNewLocationAvailable(Location)} when the location provider delivers several
+     * locations at once, see {@link LocationAssistant#setMaxWaitTime(long)}.
+     *
+     * @param locations the valid locations of the batch, oldest first; only valid for the duration of the call
+     */
+    void onNewLocationsAvailable(List<Location> locations);
+
     /**
      * Called when the presence of mock locations was detected and {@link #allowMockLocations} is {@code false}.
      * You can use this callback to scold the user or do whatever. The user can usually disable mock locations by
@@ -146,6 +160,45 @@ public class LocationAssistant
     PASSIVE
   }
 
+  /**
+   * The steps of acquiring location updates, in the order they are normally passed through. The current state alone
+   * decides the next step of the acquisition.
+   */
+  public enum State {
+    /**
+     * Not started, or stopped
+     */
+    IDLE,
+    /**
+     * Waiting for the Google API client to connect
+     */
+    CONNECTING,
+    /**
+     * Waiting for the user to grant location permission
+     */
+    AWAITING_PERMISSION,
+    /**
+     * Waiting for the result of the location settings check
+     */
+    CHECKING_SETTINGS,
+    /**
+     * Waiting for the user to change the location settings
+     */
+    RESOLVING_SETTINGS,
+    /**
+     * All location providers are switched off; updates stay requested for when they are switched on again
+     */
+    PROVIDERS_DISABLED,
+    /**
+     * Updates have been requested, waiting for the first fix
+     */
+    AWAITING_FIRST_FIX,
+    /**
+     * Receiving location updates
+     */
+    TRACKING
+  }
+
   public enum ErrorType {
     /**
      * An error with the user's location settings
@@ -169,20 +222,53 @@ public class LocationAssistant
   private boolean allowMockLocations;
   private boolean verbose;
   private boolean quiet;
+  private Looper looper;
+  private PipelineStats stats = new PipelineStats();
+  private LocationSource locationSource;
+  private long maxWaitTime;
 
   // Internal state
-  private boolean permissionGranted;
-  private boolean permissionPromptDeclined;
-  private boolean locationRequested;
-  private boolean locationStatusOk;
-  private boolean changeSettings;
-  private boolean settingsPromptDeclined;
-  private boolean updatesRequested;
-  protected Location bestLocation;
+  // The user's answers to the dialogs, kept until the next reset so that they are not shown again
+  private volatile boolean permissionPromptDeclined;
+  private volatile boolean settingsPromptDeclined;
+  protected volatile Location bestLocation;
   private GoogleApiClient googleApiClient;
-  private LocationRequest locationRequest;
+  private volatile LocationRequest locationRequest;
   private Status locationStatus;
-  private boolean mockLocationsEnabled;
+  private volatile boolean mockLocationsEnabled;
+  private volatile int settingsPriority = Integer.MAX_VALUE;
+  private volatile long reconfiguredAt;
+
+  // Acquisition state machine
+  private static final long RECHECK_DELAY = 10000;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private volatile State state = State.IDLE;
+  private long stateEnteredAt = SystemClock.elapsedRealtime();
+  // Start of the time to first fix measurement, whose result is kept in the statistics
+  private volatile long startedAt;
+  private volatile long startedAtTime;
+  private boolean connectedBefore;
+  private final int[] transitionCounts = new int[State.values().length];
+  private final long[] timeInState = new long[State.values().length];
+
+  private final Runnable recheck = new Runnable() {
+    @Override
+    public void run() {
+      acquireLocation();
+    }
+  };
+
+  private final LocationCallback locationCallback = new LocationCallback() {
+    @Override
+    public void onLocationResult(LocationResult result) {
+      List<Location> locations = result.getLocations();
+      if (locations.size() == 1)
+        onLocationChanged(locations.get(0));
+      else
+        onLocationsChanged(locations);
+    }
+  };
+  private final List<Location> acceptedLocations = new ArrayList<>();
 
   // Mock location rejection
   private Location lastMockLocation;
@@ -203,20 +289,7 @@ public class LocationAssistant
     if (context instanceof Activity)
       this.activity = (Activity) context;
     this.listener = listener;
-    switch (accuracy) {
-      case HIGH:
-        priority = LocationRequest.PRIORITY_HIGH_ACCURACY;
-        break;
-      case MEDIUM:
-        priority = LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY;
-        break;
-      case LOW:
-        priority = LocationRequest.PRIORITY_LOW_POWER;
-        break;
-      case PASSIVE:
-      default:
-        priority = LocationRequest.PRIORITY_NO_POWER;
-    }
+    this.priority = toPriority(accuracy);
     this.updateInterval = updateInterval;
     this.allowMockLocations = allowMockLocations;
 
@@ -228,6 +301,7 @@ public class LocationAssistant
         .addApi(LocationServices.API)
         .build();
     }
+    locationSource = new FusedLocationSource(googleApiClient);
   }
 
   /**
@@ -249,11 +323,58 @@ public class LocationAssistant
     this.quiet = quiet;
   }
 
+  /**
+   * Sets the looper on whose thread location updates are delivered, e.g. that of a
+   * {@link android.os.HandlerThread}, so that processing them does not block the main thread.
+   * Must be called before {@link #start()}.
+   *
+   * @param looper the looper to deliver updates on, or {@code null} for the thread requesting the updates
+   */
+  public void setLooper(Looper looper) {
+    this.looper = looper;
+  }
+
+  /**
+   * Replaces the source of location updates, e.g. with a {@link TraceReplaySource}. By default, updates come from
+   * the fused location provider. Must be called before {@link #start()}.
+   *
+   * @param locationSource the source to request location updates from
+   */
+  public void setLocationSource(LocationSource locationSource) {
+    this.locationSource = locationSource;
+  }
+
+  /**
+   * Lets the location provider hold back fixes for up to the given time and deliver them in a single batch, so
+   * that the device does not need to wake up for every fix. Has no effect unless it is at least twice the update
+   * interval. Must be called before {@link #start()}.
+   *
+   * @param maxWaitTime the maximum time (in milliseconds) a fix may be held back, 0 to deliver fixes right away
+   */
+  public void setMaxWaitTime(long maxWaitTime) {
+    this.maxWaitTime = maxWaitTime;
+  }
+
+  /**
+   * Sets the statistics the LocationAssistant reports received and rejected fixes, provider latency, reconnects
+   * and time to first fix to.
+   *
+   * @param stats the statistics to update
+   */
+  public void setStats(PipelineStats stats) {
+    this.stats = stats;
+  }
+
   /**
    * Starts the LocationAssistant and makes it subscribe to valid location updates.
    * Call this method when your application or activity becomes awake.
    */
   public void start() {
+    startedAt = SystemClock.elapsedRealtime();
+    startedAtTime = System.currentTimeMillis();
+    stats.timeToFirstFix.set(-1);
+    connectedBefore = false;
+    transitionTo(State.CONNECTING);
     checkMockLocations();
     googleApiClient.connect();
   }
@@ -269,25 +390,31 @@ public class LocationAssistant
   public void register(Activity activity, Listener listener) {
     this.activity = activity;
     this.listener = listener;
-    checkInitialLocation();
+    if (hasRequestedUpdates())
+      checkInitialLocation();
     acquireLocation();
   }
 
+  /**
+   * Replaces the Activity used for permission and settings dialogs, without touching the running acquisition.
+   * Unlike {@link #register(Activity, Listener)}, this does not deliver the last known location again.
+   *
+   * @param activity the activity to show dialogs from, or {@code null} while there is none
+   */
+  public void setActivity(Activity activity) {
+    this.activity = activity;
+  }
+
   /**
    * Stops the LocationAssistant and makes it unsubscribe from any location updates.
    * Call this method right before your application or activity goes to sleep.
    */
   public void stop() {
-    if (googleApiClient.isConnected()) {
-      LocationServices.FusedLocationApi.removeLocationUpdates(googleApiClient, this);
+    locationSource.removeLocationUpdates(locationCallback);
+    if (googleApiClient.isConnected())
       googleApiClient.disconnect();
-    }
-    permissionGranted = false;
-    permissionPromptDeclined = false;
-    settingsPromptDeclined = false;
-    locationRequested = false;
-    locationStatusOk = false;
-    updatesRequested = false;
+    clearAcquisitionState();
+    transitionTo(State.IDLE);
   }
 
   /**
@@ -306,13 +433,115 @@ public class LocationAssistant
    * from scratch. Use this method to do so.
    */
   public void reset() {
-    permissionGranted = false;
-    permissionPromptDeclined = false;
-    settingsPromptDeclined = false;
-    locationRequested = false;
-    locationStatusOk = false;
-    updatesRequested = false;
-    acquireLocation();
+    if (state == State.IDLE) return;
+    clearAcquisitionState();
+    if (googleApiClient.isConnected())
+      checkPermission();
+    else
+      transitionTo(State.CONNECTING);
+  }
+
+  /**
+   * @return the current step of the location acquisition
+   */
+  public State getState() {
+    return state;
+  }
+
+  /**
+   * @return how often the given state has been entered
+   */
+  public synchronized int getTransitionCount(State state) {
+    return transitionCounts[state.ordinal()];
+  }
+
+  /**
+   * @return the total time (in milliseconds) spent in the given state, including the current stay
+   */
+  public synchronized long getTimeInState(State state) {
+    long time = timeInState[state.ordinal()];
+    if (state == this.state)
+      time += SystemClock.elapsedRealtime() - stateEnteredAt;
+    return time;
+  }
+
+  /**
+   * @return the time (in milliseconds) from {@link #start()} to the first valid fix taken after it, or -1 if there
+   * was none yet
+   */
+  public long getTimeToFirstFix() {
+    return stats.timeToFirstFix.get();
+  }
+
+  /**
+   * Measures the time to first fix again, from now until the next fix. Call this when the statistics are reset
+   * while the LocationAssistant is running, since the time from {@link #start()} would be meaningless by then.
+   */
+  public void restartTimeToFirstFix() {
+    if (startedAt > 0) {
+      startedAt = SystemClock.elapsedRealtime();
+      startedAtTime = System.currentTimeMillis();
+    }
+    stats.timeToFirstFix.set(-1);
+  }
+
+  /**
+   * Changes the accuracy and update interval of the location updates.
+   * If updates are already being received, they are re-requested with the new parameters right away, without
+   * reconnecting or asking for permission again. The location settings are only checked again if the new accuracy
+   * is stricter than the one they were last checked for; updates keep arriving at the old rate meanwhile.
+   * May be called from any thread; the change is applied on the main thread, like every step of the acquisition,
+   * so that listener callbacks are never made from the caller's thread.
+   *
+   * @param accuracy       the desired accuracy of the location updates
+   * @param updateInterval the interval (in milliseconds) at which the activity can process updates
+   */
+  public void setUpdateParameters(final Accuracy accuracy, final long updateInterval) {
+    if (Looper.myLooper() == handler.getLooper()) {
+      applyUpdateParameters(accuracy, updateInterval);
+      return;
+    }
+
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        applyUpdateParameters(accuracy, updateInterval);
+      }
+    });
+  }
+
+  private void applyUpdateParameters(Accuracy accuracy, long updateInterval) {
+    int priority = toPriority(accuracy);
+    if (priority == this.priority && updateInterval == this.updateInterval) return;
+    this.priority = priority;
+    this.updateInterval = updateInterval;
+    if (locationRequest == null) return;
+
+    reconfiguredAt = System.nanoTime();
+    locationRequest.setPriority(priority);
+    locationRequest.setInterval(updateInterval);
+    locationRequest.setFastestInterval(updateInterval);
+    // Before updates are requested, the acquisition goes on with the changed request
+    if (!hasRequestedUpdates()) return;
+
+    // Priority constants grow from the strictest to the loosest
+    if (priority < settingsPriority) {
+      // Redo the settings check for the new request, the current updates continue until it is re-issued
+      checkSettings();
+      return;
+    }
+
+    try {
+      // Requesting updates for the same listener replaces the previous request
+      locationSource.requestLocationUpdates(locationRequest, locationCallback, looper);
+    } catch (SecurityException e) {
+      if (!quiet)
+        Log.e(getClass().getSimpleName(), "Error while updating location request:\n " +
+          e.toString());
+      if (listener != null)
+        listener.onError(ErrorType.RETRIEVAL, "Could not update location request:\n" +
+          e.getMessage());
+    }
   }
 
   /**
@@ -325,13 +554,30 @@ public class LocationAssistant
     return bestLocation;
   }
 
+  /**
+   * Returns the last location known to the location source, which may stem from other apps.
+   * Unlike {@link #getBestLocation()}, it has not been checked for plausibility.
+   *
+   * @return the last known location, or {@code null} if there is none or the source cannot be queried right now
+   */
+  public Location getLastKnownLocation() {
+    if (!googleApiClient.isConnected() || !hasLocationPermission()) return null;
+    try {
+      return locationSource.getLastLocation();
+    } catch (SecurityException e) {
+      if (!quiet)
+        Log.e(getClass().getSimpleName(), "Error while requesting last location:\n " + e.toString());
+      return null;
+    }
+  }
+
   /**
    * The first time you call this method, it brings up a system dialog asking the user to give location permission to
    * the app. On subsequent calls, if the user has previously declined permission, this method invokes
    * {@link Listener#onExplainLocationPermission()}.
    */
   public void requestAndPossiblyExplainLocationPermission() {
-    if (permissionGranted) return;
+    if (hasLocationPermission()) return;
     if (activity == null) {
       if (!quiet)
         Log.e(getClass().getSimpleName(), "Need location permission, but no activity is registered! " +
@@ -379,14 +625,12 @@ public class LocationAssistant
    * @param resultCode  the result code returned to the activity (simply pass it on)
    */
   public void onActivityResult(int requestCode, int resultCode) {
-    if (requestCode != REQUEST_CHECK_SETTINGS) return;
-    changeSettings = false;
-    boolean isResultCodeOk = resultCode == Activity.RESULT_OK;
-    settingsPromptDeclined = !isResultCodeOk;
-    if (isResultCodeOk) {
-      locationStatusOk = true;
-    }
-    acquireLocation();
+    if (requestCode != REQUEST_CHECK_SETTINGS || state != State.RESOLVING_SETTINGS) return;
+    if (resultCode == Activity.RESULT_OK) {
+      settingsPriority = locationRequest.getPriority();
+      requestLocationUpdates();
+    } else
+      settingsPromptDeclined = true;
   }
 
   /**
@@ -396,8 +640,7 @@ public class LocationAssistant
    * Call this method only from within {@link Listener#onNeedLocationSettingsChange()}.
    */
   public void changeLocationSettings() {
-    if (settingsPromptDeclined) return;
-    if (locationStatus == null) return;
+    if (settingsPromptDeclined || state != State.RESOLVING_SETTINGS) return;
     if (activity == null) {
       if (!quiet)
         Log.e(getClass().getSimpleName(), "Need to resolve location status issues, but no activity is " +
@@ -414,8 +657,8 @@ public class LocationAssistant
       if (listener != null)
         listener.onError(ErrorType.SETTINGS, "Could not resolve location settings issue:\n" +
           e.getMessage());
-      changeSettings = false;
-      acquireLocation();
+      // Do not try again until the next reset, as if the user had declined
+      settingsPromptDeclined = true;
     }
   }
 
@@ -425,59 +668,87 @@ public class LocationAssistant
    * @return boolean
    */
   public boolean isChangingSettings() {
-    return changeSettings;
+    return state == State.RESOLVING_SETTINGS && !settingsPromptDeclined;
   }
 
+  /**
+   * Takes the next step of the acquisition from the current state. Called whenever something the current step waits
+   * for may have changed, and again a while after updates were requested.
+   */
   protected void acquireLocation() {
-    if (!permissionGranted) checkLocationPermission();
-    if (!permissionGranted) {
-      if (listener != null)
-        listener.onNeedLocationPermission();
-      else if (!quiet)
-        Log.e(getClass().getSimpleName(), "Need location permission, but no listener is registered! " +
-          "Specify a valid listener when constructing " + getClass().getSimpleName() +
-          " or register it explicitly with register().");
-      return;
-    }
-    if (!locationRequested) {
-      requestLocation();
+    // Any pending re-check is superseded by this one
+    handler.removeCallbacks(recheck);
+    if (state == State.IDLE) return;
+    if (!googleApiClient.isConnected()) {
+      transitionTo(State.CONNECTING);
       return;
     }
-    if (!locationStatusOk) {
-      if (changeSettings) {
-        if (listener != null)
-          listener.onNeedLocationSettingsChange();
-        else if (!quiet)
-          Log.e(getClass().getSimpleName(), "Need location settings change, but no listener is " +
-            "registered! Specify a valid listener when constructing " + getClass().getSimpleName() +
-            " or register it explicitly with register().");
-      } else
-        checkProviders();
-      return;
+
+    switch (state) {
+      case CONNECTING:
+      case AWAITING_PERMISSION:
+        checkPermission();
+        break;
+      case CHECKING_SETTINGS:
+        // The result of the settings check takes the next step
+        break;
+      case RESOLVING_SETTINGS:
+        promptSettingsChange();
+        break;
+      case PROVIDERS_DISABLED:
+        if (checkProviders())
+          transitionTo(State.AWAITING_FIRST_FIX);
+        break;
+      case AWAITING_FIRST_FIX:
+      case TRACKING:
+        // Something is wrong if no location is available - probably the providers are disabled
+        if (!checkLocationAvailability())
+          checkProviders();
+        break;
     }
-    if (!updatesRequested) {
-      requestLocationUpdates();
-      // Check back in a few
-      new Handler().postDelayed(new Runnable() {
-        @Override
-        public void run() {
-          acquireLocation();
-        }
-      }, 10000);
+  }
+
+  /**
+   * Moves on to the settings check if the app has location permission, or asks for it.
+   */
+  private void checkPermission() {
+    if (hasLocationPermission()) {
+      checkSettings();
       return;
     }
 
-    if (!checkLocationAvailability()) {
-      // Something is wrong - probably the providers are disabled.
-      checkProviders();
-    }
+    transitionTo(State.AWAITING_PERMISSION);
+    if (listener != null)
+      listener.onNeedLocationPermission();
+    else if (!quiet)
+      Log.e(getClass().getSimpleName(), "Need location permission, but no listener is registered! " +
+        "Specify a valid listener when constructing " + getClass().getSimpleName() +
+        " or register it explicitly with register().");
+  }
+
+  private void promptSettingsChange() {
+    if (listener != null)
+      listener.onNeedLocationSettingsChange();
+    else if (!quiet)
+      Log.e(getClass().getSimpleName(), "Need location settings change, but no listener is " +
+        "registered! Specify a valid listener when constructing " + getClass().getSimpleName() +
+        " or register it explicitly with register().");
   }
 
   protected void checkInitialLocation() {
-    if (!googleApiClient.isConnected() || !permissionGranted || !locationRequested || !locationStatusOk) return;
     try {
-      Location location = LocationServices.FusedLocationApi.getLastLocation(googleApiClient);
-      onLocationChanged(location);
+      final Location location = locationSource.getLastLocation();
+      if (looper == null) {
+        onLocationChanged(location, false);
+      } else {
+        // Deliver it on the same thread as all other updates
+        new Handler(looper).post(new Runnable() {
+          @Override
+          public void run() {
+            onLocationChanged(location, false);
+          }
+        });
+      }
     } catch (SecurityException e) {
       if (!quiet)
         Log.e(getClass().getSimpleName(), "Error while requesting last location:\n " +
@@ -502,18 +773,44 @@ public class LocationAssistant
       mockLocationsEnabled = false;
   }
 
-  private void checkLocationPermission() {
-    permissionGranted = Build.VERSION.SDK_INT < 23 ||
+  private static int toPriority(Accuracy accuracy) {
+    switch (accuracy) {
+      case HIGH:
+        return LocationRequest.PRIORITY_HIGH_ACCURACY;
+      case MEDIUM:
+        return LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY;
+      case LOW:
+        return LocationRequest.PRIORITY_LOW_POWER;
+      case PASSIVE:
+      default:
+        return LocationRequest.PRIORITY_NO_POWER;
+    }
+  }
+
+  private boolean hasLocationPermission() {
+    return Build.VERSION.SDK_INT < 23 ||
       ContextCompat.checkSelfPermission(context,
         Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
   }
 
-  private void requestLocation() {
-    if (!googleApiClient.isConnected() || !permissionGranted) return;
+  /**
+   * @return whether location updates are requested, i.e. the acquisition got past the settings check
+   */
+  private boolean hasRequestedUpdates() {
+    State state = this.state;
+    return state == State.AWAITING_FIRST_FIX || state == State.TRACKING || state == State.PROVIDERS_DISABLED;
+  }
+
+  /**
+   * Checks whether the location settings satisfy a new request with the current parameters.
+   */
+  private void checkSettings() {
+    transitionTo(State.CHECKING_SETTINGS);
     locationRequest = LocationRequest.create();
     locationRequest.setPriority(priority);
     locationRequest.setInterval(updateInterval);
     locationRequest.setFastestInterval(updateInterval);
+    locationRequest.setMaxWaitTime(maxWaitTime);
     LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder()
       .addLocationRequest(locationRequest);
     builder.setAlwaysShow(true);
@@ -522,10 +819,8 @@ public class LocationAssistant
   }
 
   private boolean checkLocationAvailability() {
-    if (!googleApiClient.isConnected() || !permissionGranted) return false;
     try {
-      LocationAvailability la = LocationServices.FusedLocationApi.getLocationAvailability(googleApiClient);
-      return la.isLocationAvailable();
+      return locationSource.isLocationAvailable();
     } catch (SecurityException e) {
       if (!quiet)
         Log.e(getClass().getSimpleName(), "Error while checking location availability:\n " + e.toString());
@@ -536,26 +831,36 @@ public class LocationAssistant
     }
   }
 
-  private void checkProviders() {
+  /**
+   * @return whether any location provider is enabled; if none is, the state changes to
+   * {@link State#PROVIDERS_DISABLED}
+   */
+  private boolean checkProviders() {
     // Do it the old fashioned way
     LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
     boolean gps = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER);
     boolean network = locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
-    if (gps || network) return;
+    if (gps || network) return true;
+    transitionTo(State.PROVIDERS_DISABLED);
     if (listener != null)
       listener.onFallBackToSystemSettings(onGoToLocationSettingsFromView, onGoToLocationSettingsFromDialog);
     else if (!quiet)
       Log.e(getClass().getSimpleName(), "Location providers need to be enabled, but no listener is " +
         "registered! Specify a valid listener when constructing " + getClass().getSimpleName() +
         " or register it explicitly with register().");
+    return false;
   }
 
-  private void requestLocationUpdates() {
-    if (!googleApiClient.isConnected() || !permissionGranted || !locationRequested) return;
+  /**
+   * Requests updates with the checked request and checks back in a while.
+   *
+   * @return whether updates were requested
+   */
+  private boolean requestLocationUpdates() {
+    // Check back in a few, to retry or to notice disabled providers
+    handler.postDelayed(recheck, RECHECK_DELAY);
     try {
-      LocationServices.FusedLocationApi.requestLocationUpdates(googleApiClient, locationRequest, this);
-      updatesRequested = true;
-      listener.onUpdatesRequested();
+      locationSource.requestLocationUpdates(locationRequest, locationCallback, looper);
     } catch (SecurityException e) {
       if (!quiet)
         Log.e(getClass().getSimpleName(), "Error while requesting location updates:\n " +
@@ -563,7 +868,40 @@ public class LocationAssistant
       if (listener != null)
         listener.onError(ErrorType.RETRIEVAL, "Could not request location updates:\n" +
           e.getMessage());
+      // The permission was revoked meanwhile
+      transitionTo(State.AWAITING_PERMISSION);
+      return false;
     }
+
+    transitionTo(State.AWAITING_FIRST_FIX);
+    if (listener != null)
+      listener.onUpdatesRequested();
+    return true;
+  }
+
+  private void clearAcquisitionState() {
+    handler.removeCallbacks(recheck);
+    permissionPromptDeclined = false;
+    settingsPromptDeclined = false;
+    settingsPriority = Integer.MAX_VALUE;
+  }
+
+  /**
+   * Moves on to tracking with the first live fix of the requested updates. Fixes may be delivered on another thread
+   * than the one driving the acquisition, so the state is checked and changed in one step.
+   */
+  private synchronized void transitionToTracking() {
+    if (state == State.AWAITING_FIRST_FIX || state == State.PROVIDERS_DISABLED)
+      transitionTo(State.TRACKING);
+  }
+
+  private synchronized void transitionTo(State next) {
+    if (next == state) return;
+    long now = SystemClock.elapsedRealtime();
+    timeInState[state.ordinal()] += now - stateEnteredAt;
+    transitionCounts[next.ordinal()]++;
+    stateEnteredAt = now;
+    state = next;
   }
 
   private DialogInterface.OnClickListener onGoToLocationSettingsFromDialog = new DialogInterface.OnClickListener() {
@@ -604,7 +942,7 @@ public class LocationAssistant
         " or register it explicitly with register().");
   }
 
-  private boolean isLocationPlausible(Location location) {
+  private synchronized boolean isLocationPlausible(Location location) {
     if (location == null) return false;
 
     boolean isMock = mockLocationsEnabled || (Build.VERSION.SDK_INT >= 18 && location.isFromMockProvider());
@@ -627,34 +965,103 @@ public class LocationAssistant
 
   @Override
   public void onConnected(@Nullable Bundle bundle) {
+    if (connectedBefore)
+      stats.reconnects.incrementAndGet();
+    connectedBefore = true;
     acquireLocation();
   }
 
   @Override
   public void onConnectionSuspended(int i) {
+    transitionTo(State.CONNECTING);
   }
 
-  @Override
+  /**
+   * Handles a single location from the location source.
+   */
   public void onLocationChanged(Location location) {
-    if (location == null) return;
+    onLocationChanged(location, true);
+  }
+
+  /**
+   * Handles a single location, either from the location source or the cached initial one.
+   *
+   * @param live whether the location was delivered by the location source rather than read from its cache
+   */
+  private void onLocationChanged(Location location, boolean live) {
+    if (!accept(location, live)) return;
+    if (listener != null)
+      listener.onNewLocationAvailable(location);
+    else if (!quiet)
+      Log.w(getClass().getSimpleName(), "New location is available, but no listener is registered!\n" +
+        "Specify a valid listener when constructing " + getClass().getSimpleName() +
+        " or register it explicitly with register().");
+  }
+
+  /**
+   * Handles a batch of locations held back by the location provider in one pass, handing the valid ones to the
+   * listener in a single call.
+   */
+  private void onLocationsChanged(List<Location> locations) {
+    for (int i = 0; i < locations.size(); i++) {
+      if (accept(locations.get(i), true))
+        acceptedLocations.add(locations.get(i));
+    }
+    if (acceptedLocations.isEmpty()) return;
+
+    if (listener != null)
+      listener.onNewLocationsAvailable(acceptedLocations);
+    else if (!quiet)
+      Log.w(getClass().getSimpleName(), "New locations are available, but no listener is registered!\n" +
+        "Specify a valid listener when constructing " + getClass().getSimpleName() +
+        " or register it explicitly with register().");
+    acceptedLocations.clear();
+  }
+
+  /**
+   * Updates the statistics and the acquisition state with a location, unless it is rejected as a mock location.
+   *
+   * @param live whether the location was delivered by the location source rather than read from its cache
+   * @return whether the location is valid
+   */
+  private boolean accept(Location location, boolean live) {
+    if (location == null) return false;
+    stats.received.incrementAndGet();
+    if (Build.VERSION.SDK_INT >= 17)
+      stats.providerToCallback.record(SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos());
+
     boolean plausible = isLocationPlausible(location);
     if (verbose && !quiet)
       Log.i(getClass().getSimpleName(), location.toString() +
         (plausible ? " -> plausible" : " -> not plausible"));
 
     if (!allowMockLocations && !plausible) {
+      stats.rejected.incrementAndGet();
       if (listener != null) listener.onMockLocationsDetected(onGoToDevSettingsFromView,
         onGoToDevSettingsFromDialog);
-      return;
+      return false;
     }
 
     bestLocation = location;
-    if (listener != null)
-      listener.onNewLocationAvailable(location);
-    else if (!quiet)
-      Log.w(getClass().getSimpleName(), "New location is available, but no listener is registered!\n" +
-        "Specify a valid listener when constructing " + getClass().getSimpleName() +
-        " or register it explicitly with register().");
+    if (reconfiguredAt != 0) {
+      stats.reconfigurationGap.record(System.nanoTime() - reconfiguredAt);
+      reconfiguredAt = 0;
+    }
+    // A cached location says nothing about how long it takes to get a fix
+    if (live && startedAt > 0 && stats.timeToFirstFix.get() < 0 && isTakenAfterStart(location))
+      stats.timeToFirstFix.compareAndSet(-1, SystemClock.elapsedRealtime() - startedAt);
+    if (live)
+      transitionToTracking();
+    return true;
+  }
+
+  /**
+   * @return whether the location was taken after {@link #start()}, rather than being left over from before
+   */
+  private boolean isTakenAfterStart(Location location) {
+    if (Build.VERSION.SDK_INT >= 17)
+      return location.getElapsedRealtimeNanos() >= startedAt * 1000000L;
+    return location.getTime() >= startedAtTime;
   }
 
   @Override
@@ -670,22 +1077,26 @@ public class LocationAssistant
   ResultCallback<LocationSettingsResult> onLocationSettingsReceived = new ResultCallback<LocationSettingsResult>() {
     @Override
     public void onResult(@NonNull LocationSettingsResult result) {
-      locationRequested = true;
+      // Stopped, disconnected or checking again meanwhile
+      if (state != State.CHECKING_SETTINGS) return;
       locationStatus = result.getStatus();
       switch (locationStatus.getStatusCode()) {
         case LocationSettingsStatusCodes.SUCCESS:
-          locationStatusOk = true;
+          settingsPriority = locationRequest.getPriority();
           checkInitialLocation();
+          requestLocationUpdates();
           break;
         case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
-          locationStatusOk = false;
-          changeSettings = true;
+          transitionTo(State.RESOLVING_SETTINGS);
+          promptSettingsChange();
           break;
         case LocationSettingsStatusCodes.SETTINGS_CHANGE_UNAVAILABLE:
-          locationStatusOk = false;
+        default:
+          // The user cannot fix the settings from here, so take what the current ones give
+          if (requestLocationUpdates())
+            checkProviders();
           break;
       }
-      acquireLocation();
     }
   };
 
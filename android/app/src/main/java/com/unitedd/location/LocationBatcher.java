@@ -0,0 +1,132 @@
+package com.unitedd.location;
+
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.unitedd.location.pipeline.ColumnarEncoder;
+import com.unitedd.location.pipeline.Fix;
+
+/**
+ * Buffers serialized fixes and hands them over as a single array once either the batch size or the maximum
+ * batch latency is reached, so that a burst of fixes only crosses the bridge once.
+ * With a {@link ColumnarEncoder}, fixes are buffered unserialized and handed over in the compact columnar format.
+ */
+class LocationBatcher {
+
+  interface Callback {
+    /**
+     * Called with the buffered fixes, in the order they were added.
+     *
+     * @param locations the batch, never empty
+     */
+    void onBatchReady(WritableArray locations);
+
+    /**
+     * Called with the buffered fixes in the compact format: the field mask of the optional columns as
+     * {@code fields}, the number of fixes as {@code count} and the columnar values as {@code values}.
+     *
+     * @param batch the batch, never empty
+     */
+    void onCompactBatchReady(WritableMap batch);
+  }
+
+  private final Handler mHandler;
+  private final Callback mCallback;
+  private int mBatchSize = 1;
+  private long mMaxBatchLatency = 0;
+  private WritableArray mPending;
+  private int mPendingCount = 0;
+  private @Nullable ColumnarEncoder mEncoder;
+  private double[] mValues = new double[0];
+
+  private final Runnable mFlushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  LocationBatcher(Handler handler, Callback callback) {
+    mHandler = handler;
+    mCallback = callback;
+  }
+
+  /**
+   * @param batchSize       number of fixes after which the batch is flushed
+   * @param maxBatchLatency maximum time (in milliseconds) the first fix of a batch may wait, 0 for no limit
+   * @param encoder         the encoder for the compact format, or {@code null} to batch maps
+   */
+  synchronized void configure(int batchSize, long maxBatchLatency, @Nullable ColumnarEncoder encoder) {
+    flush();
+    mBatchSize = Math.max(1, batchSize);
+    mMaxBatchLatency = Math.max(0, maxBatchLatency);
+    mEncoder = encoder;
+  }
+
+  /**
+   * @return whether fixes are handed over in the compact format, in which case they must be added unserialized
+   */
+  synchronized boolean isCompact() {
+    return mEncoder != null;
+  }
+
+  /**
+   * @return whether fixes are delivered in batches rather than one by one
+   */
+  synchronized boolean isBatching() {
+    return mBatchSize > 1 || mMaxBatchLatency > 0;
+  }
+
+  synchronized void add(WritableMap location) {
+    if (mPending == null) {
+      mPending = Arguments.createArray();
+      if (mMaxBatchLatency > 0)
+        mHandler.postDelayed(mFlushRunnable, mMaxBatchLatency);
+    }
+
+    mPending.pushMap(location);
+    if (++mPendingCount >= mBatchSize)
+      flush();
+  }
+
+  synchronized void add(Fix fix) {
+    if (mEncoder == null) return;
+    if (mEncoder.size() == 0 && mMaxBatchLatency > 0)
+      mHandler.postDelayed(mFlushRunnable, mMaxBatchLatency);
+
+    mEncoder.add(fix);
+    if (mEncoder.size() >= mBatchSize)
+      flush();
+  }
+
+  synchronized void flush() {
+    mHandler.removeCallbacks(mFlushRunnable);
+    if (mEncoder != null && mEncoder.size() > 0) {
+      int count = mEncoder.size();
+      int length = count * mEncoder.getColumnCount();
+      if (mValues.length < length)
+        mValues = new double[length];
+      mEncoder.encode(mValues);
+      mEncoder.clear();
+
+      WritableArray values = Arguments.createArray();
+      for (int i = 0; i < length; i++)
+        values.pushDouble(mValues[i]);
+
+      WritableMap batch = Arguments.createMap();
+      batch.putInt("fields", mEncoder.getFields());
+      batch.putInt("count", count);
+      batch.putArray("values", values);
+      mCallback.onCompactBatchReady(batch);
+    }
+    if (mPending == null) return;
+
+    WritableArray locations = mPending;
+    mPending = null;
+    mPendingCount = 0;
+    mCallback.onBatchReady(locations);
+  }
+
+}
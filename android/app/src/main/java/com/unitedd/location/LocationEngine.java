@@ -0,0 +1,370 @@
+package com.unitedd.location;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.View;
+import com.unitedd.location.journal.LocationJournal;
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.PipelineStats;
+import com.unitedd.location.pipeline.TrackBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Owns the location client for the whole process, independently of any Activity or React instance, and is kept
+ * alive by {@link BackgroundLocationService} while it runs. The React module attaches to it as a consumer; until
+ * the consumer takes over with {@link #handOver()}, fixes are buffered in memory and, if journaling is enabled,
+ * written to the journal so that they survive the process being killed.
+ */
+final class LocationEngine implements LocationAssistant.Listener {
+
+  /**
+   * Receives all events of the location client, and the fixes that were buffered while it was detached.
+   */
+  interface Consumer extends LocationAssistant.Listener {
+    /**
+     * Called for each fix that arrived before the consumer took over, oldest first.
+     *
+     * @param fix the buffered fix, only valid for the duration of the call
+     */
+    void onBufferedFix(Fix fix);
+  }
+
+  private static final String TAG = "RCT_BACKGROUND_LOCATION";
+  private static final int BUFFER_SIZE = 10000;
+  private static @Nullable LocationEngine sInstance;
+
+  private final Context mContext;
+  private final TrackBuffer mBuffer = new TrackBuffer(BUFFER_SIZE);
+  private final Fix mFix = new Fix();
+  private volatile @Nullable Consumer mConsumer;
+  private boolean isConsuming = false;
+  private boolean isJournaling = false;
+  private @Nullable LocationJournal mJournal;
+  private @Nullable LocationJournal mUploadJournal;
+  private @Nullable LocationAssistant mAssistant;
+  private @Nullable HandlerThread mProcessingThread;
+  private volatile boolean isRunning = false;
+  private @Nullable String mNotificationTitle;
+  private @Nullable String mNotificationText;
+
+  private LocationEngine(Context context) {
+    mContext = context.getApplicationContext();
+  }
+
+  static synchronized LocationEngine getInstance(Context context) {
+    if (sInstance == null)
+      sInstance = new LocationEngine(context);
+    return sInstance;
+  }
+
+  /**
+   * Attaches a consumer. It receives all events right away, but fixes only once it calls {@link #handOver()}.
+   */
+  synchronized void attach(Consumer consumer) {
+    mConsumer = consumer;
+    isConsuming = false;
+  }
+
+  synchronized void detach(Consumer consumer) {
+    if (mConsumer == consumer) {
+      mConsumer = null;
+      isConsuming = false;
+    }
+  }
+
+  /**
+   * @param journaling whether fixes buffered before the consumer takes over are also written to the journal
+   */
+  synchronized void setJournaling(boolean journaling) {
+    isJournaling = journaling;
+  }
+
+  /**
+   * @return the journal shared by the engine and its consumers, or {@code null} if it could not be opened
+   */
+  synchronized @Nullable LocationJournal getJournal() {
+    if (mJournal == null) {
+      File directory = new File(mContext.getFilesDir(), "location-journal");
+      try {
+        mJournal = new LocationJournal(directory, 4096, 16);
+      } catch (IOException e) {
+        Log.e(TAG, "Could not open location journal:\n" + e.toString());
+      }
+    }
+    return mJournal;
+  }
+
+  /**
+   * @return the journal holding the fixes not uploaded yet, kept apart from {@link #getJournal()} as it is
+   * acknowledged by the uploader rather than by JS; {@code null} if it could not be opened
+   */
+  synchronized @Nullable LocationJournal getUploadJournal() {
+    if (mUploadJournal == null) {
+      File directory = new File(mContext.getFilesDir(), "upload-journal");
+      try {
+        mUploadJournal = new LocationJournal(directory, 4096, 16);
+      } catch (IOException e) {
+        Log.e(TAG, "Could not open upload journal:\n" + e.toString());
+      }
+    }
+    return mUploadJournal;
+  }
+
+  /**
+   * @return the assistant of the current or last run, or {@code null} if the engine never ran
+   */
+  @Nullable LocationAssistant getAssistant() {
+    return mAssistant;
+  }
+
+  boolean isRunning() {
+    return isRunning;
+  }
+
+  /**
+   * @return the looper fixes are delivered on
+   */
+  Looper getLooper() {
+    return mProcessingThread != null ? mProcessingThread.getLooper() : Looper.getMainLooper();
+  }
+
+  /**
+   * @param activity the activity to show permission and settings dialogs from, or {@code null} while there is none
+   */
+  void setActivity(@Nullable Activity activity) {
+    if (mAssistant != null)
+      mAssistant.setActivity(activity);
+  }
+
+  /**
+   * Sets the content of the notification shown while the foreground service runs; takes effect on the next start.
+   *
+   * @param title the title, or {@code null} for the app name
+   * @param text  the text, or {@code null} for a default
+   */
+  void setNotification(@Nullable String title, @Nullable String text) {
+    mNotificationTitle = title;
+    mNotificationText = text;
+  }
+
+  /**
+   * Starts the location client and the foreground service. If the engine is already running, e.g. for a previous
+   * React instance, the live connection is kept and only the request parameters are updated; the looper, the
+   * maximum wait time and the location source of the running client stay as they are.
+   *
+   * @param activity            the activity to show permission and settings dialogs from, or {@code null}
+   * @param maxWaitTime         the time (in milliseconds) the provider may hold back fixes to batch them, 0 to disable
+   * @param processInBackground whether to deliver fixes on a dedicated thread rather than the main thread
+   * @param locationSource      the source to request updates from, or {@code null} for the fused location provider
+   * @return whether the engine was already running
+   */
+  boolean start(@Nullable Activity activity, LocationAssistant.Accuracy accuracy, long updateInterval,
+                long maxWaitTime, boolean allowMockLocations, boolean processInBackground, @Nullable LocationSource locationSource,
+                PipelineStats stats) {
+    if (isRunning && mAssistant != null) {
+      mAssistant.setActivity(activity);
+      mAssistant.setStats(stats);
+      mAssistant.setUpdateParameters(accuracy, updateInterval);
+      return true;
+    }
+
+    if (processInBackground && mProcessingThread == null) {
+      mProcessingThread = new HandlerThread("BackgroundLocationProcessing");
+      mProcessingThread.start();
+    }
+
+    mAssistant = new LocationAssistant(mContext, this, accuracy, updateInterval, allowMockLocations);
+    mAssistant.setActivity(activity);
+    mAssistant.setQuiet(true);
+    mAssistant.setStats(stats);
+    mAssistant.setMaxWaitTime(maxWaitTime);
+    if (locationSource != null)
+      mAssistant.setLocationSource(locationSource);
+    mAssistant.setLooper(processInBackground ? mProcessingThread.getLooper() : null);
+    isRunning = true;
+    mAssistant.start();
+    mContext.startService(new Intent(mContext, BackgroundLocationService.class)
+      .putExtra(BackgroundLocationService.EXTRA_TITLE, mNotificationTitle)
+      .putExtra(BackgroundLocationService.EXTRA_TEXT, mNotificationText));
+    return false;
+  }
+
+  void stop() {
+    if (!isRunning) return;
+    isRunning = false;
+    if (mAssistant != null)
+      mAssistant.stop();
+    mContext.stopService(new Intent(mContext, BackgroundLocationService.class));
+
+    if (mProcessingThread != null) {
+      final HandlerThread thread = mProcessingThread;
+      mProcessingThread = null;
+      // Quit after anything that is still queued on it, such as a final flush
+      new Handler(thread.getLooper()).post(new Runnable() {
+        @Override
+        public void run() {
+          thread.quit();
+        }
+      });
+    }
+
+    synchronized (this) {
+      mBuffer.clear();
+      isConsuming = false;
+    }
+  }
+
+  /**
+   * Hands the buffered fixes over to the attached consumer, which receives all fixes from then on. Runs under the
+   * same lock as the delivery of live fixes, so that none can overtake the buffered ones.
+   */
+  synchronized void handOver() {
+    if (mConsumer == null) return;
+    for (int age = mBuffer.size() - 1; age >= 0; age--) {
+      mBuffer.get(age, mFix);
+      mConsumer.onBufferedFix(mFix);
+    }
+    mBuffer.clear();
+    isConsuming = true;
+  }
+
+  @Override
+  public void onNewLocationAvailable(Location location) {
+    // Delivered under the lock so that live fixes cannot overtake a hand-over
+    synchronized (this) {
+      if (mConsumer != null && isConsuming)
+        mConsumer.onNewLocationAvailable(location);
+      else
+        buffer(location);
+    }
+  }
+
+  @Override
+  public void onNewLocationsAvailable(List<Location> locations) {
+    synchronized (this) {
+      if (mConsumer != null && isConsuming) {
+        mConsumer.onNewLocationsAvailable(locations);
+        return;
+      }
+
+      for (int i = 0; i < locations.size(); i++)
+        buffer(locations.get(i));
+    }
+  }
+
+  private void buffer(Location location) {
+    toFix(location, mFix);
+    mBuffer.append(mFix);
+
+    // The buffer is lost with the process, the journal is not
+    if (isJournaling) {
+      LocationJournal journal = getJournal();
+      if (journal != null)
+        journal.append(mFix);
+    }
+  }
+
+  /**
+   * Copies a location into a fix, resetting everything the pipeline may have set on it.
+   */
+  static void toFix(Location location, Fix fix) {
+    fix.latitude = location.getLatitude();
+    fix.longitude = location.getLongitude();
+    fix.altitude = location.getAltitude();
+    fix.accuracy = location.getAccuracy();
+    fix.speed = location.getSpeed();
+    fix.bearing = location.getBearing();
+    fix.hasSpeed = location.hasSpeed();
+    fix.hasBearing = location.hasBearing();
+    fix.isSpeedDerived = false;
+    fix.isBearingDerived = false;
+    fix.time = location.getTime();
+    fix.elapsedRealtimeNanos = Build.VERSION.SDK_INT >= 17
+      ? location.getElapsedRealtimeNanos()
+      : location.getTime() * 1000000L;
+    fix.hasSmoothed = false;
+
+    String provider = location.getProvider();
+    if ("fused".equals(provider))
+      fix.provider = Fix.PROVIDER_FUSED;
+    else if (LocationManager.GPS_PROVIDER.equals(provider))
+      fix.provider = Fix.PROVIDER_GPS;
+    else if (LocationManager.NETWORK_PROVIDER.equals(provider))
+      fix.provider = Fix.PROVIDER_NETWORK;
+    else if (LocationManager.PASSIVE_PROVIDER.equals(provider))
+      fix.provider = Fix.PROVIDER_PASSIVE;
+    else
+      fix.provider = Fix.PROVIDER_UNKNOWN;
+  }
+
+  @Override
+  public void onUpdatesRequested() {
+    Consumer consumer = mConsumer;
+    if (consumer != null)
+      consumer.onUpdatesRequested();
+  }
+
+  @Override
+  public void onNeedLocationPermission() {
+    Consumer consumer = mConsumer;
+    if (consumer != null)
+      consumer.onNeedLocationPermission();
+  }
+
+  @Override
+  public void onExplainLocationPermission() {
+    Consumer consumer = mConsumer;
+    if (consumer != null)
+      consumer.onExplainLocationPermission();
+  }
+
+  @Override
+  public void onNeedLocationSettingsChange() {
+    Consumer consumer = mConsumer;
+    if (consumer != null)
+      consumer.onNeedLocationSettingsChange();
+  }
+
+  @Override
+  public void onFallBackToSystemSettings(View.OnClickListener fromView, DialogInterface.OnClickListener fromDialog) {
+    Consumer consumer = mConsumer;
+    if (consumer != null)
+      consumer.onFallBackToSystemSettings(fromView, fromDialog);
+  }
+
+  @Override
+  public void onMockLocationsDetected(View.OnClickListener fromView, DialogInterface.OnClickListener fromDialog) {
+    Consumer consumer = mConsumer;
+    if (consumer != null)
+      consumer.onMockLocationsDetected(fromView, fromDialog);
+  }
+
+  @Override
+  public void onError(LocationAssistant.ErrorType type, String message) {
+    Consumer consumer = mConsumer;
+    if (consumer != null)
+      consumer.onError(type, message);
+    else
+      Log.e(TAG, "Location error while detached:\n" + message);
+  }
+
+  @Override
+  public boolean onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+    Consumer consumer = mConsumer;
+    return consumer != null && consumer.onRequestPermissionsResult(requestCode, permissions, grantResults);
+  }
+
+}
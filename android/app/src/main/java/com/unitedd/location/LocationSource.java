@@ -0,0 +1,37 @@
+package com.unitedd.location;
+
+import android.location.Location;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Where the {@link LocationAssistant} gets its fixes from.
+ */
+public interface LocationSource {
+  /**
+   * Starts delivering fixes to the callback, replacing any previous request for the same callback.
+   * A single result may hold several fixes, e.g. when the request sets a maximum wait time.
+   *
+   * @param request  the requested interval, priority and maximum wait time
+   * @param callback the callback to deliver fixes to
+   * @param looper   the looper to deliver fixes on, or {@code null} for the calling thread
+   */
+  void requestLocationUpdates(LocationRequest request, LocationCallback callback, @Nullable Looper looper);
+
+  /**
+   * Stops delivering fixes to the callback.
+   */
+  void removeLocationUpdates(LocationCallback callback);
+
+  /**
+   * @return the most recent fix known to the source, or {@code null}
+   */
+  @Nullable Location getLastLocation();
+
+  /**
+   * @return whether the source is currently able to produce fixes
+   */
+  boolean isLocationAvailable();
+}
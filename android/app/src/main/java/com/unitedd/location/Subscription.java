@@ -0,0 +1,70 @@
+package com.unitedd.location;
+
+import com.unitedd.location.pipeline.DistanceGate;
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.FixSink;
+
+/**
+ * A named consumer of the shared location request. The request runs at the strictest settings of all
+ * subscriptions, so each subscription downsamples the shared stream to its own interval and distance filter.
+ * <p>
+ * Only an interval and accuracy the subscriber set explicitly bind the shared request under adaptive sampling. A
+ * subscription that left its interval at the default takes every fix of the shared request, so that it follows
+ * the sampling tier.
+ */
+class Subscription implements FixSink {
+
+  final String id;
+  final LocationAssistant.Accuracy accuracy;
+  final long updateInterval;
+  final double distanceFilter;
+  final long minUpdateInterval;
+  final boolean isAccuracySet;
+  final boolean isIntervalSet;
+  private final DistanceGate mGate;
+  private boolean isAccepted;
+
+  /**
+   * @param id                the name of the subscription
+   * @param accuracy          the accuracy this subscription needs
+   * @param updateInterval    the interval (in milliseconds) at which this subscription wants updates
+   * @param distanceFilter    minimum distance (in metres) between two fixes, 0 to disable
+   * @param minUpdateInterval minimum time (in milliseconds) between two fixes, 0 to disable
+   * @param isAccuracySet     whether the subscriber asked for the accuracy explicitly
+   * @param isIntervalSet     whether the subscriber asked for the interval explicitly
+   */
+  Subscription(String id, LocationAssistant.Accuracy accuracy, long updateInterval, double distanceFilter,
+               long minUpdateInterval, boolean isAccuracySet, boolean isIntervalSet) {
+    this.id = id;
+    this.accuracy = accuracy;
+    this.updateInterval = updateInterval;
+    this.distanceFilter = distanceFilter;
+    this.minUpdateInterval = minUpdateInterval;
+    this.isAccuracySet = isAccuracySet;
+    this.isIntervalSet = isIntervalSet;
+
+    // Fixes of the shared request arrive with some jitter, so leave a bit of slack to not skip every other one
+    // when the shared interval matches this one
+    long interval = isIntervalSet ? updateInterval * 9 / 10 : 0;
+    mGate = new DistanceGate(distanceFilter, Math.max(minUpdateInterval, interval));
+    mGate.then(this);
+  }
+
+  /**
+   * Offers a fix of the shared stream to this subscription.
+   *
+   * @param fix the current fix
+   * @return whether the fix passed this subscription's interval and distance filter
+   */
+  boolean accept(Fix fix) {
+    isAccepted = false;
+    mGate.onFix(fix);
+    return isAccepted;
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    isAccepted = true;
+  }
+
+}
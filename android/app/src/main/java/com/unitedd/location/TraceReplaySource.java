@@ -0,0 +1,160 @@
+package com.unitedd.location;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.TraceReader;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays a recorded GPX, NMEA or CSV trace (see {@link TraceReader}) through the regular location callback,
+ * either in real time, accelerated, or as fast as the callback can take the fixes. The requested interval,
+ * priority and maximum wait time are ignored; fixes are delivered with the spacing they were recorded with, or in
+ * batches when replaying as fast as possible.
+ */
+public class TraceReplaySource implements LocationSource {
+  private static final String TAG = "TraceReplaySource";
+  private static final String PROVIDER = "replay";
+  private static final int FIXES_PER_MESSAGE = 100;
+
+  private final File trace;
+  private final double speed;
+
+  private @Nullable TraceReader reader;
+  private @Nullable Handler handler;
+  private @Nullable LocationCallback callback;
+  private @Nullable Location lastLocation;
+  private final Fix fix = new Fix();
+  private boolean hasPending;
+  private long startNanos;
+
+  /**
+   * @param trace the trace file, its format is guessed from the extension
+   * @param speed replay speed relative to the recording, e.g. 1 for real time; 0 to replay as fast as possible
+   */
+  public TraceReplaySource(File trace, double speed) {
+    this.trace = trace;
+    this.speed = speed;
+  }
+
+  @Override
+  public void requestLocationUpdates(LocationRequest request, LocationCallback callback, @Nullable Looper looper) {
+    if (this.callback == callback) return;
+    removeLocationUpdates(this.callback);
+
+    try {
+      reader = new TraceReader(new FileReader(trace), TraceReader.formatOf(trace.getName()));
+      hasPending = reader.next(fix);
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Could not read trace " + trace + ":\n" + e.toString());
+      close();
+      return;
+    }
+
+    this.callback = callback;
+    this.handler = new Handler(looper != null ? looper
+      : Looper.myLooper() != null ? Looper.myLooper() : Looper.getMainLooper());
+    startNanos = SystemClock.elapsedRealtime() * 1000000L;
+    handler.post(deliver);
+  }
+
+  @Override
+  public void removeLocationUpdates(LocationCallback callback) {
+    if (callback == null || callback != this.callback) return;
+    if (handler != null)
+      handler.removeCallbacks(deliver);
+    close();
+  }
+
+  @Override
+  public @Nullable Location getLastLocation() {
+    return lastLocation;
+  }
+
+  @Override
+  public boolean isLocationAvailable() {
+    return callback != null && hasPending;
+  }
+
+  private final Runnable deliver = new Runnable() {
+    @Override
+    public void run() {
+      if (callback == null || handler == null || reader == null) return;
+
+      try {
+        if (speed > 0) {
+          long recordedNanos = fix.elapsedRealtimeNanos;
+          lastLocation = toLocation(fix);
+          callback.onLocationResult(LocationResult.create(Collections.singletonList(lastLocation)));
+          // The callback may have stopped the replay
+          if (reader == null) return;
+          hasPending = reader.next(fix);
+
+          if (hasPending) {
+            long delay = (long) ((fix.elapsedRealtimeNanos - recordedNanos) / speed / 1000000);
+            handler.postDelayed(this, Math.max(0, delay));
+          }
+        } else {
+          List<Location> batch = new ArrayList<>(FIXES_PER_MESSAGE);
+          for (int i = 0; hasPending && i < FIXES_PER_MESSAGE; i++) {
+            batch.add(lastLocation = toLocation(fix));
+            hasPending = reader.next(fix);
+          }
+          callback.onLocationResult(LocationResult.create(batch));
+          if (reader == null) return;
+        }
+      } catch (IOException | RuntimeException e) {
+        // A malformed line must not take the looper thread down with it, so it ends the replay like an I/O error
+        Log.e(TAG, "Could not read trace " + trace + ":\n" + e.toString());
+        hasPending = false;
+      }
+
+      if (!hasPending)
+        close();
+      else if (speed <= 0)
+        handler.post(this);
+    }
+  };
+
+  private Location toLocation(Fix fix) {
+    Location location = new Location(PROVIDER);
+    location.setLatitude(fix.latitude);
+    location.setLongitude(fix.longitude);
+    location.setAltitude(fix.altitude);
+    location.setAccuracy(fix.accuracy);
+    if (fix.hasSpeed)
+      location.setSpeed(fix.speed);
+    if (fix.hasBearing)
+      location.setBearing(fix.bearing);
+    location.setTime(fix.time);
+    // Keep the recorded spacing so that time-based stages behave as they did during the recording
+    if (Build.VERSION.SDK_INT >= 17)
+      location.setElapsedRealtimeNanos(startNanos + fix.elapsedRealtimeNanos);
+    return location;
+  }
+
+  private void close() {
+    callback = null;
+    hasPending = false;
+    if (reader != null) {
+      try {
+        reader.close();
+      } catch (IOException ignored) {}
+      reader = null;
+    }
+  }
+}
@@ -2,5 +2,12 @@ package com.unitedd.location.constant;
 
 public class EventType {
   public static final String LOCATION = "location";
+  public static final String LOCATIONS = "locations";
   public static final String ERROR = "error";
+  public static final String UPLOAD = "upload";
+  public static final String TIER_CHANGE = "tierChange";
+  public static final String GEOFENCE = "geofence";
+  public static final String TRIP_START = "tripStart";
+  public static final String STOP_START = "stopStart";
+  public static final String TRIP_END = "tripEnd";
 }
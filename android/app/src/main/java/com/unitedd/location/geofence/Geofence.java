@@ -0,0 +1,104 @@
+package com.unitedd.location.geofence;
+
+import com.unitedd.location.pipeline.Geo;
+
+import java.util.Arrays;
+
+/**
+ * A circular or polygonal region that is monitored for enter, exit and dwell transitions.
+ */
+public class Geofence {
+  public final String id;
+  public final long dwellTime;
+
+  // Bounding box
+  final double minLatitude;
+  final double maxLatitude;
+  final double minLongitude;
+  final double maxLongitude;
+
+  private final double mLatitude;
+  private final double mLongitude;
+  private final double mRadius;
+  private final double[] mLatitudes;
+  private final double[] mLongitudes;
+
+  private Geofence(String id, long dwellTime, double latitude, double longitude, double radius,
+                   double[] latitudes, double[] longitudes) {
+    this.id = id;
+    this.dwellTime = dwellTime;
+    mLatitude = latitude;
+    mLongitude = longitude;
+    mRadius = radius;
+    mLatitudes = latitudes;
+    mLongitudes = longitudes;
+
+    if (latitudes == null) {
+      double dLat = Math.toDegrees(radius / Geo.EARTH_RADIUS);
+      double dLon = dLat / Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+      minLatitude = latitude - dLat;
+      maxLatitude = latitude + dLat;
+      minLongitude = longitude - dLon;
+      maxLongitude = longitude + dLon;
+    } else {
+      double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+      double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+      for (int i = 0; i < latitudes.length; i++) {
+        minLat = Math.min(minLat, latitudes[i]);
+        maxLat = Math.max(maxLat, latitudes[i]);
+        minLon = Math.min(minLon, longitudes[i]);
+        maxLon = Math.max(maxLon, longitudes[i]);
+      }
+      minLatitude = minLat;
+      maxLatitude = maxLat;
+      minLongitude = minLon;
+      maxLongitude = maxLon;
+    }
+  }
+
+  /**
+   * @param dwellTime time (in milliseconds) after which a dwell transition is reported, 0 to disable
+   */
+  public static Geofence circle(String id, double latitude, double longitude, double radius, long dwellTime) {
+    return new Geofence(id, dwellTime, latitude, longitude, radius, null, null);
+  }
+
+  /**
+   * @param latitudes  latitudes of the polygon vertices
+   * @param longitudes longitudes of the polygon vertices, in the same order
+   * @param dwellTime  time (in milliseconds) after which a dwell transition is reported, 0 to disable
+   */
+  public static Geofence polygon(String id, double[] latitudes, double[] longitudes, long dwellTime) {
+    if (latitudes.length != longitudes.length || latitudes.length < 3)
+      throw new IllegalArgumentException("A polygon needs at least 3 vertices");
+    return new Geofence(id, dwellTime, 0, 0, 0, latitudes, longitudes);
+  }
+
+  /**
+   * @return whether the other fence covers exactly the same region, whatever its id and dwell time
+   */
+  public boolean hasSameGeometry(Geofence other) {
+    if (mLatitudes == null)
+      return other.mLatitudes == null && mLatitude == other.mLatitude && mLongitude == other.mLongitude &&
+        mRadius == other.mRadius;
+    return Arrays.equals(mLatitudes, other.mLatitudes) && Arrays.equals(mLongitudes, other.mLongitudes);
+  }
+
+  public boolean contains(double latitude, double longitude) {
+    if (latitude < minLatitude || latitude > maxLatitude ||
+      longitude < minLongitude || longitude > maxLongitude) return false;
+
+    if (mLatitudes == null)
+      return Geo.equirectangular(mLatitude, mLongitude, latitude, longitude) <= mRadius;
+
+    // Ray casting; edges are treated as straight lines in latitude/longitude space
+    boolean inside = false;
+    for (int i = 0, j = mLatitudes.length - 1; i < mLatitudes.length; j = i++) {
+      if ((mLatitudes[i] > latitude) != (mLatitudes[j] > latitude) &&
+        longitude < (mLongitudes[j] - mLongitudes[i]) * (latitude - mLatitudes[i]) /
+          (mLatitudes[j] - mLatitudes[i]) + mLongitudes[i])
+        inside = !inside;
+    }
+    return inside;
+  }
+}
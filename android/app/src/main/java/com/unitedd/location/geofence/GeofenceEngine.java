@@ -0,0 +1,218 @@
+package com.unitedd.location.geofence;
+
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.FixSink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates a large set of geofences against every fix and reports only the transitions.
+ * Each fix is tested against the fences indexed in its grid cell plus the fences the device is currently in, so
+ * the cost per fix does not depend on the total number of fences.
+ */
+public class GeofenceEngine implements FixSink {
+
+  public enum Transition {
+    ENTER,
+    EXIT,
+    DWELL
+  }
+
+  public interface Listener {
+    /**
+     * Called on the location thread for every transition.
+     *
+     * @param fence      the fence that was entered, exited or dwelled in
+     * @param transition the transition
+     * @param fix        the fix that caused the transition
+     */
+    void onGeofenceTransition(Geofence fence, Transition transition, Fix fix);
+  }
+
+  private static final double CELL_SIZE = 0.01;
+
+  private final Listener mListener;
+  private final List<Geofence> mFences = new ArrayList<>();
+  private GeofenceIndex mIndex = new GeofenceIndex(mFences, CELL_SIZE);
+
+  // Per-fence state, indexed like mFences
+  private boolean[] mInside = new boolean[0];
+  private boolean[] mDwelled = new boolean[0];
+  private long[] mEnteredAt = new long[0];
+  private int[] mVisited = new int[0];
+  private int mGeneration = 0;
+
+  // The last fix, to tell whether a replaced fence still contains it
+  private boolean mHasLast = false;
+  private final Fix mLast = new Fix();
+
+  // Indices of the fences the device is currently in
+  private int[] mInsideList = new int[16];
+  private int mInsideCount = 0;
+
+  public GeofenceEngine(Listener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Adds or replaces fences, matched by id, and rebuilds the index once for the whole batch; of several fences
+   * with the same id in the batch, the last one wins.
+   * The inside/outside state of fences that are kept is preserved, as is that of replaced fences with the same
+   * geometry. Replaced fences with a different geometry are evaluated against the last fix, and an enter or exit is
+   * reported right away if it moved the fence onto or away from it.
+   */
+  public synchronized void addAll(Collection<Geofence> fences) {
+    Map<String, Geofence> added = new LinkedHashMap<>();
+    for (Geofence fence : fences)
+      added.put(fence.id, fence);
+
+    List<Geofence> kept = new ArrayList<>(mFences.size() + added.size());
+    for (Geofence fence : mFences)
+      if (!added.containsKey(fence.id)) kept.add(fence);
+    kept.addAll(added.values());
+    rebuild(kept);
+  }
+
+  public synchronized void removeAll(Collection<String> ids) {
+    Set<String> removed = new HashSet<>(ids);
+    List<Geofence> kept = new ArrayList<>(mFences.size());
+    for (Geofence fence : mFences)
+      if (!removed.contains(fence.id)) kept.add(fence);
+    rebuild(kept);
+  }
+
+  public synchronized void clear() {
+    rebuild(new ArrayList<Geofence>());
+  }
+
+  public synchronized int size() {
+    return mFences.size();
+  }
+
+  @Override
+  public synchronized void onFix(Fix fix) {
+    mHasLast = true;
+    mLast.set(fix);
+    if (mFences.isEmpty()) return;
+    if (++mGeneration == Integer.MAX_VALUE) {
+      mGeneration = 1;
+      Arrays.fill(mVisited, 0);
+    }
+
+    // Fences we are in, which may or may not be among the candidates
+    for (int i = mInsideCount - 1; i >= 0; i--)
+      evaluate(mInsideList[i], fix);
+    for (int index : mIndex.largeFences)
+      evaluate(index, fix);
+    for (int index : mIndex.candidates(fix.latitude, fix.longitude))
+      evaluate(index, fix);
+  }
+
+  private void evaluate(int index, Fix fix) {
+    if (mVisited[index] == mGeneration) return;
+    mVisited[index] = mGeneration;
+
+    Geofence fence = mFences.get(index);
+    boolean inside = fence.contains(fix.latitude, fix.longitude);
+
+    if (inside != mInside[index]) {
+      mInside[index] = inside;
+      if (inside) {
+        mEnteredAt[index] = fix.time;
+        mDwelled[index] = false;
+        addInside(index);
+        mListener.onGeofenceTransition(fence, Transition.ENTER, fix);
+      } else {
+        removeInside(index);
+        mListener.onGeofenceTransition(fence, Transition.EXIT, fix);
+      }
+    } else if (inside && !mDwelled[index] && fence.dwellTime > 0 &&
+      fix.time - mEnteredAt[index] >= fence.dwellTime) {
+      mDwelled[index] = true;
+      mListener.onGeofenceTransition(fence, Transition.DWELL, fix);
+    }
+  }
+
+  private void rebuild(List<Geofence> fences) {
+    int size = fences.size();
+    boolean[] inside = new boolean[size];
+    boolean[] dwelled = new boolean[size];
+    long[] enteredAt = new long[size];
+
+    Map<String, Integer> previousIndices = new HashMap<>();
+    for (int i = 0; i < mFences.size(); i++)
+      previousIndices.put(mFences.get(i).id, i);
+    mInsideCount = 0;
+
+    // Replaced fences that were moved onto or away from the last fix, reported once the state is consistent
+    List<Geofence> entered = new ArrayList<>();
+    List<Geofence> exited = new ArrayList<>();
+
+    for (int i = 0; i < size; i++) {
+      Geofence fence = fences.get(i);
+      Integer previous = previousIndices.get(fence.id);
+      // New fences are evaluated with the next fix
+      if (previous == null) continue;
+
+      boolean wasInside = mInside[previous];
+      if (isInside(mFences.get(previous), fence, wasInside)) {
+        inside[i] = true;
+        if (wasInside) {
+          dwelled[i] = mDwelled[previous];
+          enteredAt[i] = mEnteredAt[previous];
+        } else {
+          enteredAt[i] = mLast.time;
+          entered.add(fence);
+        }
+        addInside(i);
+      } else if (wasInside) {
+        exited.add(fence);
+      }
+    }
+
+    mFences.clear();
+    mFences.addAll(fences);
+    mInside = inside;
+    mDwelled = dwelled;
+    mEnteredAt = enteredAt;
+    mVisited = new int[size];
+    mGeneration = 0;
+    mIndex = new GeofenceIndex(mFences, CELL_SIZE);
+
+    for (Geofence fence : exited)
+      mListener.onGeofenceTransition(fence, Transition.EXIT, mLast);
+    for (Geofence fence : entered)
+      mListener.onGeofenceTransition(fence, Transition.ENTER, mLast);
+  }
+
+  /**
+   * @param wasInside whether the device was inside the fence before it was replaced
+   * @return whether the device is inside the fence that replaces it
+   */
+  private boolean isInside(Geofence previous, Geofence fence, boolean wasInside) {
+    if (previous == fence || previous.hasSameGeometry(fence) || !mHasLast) return wasInside;
+    return fence.contains(mLast.latitude, mLast.longitude);
+  }
+
+  private void addInside(int index) {
+    if (mInsideCount == mInsideList.length)
+      mInsideList = Arrays.copyOf(mInsideList, mInsideCount * 2);
+    mInsideList[mInsideCount++] = index;
+  }
+
+  private void removeInside(int index) {
+    for (int i = 0; i < mInsideCount; i++)
+      if (mInsideList[i] == index) {
+        mInsideList[i] = mInsideList[--mInsideCount];
+        return;
+      }
+  }
+}
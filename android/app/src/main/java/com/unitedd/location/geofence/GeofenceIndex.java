@@ -0,0 +1,93 @@
+package com.unitedd.location.geofence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable uniform grid over latitude/longitude that maps each cell to the geofences whose bounding box
+ * overlaps it. Cells are kept in an open-addressing table keyed by primitive longs, so lookups do not allocate.
+ */
+class GeofenceIndex {
+  private static final int MAX_CELLS_PER_FENCE = 1024;
+  private static final int[] EMPTY = new int[0];
+
+  private final double mCellSize;
+  private final long[] mKeys;
+  private final int[][] mValues;
+  private final int mMask;
+  /** Fences too large for the grid, checked on every lookup */
+  final int[] largeFences;
+
+  /**
+   * @param cellSize edge length of a grid cell, in degrees
+   */
+  GeofenceIndex(List<Geofence> fences, double cellSize) {
+    mCellSize = cellSize;
+    Map<Long, List<Integer>> cells = new HashMap<>();
+    List<Integer> large = new ArrayList<>();
+
+    for (int i = 0; i < fences.size(); i++) {
+      Geofence fence = fences.get(i);
+      long minRow = cell(fence.minLatitude), maxRow = cell(fence.maxLatitude);
+      long minCol = cell(fence.minLongitude), maxCol = cell(fence.maxLongitude);
+
+      if ((maxRow - minRow + 1) * (maxCol - minCol + 1) > MAX_CELLS_PER_FENCE) {
+        large.add(i);
+        continue;
+      }
+
+      for (long row = minRow; row <= maxRow; row++)
+        for (long col = minCol; col <= maxCol; col++) {
+          long key = key(row, col);
+          List<Integer> list = cells.get(key);
+          if (list == null) cells.put(key, list = new ArrayList<>(2));
+          list.add(i);
+        }
+    }
+
+    int capacity = Integer.highestOneBit(Math.max(16, cells.size() * 2) - 1) << 1;
+    mMask = capacity - 1;
+    mKeys = new long[capacity];
+    mValues = new int[capacity][];
+    for (Map.Entry<Long, List<Integer>> entry : cells.entrySet()) {
+      int slot = slot(entry.getKey());
+      while (mValues[slot] != null)
+        slot = (slot + 1) & mMask;
+      mKeys[slot] = entry.getKey();
+      mValues[slot] = toArray(entry.getValue());
+    }
+    largeFences = toArray(large);
+  }
+
+  /**
+   * @return the indices of the fences that may contain the given point, not including {@link #largeFences}
+   */
+  int[] candidates(double latitude, double longitude) {
+    long key = key(cell(latitude), cell(longitude));
+    for (int slot = slot(key); mValues[slot] != null; slot = (slot + 1) & mMask)
+      if (mKeys[slot] == key) return mValues[slot];
+    return EMPTY;
+  }
+
+  private long cell(double degrees) {
+    return (long) Math.floor(degrees / mCellSize);
+  }
+
+  private static long key(long row, long col) {
+    return (row << 32) ^ (col & 0xffffffffL);
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mMask;
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; i++)
+      array[i] = list.get(i);
+    return array;
+  }
+}
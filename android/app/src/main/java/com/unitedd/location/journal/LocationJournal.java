@@ -0,0 +1,460 @@
+package com.unitedd.location.journal;
+
+import com.unitedd.location.pipeline.Fix;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * An append-only on-disk journal of fixed-size fix records, split into rotating segment files.
+ * Appending only copies the fix into an in-memory staging buffer; a background thread writes the staged records
+ * to disk, so the location callback never waits for I/O. Records stay in the journal until they are acknowledged
+ * or the journal exceeds its size cap, in which case the oldest segments are discarded.
+ * <p>
+ * Each record gets the next sequence number, by which records are acknowledged, so that fixes are kept in append
+ * order even when the wall clock steps back. As sequence numbers only grow, the first pending record is found with
+ * a binary search and remembered between reads. The same fix may be appended twice, e.g. once while buffered by the
+ * engine and once when it is handed over, so fixes whose elapsed realtime is not after that of the last fix appended
+ * since the journal was opened are skipped.
+ */
+public class LocationJournal {
+  public static final int RECORD_SIZE = 64;
+
+  public interface RecordSink {
+    /**
+     * @param sequence the sequence number of the record, to acknowledge it with
+     * @param fix      the fix of the record, only valid for the duration of the call
+     */
+    void onRecord(long sequence, Fix fix);
+  }
+
+  private static final int SEQUENCE_OFFSET = 56;
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String ACK_FILE = "ack";
+  private static final int STAGING_RECORDS = 256;
+
+  private final File mDirectory;
+  private final int mSegmentRecords;
+  private final int mMaxSegments;
+
+  private final Object mLock = new Object();
+  private ByteBuffer mStaging = ByteBuffer.allocate(STAGING_RECORDS * RECORD_SIZE);
+  private ByteBuffer mWriting = ByteBuffer.allocate(STAGING_RECORDS * RECORD_SIZE);
+  private boolean mClosed = false;
+  private long mDropped = 0;
+  private long mLastSequence;
+  private long mLastElapsedRealtimeNanos = Long.MIN_VALUE;
+
+  private final Object mFileLock = new Object();
+  private long mSegmentIndex;
+  private FileChannel mChannel;
+  private long mAcknowledged;
+  private final ByteBuffer mReadBuffer = ByteBuffer.allocate(RECORD_SIZE * 64);
+  private final ByteBuffer mSequenceBuffer = ByteBuffer.allocate(8);
+  private final Fix mReadFix = new Fix();
+  /** Segment and record index of the first record that may be pending, or a negative segment if unknown */
+  private long mPendingSegment = -1;
+  private long mPendingRecord;
+
+  private final Thread mWriter = new Thread("LocationJournal") {
+    @Override
+    public void run() {
+      drainLoop();
+    }
+  };
+
+  /**
+   * Opens the journal in the given directory, continuing any existing segments.
+   *
+   * @param directory      the directory holding the segment files
+   * @param segmentRecords number of records per segment file
+   * @param maxSegments    maximum number of segment files kept on disk
+   */
+  public LocationJournal(File directory, int segmentRecords, int maxSegments) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Could not create journal directory " + directory);
+
+    mDirectory = directory;
+    mSegmentRecords = segmentRecords;
+    mMaxSegments = Math.max(2, maxSegments);
+    mAcknowledged = readAcknowledged();
+
+    long[] segments = listSegments();
+    mSegmentIndex = segments.length > 0 ? segments[segments.length - 1] : 0;
+    openSegment(mSegmentIndex);
+
+    // Acknowledged records may all have been deleted
+    mLastSequence = mAcknowledged;
+    for (int i = segments.length - 1; i >= 0; i--) {
+      long sequence = lastRecordSequence(segments[i]);
+      if (sequence != Long.MIN_VALUE) {
+        mLastSequence = Math.max(mLastSequence, sequence);
+        break;
+      }
+    }
+
+    mWriter.setDaemon(true);
+    mWriter.start();
+  }
+
+  /**
+   * Stages a fix for writing. Never blocks on I/O; if the writer falls behind by more than the staging capacity,
+   * the fix is dropped and counted in {@link #getDroppedCount()}. Fixes not after the last one in elapsed realtime
+   * are skipped.
+   *
+   * @param fix the fix to journal
+   * @return the sequence number of the record, or -1 if the fix was skipped or dropped
+   */
+  public long append(Fix fix) {
+    synchronized (mLock) {
+      if (mClosed || fix.elapsedRealtimeNanos <= mLastElapsedRealtimeNanos) return -1;
+      mLastElapsedRealtimeNanos = fix.elapsedRealtimeNanos;
+      if (mStaging.remaining() < RECORD_SIZE) {
+        mDropped++;
+        return -1;
+      }
+
+      mStaging.putDouble(fix.latitude);
+      mStaging.putDouble(fix.longitude);
+      mStaging.putDouble(fix.altitude);
+      mStaging.putFloat(fix.accuracy);
+      mStaging.putFloat(fix.speed);
+      mStaging.putFloat(fix.bearing);
+      mStaging.putInt(fix.getMotionFlags() | fix.provider << 8);
+      mStaging.putLong(fix.time);
+      mStaging.putLong(fix.elapsedRealtimeNanos);
+      mStaging.putLong(++mLastSequence);
+      mLock.notify();
+      return mLastSequence;
+    }
+  }
+
+  /**
+   * Reads the oldest records that have not been acknowledged yet, starting where the previous read found the first
+   * pending record rather than at the start of the journal.
+   *
+   * @param limit maximum number of records to read
+   * @param sink  the sink to hand the records to, in append order
+   * @return the number of records read
+   */
+  public int readPending(int limit, RecordSink sink) throws IOException {
+    int count = 0;
+
+    synchronized (mFileLock) {
+      if (mPendingSegment < 0) seekPending();
+
+      for (long index : listSegments()) {
+        if (count >= limit) break;
+        if (index < mPendingSegment) continue;
+
+        // Segments before this one are consumed or were discarded by the size cap
+        long position = 0;
+        if (index == mPendingSegment) {
+          position = mPendingRecord * RECORD_SIZE;
+        } else if (count == 0) {
+          mPendingSegment = index;
+          mPendingRecord = 0;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(segmentFile(index), "r");
+        try {
+          FileChannel channel = file.getChannel();
+          long end = channel.size() - channel.size() % RECORD_SIZE;
+
+          while (position < end && count < limit) {
+            mReadBuffer.clear();
+            mReadBuffer.limit((int) Math.min(mReadBuffer.capacity(), end - position));
+            while (mReadBuffer.hasRemaining() && channel.read(mReadBuffer, position + mReadBuffer.position()) >= 0);
+            mReadBuffer.flip();
+
+            while (mReadBuffer.remaining() >= RECORD_SIZE && count < limit) {
+              long sequence = readRecord(mReadBuffer, mReadFix);
+              position += RECORD_SIZE;
+
+              if (sequence > mAcknowledged) {
+                sink.onRecord(sequence, mReadFix);
+                count++;
+              } else if (count == 0) {
+                // Records acknowledged before they were written out, so the next read can start after them
+                mPendingRecord = position / RECORD_SIZE;
+              }
+            }
+          }
+        } finally {
+          file.close();
+        }
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Marks every record up to and including the given one as consumed. Segments that only contain consumed records
+   * are deleted.
+   *
+   * @param upToSequence sequence number of the last consumed record
+   */
+  public void acknowledge(long upToSequence) throws IOException {
+    synchronized (mFileLock) {
+      if (upToSequence <= mAcknowledged) return;
+      mAcknowledged = upToSequence;
+
+      RandomAccessFile file = new RandomAccessFile(new File(mDirectory, ACK_FILE), "rw");
+      try {
+        file.seek(0);
+        file.writeLong(upToSequence);
+        file.getFD().sync();
+      } finally {
+        file.close();
+      }
+
+      for (long index : listSegments()) {
+        if (index == mSegmentIndex) break;
+        if (lastRecordSequence(index) > upToSequence) break;
+        deleteSegment(index);
+      }
+      mPendingSegment = -1;
+    }
+  }
+
+  /**
+   * @return the number of fixes dropped because the writer could not keep up or the size cap was reached
+   */
+  public long getDroppedCount() {
+    synchronized (mLock) {
+      return mDropped;
+    }
+  }
+
+  /**
+   * Writes out all staged records and stops the writer thread.
+   */
+  public void close() {
+    synchronized (mLock) {
+      mClosed = true;
+      mLock.notify();
+    }
+
+    try {
+      mWriter.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drainLoop() {
+    while (true) {
+      synchronized (mLock) {
+        while (mStaging.position() == 0 && !mClosed) {
+          try {
+            mLock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+
+        if (mStaging.position() == 0) break;
+        ByteBuffer staged = mStaging;
+        mStaging = mWriting;
+        mWriting = staged;
+      }
+
+      try {
+        mWriting.flip();
+        write(mWriting);
+      } catch (IOException e) {
+        synchronized (mLock) {
+          mDropped += mWriting.remaining() / RECORD_SIZE;
+        }
+      } finally {
+        mWriting.clear();
+      }
+    }
+
+    synchronized (mFileLock) {
+      try {
+        mChannel.force(false);
+        mChannel.close();
+      } catch (IOException ignored) {}
+    }
+  }
+
+  private void write(ByteBuffer records) throws IOException {
+    synchronized (mFileLock) {
+      while (records.hasRemaining()) {
+        long free = mSegmentRecords - mChannel.size() / RECORD_SIZE;
+        if (free <= 0) {
+          rotate();
+          continue;
+        }
+
+        int limit = records.limit();
+        records.limit((int) Math.min(limit, records.position() + free * RECORD_SIZE));
+        while (records.hasRemaining())
+          mChannel.write(records);
+        records.limit(limit);
+      }
+    }
+  }
+
+  private void rotate() throws IOException {
+    mChannel.force(false);
+    mChannel.close();
+    openSegment(++mSegmentIndex);
+
+    long[] segments = listSegments();
+    for (int i = 0; i < segments.length - mMaxSegments; i++) {
+      long pending = countPending(segments[i]);
+      synchronized (mLock) {
+        mDropped += pending;
+      }
+      deleteSegment(segments[i]);
+    }
+  }
+
+  private void openSegment(long index) throws IOException {
+    FileChannel channel = new RandomAccessFile(segmentFile(index), "rw").getChannel();
+    // Drop a partially written trailing record, e.g. after the process was killed mid-write
+    channel.truncate(channel.size() - channel.size() % RECORD_SIZE);
+    channel.position(channel.size());
+    mChannel = channel;
+  }
+
+  /**
+   * Points the pending position at the first record after the acknowledged one, or at the end of the journal.
+   * Segments that only hold consumed records are deleted on acknowledgement, so this usually binary searches a
+   * single segment.
+   */
+  private void seekPending() throws IOException {
+    long[] segments = listSegments();
+    for (int i = 0; i < segments.length; i++) {
+      RandomAccessFile file = new RandomAccessFile(segmentFile(segments[i]), "r");
+      try {
+        FileChannel channel = file.getChannel();
+        long records = channel.size() / RECORD_SIZE;
+        long low = firstPendingRecord(channel, records);
+
+        if (low < records || i == segments.length - 1) {
+          mPendingSegment = segments[i];
+          mPendingRecord = low;
+          return;
+        }
+      } finally {
+        file.close();
+      }
+    }
+
+    mPendingSegment = mSegmentIndex;
+    mPendingRecord = 0;
+  }
+
+  /**
+   * @return the number of records in a segment that have not been acknowledged
+   */
+  private long countPending(long index) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segmentFile(index), "r");
+    try {
+      FileChannel channel = file.getChannel();
+      long records = channel.size() / RECORD_SIZE;
+      return records - firstPendingRecord(channel, records);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * @return the index of the first record of a segment after the acknowledged one, or the number of records
+   */
+  private long firstPendingRecord(FileChannel channel, long records) throws IOException {
+    long low = 0, high = records;
+    while (low < high) {
+      long middle = (low + high) >>> 1;
+      if (recordSequence(channel, middle) <= mAcknowledged)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  private long lastRecordSequence(long index) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segmentFile(index), "r");
+    try {
+      FileChannel channel = file.getChannel();
+      long records = channel.size() / RECORD_SIZE;
+      return records == 0 ? Long.MIN_VALUE : recordSequence(channel, records - 1);
+    } finally {
+      file.close();
+    }
+  }
+
+  private long recordSequence(FileChannel channel, long record) throws IOException {
+    long position = record * RECORD_SIZE + SEQUENCE_OFFSET;
+    mSequenceBuffer.clear();
+    while (mSequenceBuffer.hasRemaining() &&
+      channel.read(mSequenceBuffer, position + mSequenceBuffer.position()) >= 0);
+    return mSequenceBuffer.getLong(0);
+  }
+
+  private long readAcknowledged() throws IOException {
+    File ack = new File(mDirectory, ACK_FILE);
+    if (ack.length() < 8) return 0;
+
+    RandomAccessFile file = new RandomAccessFile(ack, "r");
+    try {
+      return file.readLong();
+    } finally {
+      file.close();
+    }
+  }
+
+  private long[] listSegments() {
+    String[] names = mDirectory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (names == null) return new long[0];
+
+    long[] indices = new long[names.length];
+    for (int i = 0; i < names.length; i++)
+      indices[i] = Long.parseLong(names[i].substring(0, names[i].length() - SEGMENT_SUFFIX.length()));
+    Arrays.sort(indices);
+    return indices;
+  }
+
+  private void deleteSegment(long index) {
+    //noinspection ResultOfMethodCallIgnored
+    segmentFile(index).delete();
+  }
+
+  private File segmentFile(long index) {
+    return new File(mDirectory, String.format(Locale.US, "%016d", index) + SEGMENT_SUFFIX);
+  }
+
+  /**
+   * @return the sequence number of the record
+   */
+  private static long readRecord(ByteBuffer buffer, Fix fix) {
+    fix.latitude = buffer.getDouble();
+    fix.longitude = buffer.getDouble();
+    fix.altitude = buffer.getDouble();
+    fix.accuracy = buffer.getFloat();
+    fix.speed = buffer.getFloat();
+    fix.bearing = buffer.getFloat();
+    int flags = buffer.getInt();
+    fix.setMotionFlags(flags & 0xff);
+    fix.provider = flags >>> 8 & 0xff;
+    fix.time = buffer.getLong();
+    fix.elapsedRealtimeNanos = buffer.getLong();
+    return buffer.getLong();
+  }
+}
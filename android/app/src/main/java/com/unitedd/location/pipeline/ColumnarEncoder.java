@@ -0,0 +1,136 @@
+package com.unitedd.location.pipeline;
+
+import java.util.Arrays;
+
+/**
+ * Packs fixes into one flat array of numbers in a columnar layout: all latitudes first, then all longitudes, and so
+ * on in the fixed order latitude, longitude, altitude, accuracy, speed, heading, timestamp, followed by the optional
+ * columns selected by the field mask. Unlike a map per fix, this carries no keys and no boxed values, so a whole
+ * batch crosses the bridge as a single numeric array.
+ */
+public class ColumnarEncoder {
+  /** Optional column with the monotonic time of each fix, in milliseconds since boot */
+  public static final int FIELD_ELAPSED_REALTIME = 1;
+  /** Optional column with the {@code PROVIDER_} constant of each fix, see {@link Fix#provider} */
+  public static final int FIELD_PROVIDER = 2;
+  /** Optional smoothed latitude and longitude columns, holding the raw position for fixes that were not smoothed */
+  public static final int FIELD_SMOOTHED = 4;
+  /** Optional column with the {@code MOTION_} bits of each fix, see {@link Fix#getMotionFlags()} */
+  public static final int FIELD_MOTION = 8;
+
+  private static final int BASE_COLUMNS = 7;
+
+  private final int mFields;
+  private final int mColumns;
+  private double[] mRows;
+  private int mSize = 0;
+
+  /**
+   * @param fields          the optional columns to include, a combination of the {@code FIELD_} constants
+   * @param initialCapacity the number of fixes to make room for up front
+   */
+  public ColumnarEncoder(int fields, int initialCapacity) {
+    mFields = fields;
+    mColumns = BASE_COLUMNS
+      + ((fields & FIELD_ELAPSED_REALTIME) != 0 ? 1 : 0)
+      + ((fields & FIELD_PROVIDER) != 0 ? 1 : 0)
+      + ((fields & FIELD_SMOOTHED) != 0 ? 2 : 0)
+      + ((fields & FIELD_MOTION) != 0 ? 1 : 0);
+    mRows = new double[Math.max(1, initialCapacity) * mColumns];
+  }
+
+  /**
+   * Unknown fields are ignored rather than rejected; every batch carries the mask of the columns it actually
+   * includes, so a decoder never depends on what it asked for.
+   *
+   * @param name the name of an optional field as passed from JS
+   * @return the matching {@code FIELD_} constant, or 0 if there is no such field
+   */
+  public static int fieldOf(String name) {
+    switch (name) {
+      case "elapsedRealtime":
+        return FIELD_ELAPSED_REALTIME;
+      case "provider":
+        return FIELD_PROVIDER;
+      case "smoothed":
+        return FIELD_SMOOTHED;
+      case "motion":
+        return FIELD_MOTION;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * @return the optional columns included, a combination of the {@code FIELD_} constants
+   */
+  public int getFields() {
+    return mFields;
+  }
+
+  /**
+   * @return the number of values per fix
+   */
+  public int getColumnCount() {
+    return mColumns;
+  }
+
+  /**
+   * @return the number of fixes added since the last {@link #clear()}
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Buffers a fix, row by row so that the batch size need not be known up front.
+   */
+  public void add(Fix fix) {
+    int offset = mSize * mColumns;
+    if (offset + mColumns > mRows.length)
+      mRows = Arrays.copyOf(mRows, mRows.length * 2);
+
+    double[] rows = mRows;
+    rows[offset++] = fix.latitude;
+    rows[offset++] = fix.longitude;
+    rows[offset++] = fix.altitude;
+    rows[offset++] = fix.accuracy;
+    rows[offset++] = fix.speed;
+    rows[offset++] = fix.bearing;
+    rows[offset++] = fix.time;
+    if ((mFields & FIELD_ELAPSED_REALTIME) != 0)
+      rows[offset++] = fix.elapsedRealtimeNanos / 1e6;
+    if ((mFields & FIELD_PROVIDER) != 0)
+      rows[offset++] = fix.provider;
+    if ((mFields & FIELD_SMOOTHED) != 0) {
+      rows[offset++] = fix.hasSmoothed ? fix.smoothedLatitude : fix.latitude;
+      rows[offset++] = fix.hasSmoothed ? fix.smoothedLongitude : fix.longitude;
+    }
+    if ((mFields & FIELD_MOTION) != 0)
+      rows[offset] = fix.getMotionFlags();
+    mSize++;
+  }
+
+  /**
+   * Writes the buffered fixes column by column.
+   *
+   * @param out the array to write to, at least {@link #size()} times {@link #getColumnCount()} long
+   * @return the number of values written
+   */
+  public int encode(double[] out) {
+    double[] rows = mRows;
+    int size = mSize;
+    int columns = mColumns;
+
+    for (int column = 0; column < columns; column++) {
+      int offset = column * size;
+      for (int row = 0, i = column; row < size; row++, i += columns)
+        out[offset + row] = rows[i];
+    }
+    return size * columns;
+  }
+
+  public void clear() {
+    mSize = 0;
+  }
+}
@@ -0,0 +1,44 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Drops fixes that are closer than a minimum distance or sooner than a minimum time to the last fix that was
+ * let through.
+ */
+public class DistanceGate extends FixStage {
+  private final double mDistanceFilter;
+  private final long mMinIntervalNanos;
+
+  private boolean mHasLast = false;
+  private double mLastLatitude;
+  private double mLastLongitude;
+  private long mLastElapsedNanos;
+
+  /**
+   * @param distanceFilter minimum distance (in metres) between two fixes, 0 to disable
+   * @param minInterval    minimum time (in milliseconds) between two fixes, 0 to disable
+   */
+  public DistanceGate(double distanceFilter, long minInterval) {
+    mDistanceFilter = distanceFilter;
+    mMinIntervalNanos = minInterval * 1000000L;
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    if (mHasLast) {
+      if (fix.elapsedRealtimeNanos - mLastElapsedNanos < mMinIntervalNanos) return;
+      if (mDistanceFilter > 0 && Geo.equirectangular(mLastLatitude, mLastLongitude,
+        fix.latitude, fix.longitude) < mDistanceFilter) return;
+    }
+
+    mHasLast = true;
+    mLastLatitude = fix.latitude;
+    mLastLongitude = fix.longitude;
+    mLastElapsedNanos = fix.elapsedRealtimeNanos;
+    next.onFix(fix);
+  }
+
+  @Override
+  public void reset() {
+    mHasLast = false;
+  }
+}
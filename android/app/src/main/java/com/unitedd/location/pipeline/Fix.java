@@ -0,0 +1,85 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * A mutable, allocation-free representation of a single location fix as it travels through the pipeline.
+ * Stages may modify a fix in place; a fix must not be retained after {@link FixSink#onFix(Fix)} returns,
+ * copy it with {@link #set(Fix)} instead.
+ */
+public final class Fix {
+  public static final int PROVIDER_UNKNOWN = 0;
+  public static final int PROVIDER_FUSED = 1;
+  public static final int PROVIDER_GPS = 2;
+  public static final int PROVIDER_NETWORK = 3;
+  public static final int PROVIDER_PASSIVE = 4;
+
+  /** Bits of {@link #getMotionFlags()} */
+  public static final int MOTION_HAS_SPEED = 1;
+  public static final int MOTION_HAS_BEARING = 2;
+  public static final int MOTION_SPEED_DERIVED = 4;
+  public static final int MOTION_BEARING_DERIVED = 8;
+
+  public double latitude;
+  public double longitude;
+  public double altitude;
+  public float accuracy;
+  public float speed;
+  public float bearing;
+  /** Whether {@link #speed} holds a value; providers that do not measure it leave it at 0 */
+  public boolean hasSpeed;
+  /** Whether {@link #bearing} holds a value; providers that do not measure it leave it at 0 */
+  public boolean hasBearing;
+  /** Whether {@link #speed} was derived from consecutive fixes rather than reported by the provider */
+  public boolean isSpeedDerived;
+  /** Whether {@link #bearing} was derived from consecutive fixes rather than reported by the provider */
+  public boolean isBearingDerived;
+  /** UTC time of the fix, in milliseconds since epoch */
+  public long time;
+  /** Monotonic time of the fix, in nanoseconds since boot */
+  public long elapsedRealtimeNanos;
+  /** {@link System#nanoTime()} at which the fix reached the location callback, for latency tracking */
+  public long receivedNanos;
+  /** The provider the fix came from, one of the {@code PROVIDER_} constants */
+  public int provider;
+  /** Whether {@link #smoothedLatitude} and {@link #smoothedLongitude} are set */
+  public boolean hasSmoothed;
+  public double smoothedLatitude;
+  public double smoothedLongitude;
+
+  public void set(Fix other) {
+    latitude = other.latitude;
+    longitude = other.longitude;
+    altitude = other.altitude;
+    accuracy = other.accuracy;
+    speed = other.speed;
+    bearing = other.bearing;
+    hasSpeed = other.hasSpeed;
+    hasBearing = other.hasBearing;
+    isSpeedDerived = other.isSpeedDerived;
+    isBearingDerived = other.isBearingDerived;
+    time = other.time;
+    elapsedRealtimeNanos = other.elapsedRealtimeNanos;
+    receivedNanos = other.receivedNanos;
+    provider = other.provider;
+    hasSmoothed = other.hasSmoothed;
+    smoothedLatitude = other.smoothedLatitude;
+    smoothedLongitude = other.smoothedLongitude;
+  }
+
+  /**
+   * @return {@link #hasSpeed}, {@link #hasBearing}, {@link #isSpeedDerived} and {@link #isBearingDerived} packed
+   * into the {@code MOTION_} bits, for storage
+   */
+  public int getMotionFlags() {
+    return (hasSpeed ? MOTION_HAS_SPEED : 0)
+      | (hasBearing ? MOTION_HAS_BEARING : 0)
+      | (isSpeedDerived ? MOTION_SPEED_DERIVED : 0)
+      | (isBearingDerived ? MOTION_BEARING_DERIVED : 0);
+  }
+
+  public void setMotionFlags(int flags) {
+    hasSpeed = (flags & MOTION_HAS_SPEED) != 0;
+    hasBearing = (flags & MOTION_HAS_BEARING) != 0;
+    isSpeedDerived = (flags & MOTION_SPEED_DERIVED) != 0;
+    isBearingDerived = (flags & MOTION_BEARING_DERIVED) != 0;
+  }
+}
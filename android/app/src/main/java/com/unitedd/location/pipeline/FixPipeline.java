@@ -0,0 +1,56 @@
+package com.unitedd.location.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An ordered chain of {@link FixStage}s ending in a terminal {@link FixSink}.
+ */
+public class FixPipeline implements FixSink {
+  private final List<FixStage> mStages = new ArrayList<>();
+  private final FixSink mSink;
+  private FixSink mHead;
+
+  public FixPipeline(FixSink sink) {
+    mSink = sink;
+    mHead = sink;
+  }
+
+  /**
+   * Appends a stage right before the terminal sink.
+   *
+   * @param stage the stage to append
+   * @return this pipeline
+   */
+  public FixPipeline add(FixStage stage) {
+    if (mStages.isEmpty())
+      mHead = stage;
+    else
+      mStages.get(mStages.size() - 1).then(stage);
+
+    stage.then(mSink);
+    mStages.add(stage);
+    return this;
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    mHead.onFix(fix);
+  }
+
+  /**
+   * Flushes all stages in order, so that fixes released by a stage still pass through the stages after it.
+   */
+  public void flush() {
+    for (FixStage stage : mStages)
+      stage.flush();
+  }
+
+  /**
+   * Resets all stages, e.g. when observation restarts.
+   */
+  public void reset() {
+    for (FixStage stage : mStages)
+      stage.reset();
+  }
+}
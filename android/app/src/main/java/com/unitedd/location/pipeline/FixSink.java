@@ -0,0 +1,13 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Receives fixes pushed through the pipeline.
+ */
+public interface FixSink {
+  /**
+   * Called for every fix that reaches this sink. The fix is only valid for the duration of the call.
+   *
+   * @param fix the current fix
+   */
+  void onFix(Fix fix);
+}
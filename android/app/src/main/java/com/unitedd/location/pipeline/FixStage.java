@@ -0,0 +1,29 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * A pipeline stage that may drop, modify or hold back fixes before passing them on to the next sink.
+ */
+public abstract class FixStage implements FixSink {
+  protected FixSink next;
+
+  /**
+   * Chains the given sink after this stage.
+   *
+   * @param next the sink that receives the fixes this stage lets through
+   * @return the given sink, so that calls can be chained
+   */
+  public <T extends FixSink> T then(T next) {
+    this.next = next;
+    return next;
+  }
+
+  /**
+   * Passes on any fixes this stage is holding back, e.g. when observation stops.
+   */
+  public void flush() {}
+
+  /**
+   * Forgets any state accumulated from previous fixes.
+   */
+  public void reset() {}
+}
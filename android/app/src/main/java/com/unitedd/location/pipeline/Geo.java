@@ -0,0 +1,38 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Primitive geodesic helpers that avoid the allocations of {@code Location.distanceTo()}.
+ */
+public final class Geo {
+  public static final double EARTH_RADIUS = 6371008.8;
+
+  private Geo() {}
+
+  /**
+   * Great-circle distance using the haversine formula.
+   *
+   * @return the distance in metres
+   */
+  public static double haversine(double lat1, double lon1, double lat2, double lon2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double sinLat = Math.sin(dLat / 2);
+    double sinLon = Math.sin(dLon / 2);
+    double a = sinLat * sinLat +
+      Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+    return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  /**
+   * Equirectangular approximation of the distance between two points.
+   * Accurate to well below a metre for the distances between consecutive fixes and much cheaper than
+   * {@link #haversine(double, double, double, double)}.
+   *
+   * @return the distance in metres
+   */
+  public static double equirectangular(double lat1, double lon1, double lat2, double lon2) {
+    double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+    double y = Math.toRadians(lat2 - lat1);
+    return Math.sqrt(x * x + y * y) * EARTH_RADIUS;
+  }
+}
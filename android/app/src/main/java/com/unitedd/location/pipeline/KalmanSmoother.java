@@ -0,0 +1,134 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Smooths fix coordinates with a constant-velocity Kalman filter, using the reported accuracy as measurement
+ * noise. The raw coordinates are left untouched; the estimate is written to {@link Fix#smoothedLatitude} and
+ * {@link Fix#smoothedLongitude}.
+ * <p>
+ * Both axes of a local tangent plane are filtered independently. Since they share the time step and measurement
+ * noise, they also share a single covariance matrix, which keeps the per-fix update down to a few multiplications.
+ * Turns and other manoeuvres are detected from the size of the innovation, and briefly let the filter follow the
+ * measurements more closely, so that the estimate does not lag behind.
+ */
+public class KalmanSmoother extends FixStage {
+  private static final double MAX_GAP_SECONDS = 60;
+  private static final double MAX_ORIGIN_DISTANCE = 100000;
+  private static final float MIN_ACCURACY = 1;
+  // The accuracy is a 68% radius, which for a circular normal distribution is about 1.5 standard deviations
+  private static final double ACCURACY_DEVIATIONS = 1.5;
+  // 95% quantile of the chi-squared distribution with two degrees of freedom
+  private static final double MANOEUVRE_THRESHOLD = 5.99;
+
+  private final double mAccelerationVariance;
+
+  private boolean mInitialized = false;
+  private long mLastElapsedNanos;
+  private double mOriginLatitude;
+  private double mOriginLongitude;
+  private double mMetresPerDegreeLatitude;
+  private double mMetresPerDegreeLongitude;
+
+  // Position and velocity along the east (x) and north (y) axes, in metres and metres per second
+  private double mX, mVx, mY, mVy;
+  // Shared covariance of (position, velocity)
+  private double mP00, mP01, mP11;
+
+  /**
+   * @param acceleration the expected standard deviation of the acceleration (in m/s^2), i.e. how quickly the
+   *                     filter follows changes in velocity
+   */
+  public KalmanSmoother(double acceleration) {
+    mAccelerationVariance = acceleration * acceleration;
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    double r = Math.max(fix.accuracy, MIN_ACCURACY) / ACCURACY_DEVIATIONS;
+    r *= r;
+
+    double dt = (fix.elapsedRealtimeNanos - mLastElapsedNanos) / 1e9;
+    if (!mInitialized || dt > MAX_GAP_SECONDS) {
+      initialize(fix, r);
+    } else {
+      if (dt > 0) predict(dt);
+      update(fix, r);
+    }
+
+    mLastElapsedNanos = Math.max(mLastElapsedNanos, fix.elapsedRealtimeNanos);
+    fix.hasSmoothed = true;
+    fix.smoothedLatitude = mOriginLatitude + mY / mMetresPerDegreeLatitude;
+    fix.smoothedLongitude = mOriginLongitude + mX / mMetresPerDegreeLongitude;
+
+    if (mX * mX + mY * mY > MAX_ORIGIN_DISTANCE * MAX_ORIGIN_DISTANCE)
+      setOrigin(fix.smoothedLatitude, fix.smoothedLongitude);
+
+    next.onFix(fix);
+  }
+
+  @Override
+  public void reset() {
+    mInitialized = false;
+  }
+
+  private void initialize(Fix fix, double r) {
+    setOrigin(fix.latitude, fix.longitude);
+    mVx = mVy = 0;
+    mP00 = r;
+    mP01 = 0;
+    mP11 = 100;
+    mLastElapsedNanos = fix.elapsedRealtimeNanos;
+    mInitialized = true;
+  }
+
+  private void setOrigin(double latitude, double longitude) {
+    mOriginLatitude = latitude;
+    mOriginLongitude = longitude;
+    mMetresPerDegreeLatitude = Math.toRadians(Geo.EARTH_RADIUS);
+    mMetresPerDegreeLongitude = Math.max(1, mMetresPerDegreeLatitude * Math.cos(Math.toRadians(latitude)));
+    mX = mY = 0;
+  }
+
+  private void predict(double dt) {
+    double dt2 = dt * dt;
+    double q = mAccelerationVariance;
+
+    mX += mVx * dt;
+    mY += mVy * dt;
+    mP00 += dt * (2 * mP01 + dt * mP11) + q * dt2 * dt2 / 4;
+    mP01 += dt * mP11 + q * dt2 * dt / 2;
+    mP11 += q * dt2;
+  }
+
+  private void update(Fix fix, double r) {
+    double zx = (fix.longitude - mOriginLongitude) * mMetresPerDegreeLongitude;
+    double zy = (fix.latitude - mOriginLatitude) * mMetresPerDegreeLatitude;
+
+    double ex = zx - mX;
+    double ey = zy - mY;
+
+    // An innovation too large for the covariance means the target is manoeuvring, e.g. turning, which the
+    // constant-velocity model does not cover; inflate the covariance so that the filter catches up instead of lagging
+    double s = mP00 + r;
+    double innovation = (ex * ex + ey * ey) / s;
+    if (innovation > MANOEUVRE_THRESHOLD) {
+      double scale = innovation / MANOEUVRE_THRESHOLD;
+      mP00 *= scale;
+      mP01 *= scale;
+      mP11 *= scale;
+      s = mP00 + r;
+    }
+
+    double k0 = mP00 / s;
+    double k1 = mP01 / s;
+
+    mX += k0 * ex;
+    mVx += k1 * ex;
+    mY += k0 * ey;
+    mVy += k1 * ey;
+
+    double p01 = mP01;
+    mP11 -= k1 * p01;
+    mP01 = (1 - k0) * p01;
+    mP00 = (1 - k0) * mP00;
+  }
+}
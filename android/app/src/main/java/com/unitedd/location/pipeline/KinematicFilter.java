@@ -0,0 +1,142 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Drops fixes that are physically implausible given the last fix that was let through: fixes implying a speed
+ * above the maximum of the motion profile, fixes implying a larger acceleration than the profile allows, and fixes
+ * whose accuracy is an outlier compared to the recent ones. This catches teleporting fixes and multipath jumps,
+ * e.g. in urban canyons, that a plain distance check against the previous fix lets through.
+ * <p>
+ * Distances are discounted by the combined accuracy of both fixes, so that noisy but consistent fixes are not
+ * mistaken for movement. The acceleration limit applies to the larger of the implied speed and the speed reported
+ * by the provider. If several fixes in a row are dropped, the filter assumes it anchored on an outlier
+ * itself and starts over from the current fix. The per-fix cost is constant.
+ */
+public class KinematicFilter extends FixStage {
+  /** Reasonable limits for pedestrians, in m/s and m/s^2 */
+  public static final double WALKING_MAX_SPEED = 10, WALKING_MAX_ACCELERATION = 3;
+  /** Reasonable limits for road vehicles, in m/s and m/s^2 */
+  public static final double DRIVING_MAX_SPEED = 70, DRIVING_MAX_ACCELERATION = 10;
+
+  private static final int MAX_CONSECUTIVE_REJECTIONS = 5;
+  private static final double UNCERTAINTY_RADII = 2;
+  private static final int MIN_ACCURACY_SAMPLES = 5;
+  private static final double ACCURACY_WEIGHT = 0.1;
+  private static final double ACCURACY_DEVIATIONS = 4;
+  private static final double MIN_ACCURACY_DEVIATION = 5;
+
+  private final double mMaxSpeed;
+  private final double mMaxAcceleration;
+  private final double mMaxAccuracy;
+  private final PipelineStats mStats;
+
+  private boolean mHasLast = false;
+  private double mLastLatitude;
+  private double mLastLongitude;
+  private float mLastAccuracy;
+  private long mLastElapsedNanos;
+  private double mLastSpeed;
+  private int mRejections;
+
+  // Exponentially weighted mean and mean absolute deviation of the accuracy of the fixes let through
+  private int mAccuracySamples;
+  private double mAccuracyMean;
+  private double mAccuracyDeviation;
+
+  /**
+   * @param maxSpeed        the highest plausible speed (in m/s)
+   * @param maxAcceleration the highest plausible acceleration (in m/s^2)
+   * @param maxAccuracy     fixes with a worse accuracy (in metres) are always dropped, 0 to disable
+   * @param stats           the statistics to count dropped fixes in
+   */
+  public KinematicFilter(double maxSpeed, double maxAcceleration, double maxAccuracy, PipelineStats stats) {
+    mMaxSpeed = maxSpeed;
+    mMaxAcceleration = maxAcceleration;
+    mMaxAccuracy = maxAccuracy;
+    mStats = stats;
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    if (mMaxAccuracy > 0 && fix.accuracy > mMaxAccuracy) {
+      mStats.accuracyOutliers.incrementAndGet();
+      return;
+    }
+
+    if (!mHasLast) {
+      accept(fix, 0);
+      return;
+    }
+
+    // The ReorderBuffer ahead of this stage already dropped duplicates and fixes delivered out of order; without
+    // one, such fixes cannot be judged by speed, so they are passed on as they are
+    double dt = (fix.elapsedRealtimeNanos - mLastElapsedNanos) / 1e9;
+    if (dt <= 0) {
+      next.onFix(fix);
+      return;
+    }
+
+    double distance = Geo.equirectangular(mLastLatitude, mLastLongitude, fix.latitude, fix.longitude);
+    // The accuracy is a 68% radius, so allow for twice the combined accuracy of both fixes
+    double uncertainty = UNCERTAINTY_RADII *
+      Math.sqrt(fix.accuracy * fix.accuracy + mLastAccuracy * mLastAccuracy);
+    double speed = Math.max(0, distance - uncertainty) / dt;
+
+    if (mRejections >= MAX_CONSECUTIVE_REJECTIONS) {
+      accept(fix, Math.min(speed, mMaxSpeed));
+      return;
+    }
+
+    if (mAccuracySamples >= MIN_ACCURACY_SAMPLES && fix.accuracy >
+      mAccuracyMean + ACCURACY_DEVIATIONS * Math.max(mAccuracyDeviation, MIN_ACCURACY_DEVIATION)) {
+      mRejections++;
+      mStats.accuracyOutliers.incrementAndGet();
+      return;
+    }
+    if (speed > mMaxSpeed) {
+      mRejections++;
+      mStats.speedOutliers.incrementAndGet();
+      return;
+    }
+    if (speed > mLastSpeed + mMaxAcceleration * dt) {
+      mRejections++;
+      mStats.accelerationOutliers.incrementAndGet();
+      return;
+    }
+
+    accept(fix, speed);
+  }
+
+  @Override
+  public void reset() {
+    mHasLast = false;
+    mRejections = 0;
+    mAccuracySamples = 0;
+  }
+
+  private void accept(Fix fix, double speed) {
+    if (mRejections >= MAX_CONSECUTIVE_REJECTIONS)
+      mAccuracySamples = 0;
+
+    mHasLast = true;
+    mLastLatitude = fix.latitude;
+    mLastLongitude = fix.longitude;
+    mLastAccuracy = fix.accuracy;
+    mLastElapsedNanos = fix.elapsedRealtimeNanos;
+    // The speed reported by the provider comes from Doppler measurements, which multipath hardly affects
+    mLastSpeed = Math.max(speed, fix.speed);
+    mRejections = 0;
+
+    if (mAccuracySamples == 0) {
+      mAccuracyMean = fix.accuracy;
+      mAccuracyDeviation = 0;
+    } else {
+      double error = fix.accuracy - mAccuracyMean;
+      mAccuracyMean += ACCURACY_WEIGHT * error;
+      mAccuracyDeviation += ACCURACY_WEIGHT * (Math.abs(error) - mAccuracyDeviation);
+    }
+    if (mAccuracySamples < MIN_ACCURACY_SAMPLES)
+      mAccuracySamples++;
+
+    next.onFix(fix);
+  }
+}
@@ -0,0 +1,89 @@
+package com.unitedd.location.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies with fixed power-of-two buckets, from 1 microsecond up to about a minute.
+ * Recording is a couple of atomic increments, so it is cheap enough to do for every fix.
+ */
+public class LatencyHistogram {
+  public static final int BUCKETS = 27;
+
+  private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMax = new AtomicLong();
+
+  /**
+   * @param nanos the latency in nanoseconds; negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    mCounts.incrementAndGet(bucket);
+    mCount.incrementAndGet();
+    mSum.addAndGet(micros);
+
+    long max;
+    while (micros > (max = mMax.get()) && !mMax.compareAndSet(max, micros));
+  }
+
+  public long getCount() {
+    return mCount.get();
+  }
+
+  /**
+   * @return the mean latency in microseconds, or 0 if nothing was recorded
+   */
+  public double getMean() {
+    long count = mCount.get();
+    return count == 0 ? 0 : (double) mSum.get() / count;
+  }
+
+  /**
+   * @return the maximum latency in microseconds
+   */
+  public long getMax() {
+    return mMax.get();
+  }
+
+  /**
+   * @param quantile a value between 0 and 1
+   * @return the upper bound (in microseconds) of the bucket containing the given quantile
+   */
+  public long getQuantile(double quantile) {
+    long count = mCount.get();
+    if (count == 0) return 0;
+
+    long rank = (long) Math.ceil(quantile * count);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += mCounts.get(i);
+      if (seen >= rank) return Math.min(upperBound(i), mMax.get());
+    }
+    return mMax.get();
+  }
+
+  /**
+   * @return the number of latencies recorded in the given bucket
+   */
+  public long getBucketCount(int bucket) {
+    return mCounts.get(bucket);
+  }
+
+  /**
+   * @return the inclusive upper bound (in microseconds) of the given bucket
+   */
+  public static long upperBound(int bucket) {
+    return bucket == 0 ? 0 : (1L << bucket) - 1;
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++)
+      mCounts.set(i, 0);
+    mCount.set(0);
+    mSum.set(0);
+    mMax.set(0);
+  }
+}
@@ -0,0 +1,109 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Fills in speed and bearing for fixes whose provider did not supply them, e.g. network and low-power fixes,
+ * from the fixes of the last few seconds. Derived values are marked with {@link Fix#isSpeedDerived} and
+ * {@link Fix#isBearingDerived}; values reported by the provider are passed on untouched.
+ * <p>
+ * Deriving from the oldest fix in the window rather than the previous one averages out the position noise of
+ * closely spaced fixes. The window is a ring of primitive arrays, so the per-fix cost is constant and nothing is
+ * allocated.
+ */
+public class MotionEstimator extends FixStage {
+  private static final int WINDOW_SIZE = 8;
+  private static final long MAX_GAP_NANOS = 300000000000L;
+
+  private final long mWindowNanos;
+  private final double[] mLatitude = new double[WINDOW_SIZE];
+  private final double[] mLongitude = new double[WINDOW_SIZE];
+  private final float[] mAccuracy = new float[WINDOW_SIZE];
+  private final long[] mElapsedNanos = new long[WINDOW_SIZE];
+  private int mHead = 0;
+  private int mSize = 0;
+
+  private boolean mHasBearing = false;
+  private float mLastBearing;
+
+  /**
+   * @param window the time span (in milliseconds) to derive speed and bearing over
+   */
+  public MotionEstimator(long window) {
+    mWindowNanos = window * 1000000L;
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    // Duplicates and fixes delivered out of order carry no information about the motion
+    if (mSize > 0 && fix.elapsedRealtimeNanos <= mElapsedNanos[index(0)]) {
+      next.onFix(fix);
+      return;
+    }
+
+    // Drop fixes that fell out of the window, but keep the previous one to derive from across short gaps
+    while (mSize > 1 && fix.elapsedRealtimeNanos - mElapsedNanos[index(mSize - 1)] > mWindowNanos)
+      mSize--;
+    if (mSize > 0 && fix.elapsedRealtimeNanos - mElapsedNanos[index(0)] > MAX_GAP_NANOS)
+      mSize = 0;
+
+    if (mSize > 0 && (!fix.hasSpeed || !fix.hasBearing)) {
+      int oldest = index(mSize - 1);
+      double distance = Geo.equirectangular(mLatitude[oldest], mLongitude[oldest], fix.latitude, fix.longitude);
+
+      if (!fix.hasSpeed) {
+        fix.speed = (float) (distance * 1e9 / (fix.elapsedRealtimeNanos - mElapsedNanos[oldest]));
+        fix.hasSpeed = true;
+        fix.isSpeedDerived = true;
+      }
+
+      if (!fix.hasBearing) {
+        // Within the accuracy of the fixes the direction is noise, so keep the last bearing instead
+        if (distance > Math.max(fix.accuracy, mAccuracy[oldest])) {
+          mLastBearing = (float) bearing(mLatitude[oldest], mLongitude[oldest], fix.latitude, fix.longitude);
+          mHasBearing = true;
+        }
+        if (mHasBearing) {
+          fix.bearing = mLastBearing;
+          fix.hasBearing = true;
+          fix.isBearingDerived = true;
+        }
+      }
+    }
+
+    if (fix.hasBearing && !fix.isBearingDerived) {
+      mLastBearing = fix.bearing;
+      mHasBearing = true;
+    }
+
+    int i = mHead;
+    mLatitude[i] = fix.latitude;
+    mLongitude[i] = fix.longitude;
+    mAccuracy[i] = fix.accuracy;
+    mElapsedNanos[i] = fix.elapsedRealtimeNanos;
+    mHead = (mHead + 1) % WINDOW_SIZE;
+    if (mSize < WINDOW_SIZE) mSize++;
+
+    next.onFix(fix);
+  }
+
+  @Override
+  public void reset() {
+    mSize = 0;
+    mHasBearing = false;
+  }
+
+  private int index(int age) {
+    return (mHead - 1 - age + 2 * WINDOW_SIZE) % WINDOW_SIZE;
+  }
+
+  /**
+   * Equirectangular approximation of the initial bearing, accurate enough over the span of the window.
+   *
+   * @return the bearing in degrees east of true north, in [0, 360)
+   */
+  private static double bearing(double lat1, double lon1, double lat2, double lon2) {
+    double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+    double y = Math.toRadians(lat2 - lat1);
+    double bearing = Math.toDegrees(Math.atan2(x, y));
+    return bearing < 0 ? bearing + 360 : bearing;
+  }
+}
@@ -0,0 +1,55 @@
+package com.unitedd.location.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the location pipeline. All members are lock-free and may be updated from
+ * any thread.
+ */
+public class PipelineStats {
+  /** Time from the provider taking a fix to the fix reaching the location callback */
+  public final LatencyHistogram providerToCallback = new LatencyHistogram();
+  /** Time from the location callback to the fix being handed to the bridge */
+  public final LatencyHistogram callbackToEmit = new LatencyHistogram();
+  /** Time from changing the parameters of the running location request to the next fix */
+  public final LatencyHistogram reconfigurationGap = new LatencyHistogram();
+
+  public final AtomicLong received = new AtomicLong();
+  public final AtomicLong rejected = new AtomicLong();
+  public final AtomicLong emitted = new AtomicLong();
+  public final AtomicLong reconnects = new AtomicLong();
+  /** Fixes dropped by the {@link KinematicFilter}, by reason */
+  public final AtomicLong speedOutliers = new AtomicLong();
+  public final AtomicLong accelerationOutliers = new AtomicLong();
+  public final AtomicLong accuracyOutliers = new AtomicLong();
+  /** Fixes dropped by the {@link ReorderBuffer} as duplicates, or as older than a fix already let through */
+  public final AtomicLong duplicates = new AtomicLong();
+  public final AtomicLong outOfOrder = new AtomicLong();
+  /** Time (in milliseconds) from starting to the first valid fix, -1 if there was none yet */
+  public final AtomicLong timeToFirstFix = new AtomicLong(-1);
+
+  /**
+   * @return the number of plausible fixes that were not emitted, because a stage dropped or is still holding them
+   */
+  public long getFiltered() {
+    long dropped = speedOutliers.get() + accelerationOutliers.get() + accuracyOutliers.get()
+      + duplicates.get() + outOfOrder.get();
+    return Math.max(0, received.get() - rejected.get() - dropped - emitted.get());
+  }
+
+  public void reset() {
+    providerToCallback.reset();
+    callbackToEmit.reset();
+    reconfigurationGap.reset();
+    received.set(0);
+    rejected.set(0);
+    emitted.set(0);
+    reconnects.set(0);
+    speedOutliers.set(0);
+    accelerationOutliers.set(0);
+    accuracyOutliers.set(0);
+    duplicates.set(0);
+    outOfOrder.set(0);
+    timeToFirstFix.set(-1);
+  }
+}
@@ -0,0 +1,125 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Puts fixes back into the order they were taken in, by their monotonic time, and suppresses duplicates. This
+ * covers e.g. the last known location being delivered again right before or after the first live fix.
+ * <p>
+ * Fixes are held back until a fix taken at least the reordering window later arrives, so that a fix delivered
+ * late within the window can still be put in front of it; with a window of 0 nothing is held back. Fixes taken
+ * before the last fix that was let through are dropped, as are exact duplicates and fixes taken within half a
+ * second and a metre of a neighbour. The fixes let through therefore have strictly increasing
+ * {@link Fix#elapsedRealtimeNanos}.
+ * <p>
+ * The held fixes are copied into a fixed number of preallocated slots, so memory is bounded by the capacity and
+ * nothing is allocated per fix; when all slots are taken, the oldest fix is let through early.
+ */
+public class ReorderBuffer extends FixStage {
+  private static final long NEAR_DUPLICATE_NANOS = 500000000L;
+  private static final double NEAR_DUPLICATE_DISTANCE = 1;
+
+  private final long mWindowNanos;
+  private final PipelineStats mStats;
+  // Held fixes ordered by time, oldest first; the slots past mSize are spare
+  private final Fix[] mSlots;
+  private int mSize = 0;
+
+  private boolean mHasLast = false;
+  private long mLastElapsedNanos;
+  private double mLastLatitude;
+  private double mLastLongitude;
+
+  /**
+   * @param window   the time (in milliseconds) by which a fix may be delivered late and still be put in order
+   * @param capacity the maximum number of fixes held back
+   * @param stats    the statistics to count dropped fixes in
+   */
+  public ReorderBuffer(long window, int capacity, PipelineStats stats) {
+    mWindowNanos = window * 1000000L;
+    mStats = stats;
+    mSlots = new Fix[Math.max(1, capacity)];
+    for (int i = 0; i < mSlots.length; i++)
+      mSlots[i] = new Fix();
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    if (mHasLast) {
+      if (isDuplicate(fix, mLastElapsedNanos, mLastLatitude, mLastLongitude)) {
+        mStats.duplicates.incrementAndGet();
+        return;
+      }
+      if (fix.elapsedRealtimeNanos < mLastElapsedNanos) {
+        mStats.outOfOrder.incrementAndGet();
+        return;
+      }
+    }
+
+    // Fixes mostly arrive in order, so search for the position from the newest end
+    int position = mSize;
+    while (position > 0 && mSlots[position - 1].elapsedRealtimeNanos > fix.elapsedRealtimeNanos)
+      position--;
+
+    if (position > 0 && isDuplicate(fix, mSlots[position - 1]) ||
+      position < mSize && isDuplicate(fix, mSlots[position])) {
+      mStats.duplicates.incrementAndGet();
+      return;
+    }
+
+    if (mSize == mSlots.length) {
+      // Older than everything held back and no room left, so it is next in line anyway
+      if (position == 0) {
+        release(fix);
+        return;
+      }
+      releaseOldest();
+      position--;
+    }
+
+    Fix slot = mSlots[mSize];
+    System.arraycopy(mSlots, position, mSlots, position + 1, mSize - position);
+    mSlots[position] = slot;
+    slot.set(fix);
+    mSize++;
+
+    long newest = mSlots[mSize - 1].elapsedRealtimeNanos;
+    while (mSize > 0 && newest - mSlots[0].elapsedRealtimeNanos >= mWindowNanos)
+      releaseOldest();
+  }
+
+  @Override
+  public void flush() {
+    while (mSize > 0)
+      releaseOldest();
+  }
+
+  @Override
+  public void reset() {
+    mSize = 0;
+    mHasLast = false;
+  }
+
+  private void releaseOldest() {
+    Fix oldest = mSlots[0];
+    System.arraycopy(mSlots, 1, mSlots, 0, mSize - 1);
+    mSlots[--mSize] = oldest;
+    release(oldest);
+  }
+
+  private void release(Fix fix) {
+    mHasLast = true;
+    mLastElapsedNanos = fix.elapsedRealtimeNanos;
+    mLastLatitude = fix.latitude;
+    mLastLongitude = fix.longitude;
+    next.onFix(fix);
+  }
+
+  private static boolean isDuplicate(Fix fix, Fix other) {
+    return isDuplicate(fix, other.elapsedRealtimeNanos, other.latitude, other.longitude);
+  }
+
+  private static boolean isDuplicate(Fix fix, long elapsedNanos, double latitude, double longitude) {
+    if (fix.elapsedRealtimeNanos == elapsedNanos) return true;
+    return Math.abs(fix.elapsedRealtimeNanos - elapsedNanos) <= NEAR_DUPLICATE_NANOS
+      && Geo.equirectangular(latitude, longitude, fix.latitude, fix.longitude) <= NEAR_DUPLICATE_DISTANCE;
+  }
+}
@@ -0,0 +1,152 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Watches the recent speed of the device and picks a sampling tier for it, so that a parked device can be
+ * sampled far less often than a moving one. Fixes are passed on unchanged.
+ * <p>
+ * Speed thresholds have separate up and down values, moving up a tier requires a few consecutive fixes and
+ * moving down requires the lower speed to last for a while, so that the tier does not flap at the boundaries.
+ */
+public class SamplingScheduler extends FixStage {
+
+  public enum Tier {
+    STATIONARY(60000),
+    WALKING(10000),
+    DRIVING(2000);
+
+    /** The update interval (in milliseconds) requested in this tier */
+    public final long interval;
+
+    Tier(long interval) {
+      this.interval = interval;
+    }
+  }
+
+  /** The interval floor when no subscriber asked for an interval explicitly */
+  public static final long NO_FLOOR = Long.MAX_VALUE;
+
+  public interface Listener {
+    /**
+     * Called when the sampling tier changes.
+     *
+     * @param tier     the new tier
+     * @param previous the previous tier, or {@code null} for the first decision
+     * @param speed    the estimated speed (in m/s) that caused the change
+     */
+    void onTierChanged(Tier tier, Tier previous, double speed);
+  }
+
+  private static final double WALKING_SPEED_UP = 1.0;
+  private static final double WALKING_SPEED_DOWN = 0.4;
+  private static final double DRIVING_SPEED_UP = 4.0;
+  private static final double DRIVING_SPEED_DOWN = 2.5;
+  private static final int UPGRADE_FIXES = 2;
+  private static final long DOWNGRADE_DELAY_NANOS = 120 * 1000000000L;
+  private static final long WINDOW_NANOS = 60 * 1000000000L;
+  private static final long MIN_WINDOW_NANOS = 5 * 1000000000L;
+
+  private final Listener mListener;
+  private final TrackBuffer mHistory = new TrackBuffer(16);
+
+  private Tier mTier;
+  private Tier mCandidate;
+  private int mCandidateCount;
+  private long mCandidateSince;
+
+  public SamplingScheduler(Listener listener) {
+    mListener = listener;
+  }
+
+  public Tier getTier() {
+    return mTier;
+  }
+
+  /**
+   * Only intervals subscribers asked for explicitly act as a floor, so that a tier can request a longer interval
+   * than the default one of a subscription.
+   *
+   * @param tier  the current tier
+   * @param floor the shortest interval (in milliseconds) a subscriber asked for explicitly, or {@link #NO_FLOOR}
+   * @return the update interval (in milliseconds) to request
+   */
+  public static long getRequestedInterval(Tier tier, long floor) {
+    return Math.min(tier.interval, floor);
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    double speed = estimateSpeed(fix);
+    mHistory.append(fix);
+
+    if (speed >= 0) {
+      Tier target = targetTier(speed);
+      if (target != mTier) {
+        if (target != mCandidate) {
+          // Slowing down from driving to walking to stationary counts as one continuous downgrade
+          boolean slowingDown = mCandidate != null && mTier != null &&
+            mCandidate.ordinal() < mTier.ordinal() && target.ordinal() < mTier.ordinal();
+          if (!slowingDown)
+            mCandidateSince = fix.elapsedRealtimeNanos;
+          mCandidate = target;
+          mCandidateCount = 0;
+        }
+        mCandidateCount++;
+
+        boolean upgrade = mTier == null || target.ordinal() > mTier.ordinal();
+        if (upgrade ? mCandidateCount >= UPGRADE_FIXES
+          : fix.elapsedRealtimeNanos - mCandidateSince >= DOWNGRADE_DELAY_NANOS) {
+          Tier previous = mTier;
+          mTier = target;
+          mCandidate = null;
+          mListener.onTierChanged(target, previous, speed);
+        }
+      } else
+        mCandidate = null;
+    }
+
+    next.onFix(fix);
+  }
+
+  @Override
+  public void reset() {
+    mHistory.clear();
+    mTier = null;
+    mCandidate = null;
+  }
+
+  /**
+   * @return the speed in m/s, or -1 if there is not enough data yet
+   */
+  private double estimateSpeed(Fix fix) {
+    if (fix.speed > 0) return fix.speed;
+
+    // Without a reported speed, use the displacement over the window, discounting what accuracy can explain
+    int oldest = -1;
+    for (int age = 0; age < mHistory.size(); age++) {
+      if (fix.elapsedRealtimeNanos - mHistory.elapsedRealtimeNanos(age) > WINDOW_NANOS) break;
+      oldest = age;
+    }
+    // Fixes may be further apart than the window, e.g. at the interval of the stationary tier, so fall back to
+    // the previous fix rather than never leaving that tier
+    if (oldest < 0 && mHistory.size() > 0)
+      oldest = 0;
+    if (oldest < 0) return -1;
+
+    long dt = fix.elapsedRealtimeNanos - mHistory.elapsedRealtimeNanos(oldest);
+    if (dt < MIN_WINDOW_NANOS) return -1;
+
+    double distance = Geo.equirectangular(mHistory.latitude(oldest), mHistory.longitude(oldest),
+      fix.latitude, fix.longitude) - fix.accuracy;
+    return Math.max(0, distance) / (dt / 1e9);
+  }
+
+  private Tier targetTier(double speed) {
+    Tier current = mTier == null ? Tier.STATIONARY : mTier;
+    double drivingThreshold = current == Tier.DRIVING ? DRIVING_SPEED_DOWN : DRIVING_SPEED_UP;
+    double walkingThreshold = current == Tier.STATIONARY ? WALKING_SPEED_UP : WALKING_SPEED_DOWN;
+
+    if (speed >= drivingThreshold) return Tier.DRIVING;
+    if (speed >= walkingThreshold) return Tier.WALKING;
+    return Tier.STATIONARY;
+  }
+}
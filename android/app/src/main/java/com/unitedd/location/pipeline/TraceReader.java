@@ -0,0 +1,295 @@
+package com.unitedd.location.pipeline;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Streams fixes from a recorded trace, one at a time, so that traces of any length can be replayed in constant
+ * memory. Supported formats:
+ * <ul>
+ * <li>CSV with the columns {@code time,latitude,longitude[,altitude,accuracy,speed,bearing]}, time in
+ * milliseconds since epoch; lines that do not start with a digit (e.g. a header) are skipped</li>
+ * <li>GPX track, route or way points with {@code <time>} and optional {@code <ele>}; times without a UTC offset
+ * are taken as UTC</li>
+ * <li>NMEA 0183 {@code RMC} sentences, with altitude and accuracy (estimated from HDOP) taken from the
+ * preceding {@code GGA} sentence</li>
+ * </ul>
+ * Elapsed realtime is derived from the fix times, starting at 0.
+ */
+public class TraceReader {
+
+  public enum Format {
+    CSV,
+    GPX,
+    NMEA
+  }
+
+  private static final float DEFAULT_ACCURACY = 10;
+  private static final float UERE = 5;
+  private static final double KNOTS = 0.514444;
+
+  private final BufferedReader mReader;
+  private final Format mFormat;
+  private long mFirstTime = Long.MIN_VALUE;
+  private final SimpleDateFormat mIsoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+  private final Calendar mCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+
+  // NMEA: last GGA values
+  private double mAltitude;
+  private float mAccuracy = DEFAULT_ACCURACY;
+
+  // GPX: text of the element currently being read
+  private final StringBuilder mText = new StringBuilder();
+
+  public TraceReader(Reader reader, Format format) {
+    mReader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    mFormat = format;
+    mIsoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  /**
+   * Guesses the format from a file name.
+   */
+  public static Format formatOf(String name) {
+    String lower = name.toLowerCase(Locale.US);
+    if (lower.endsWith(".gpx")) return Format.GPX;
+    if (lower.endsWith(".nmea") || lower.endsWith(".nma") || lower.endsWith(".log")) return Format.NMEA;
+    return Format.CSV;
+  }
+
+  /**
+   * Reads the next fix.
+   *
+   * @param out the fix to fill
+   * @return {@code false} at the end of the trace
+   * @throws IOException if the trace cannot be read or is malformed
+   */
+  public boolean next(Fix out) throws IOException {
+    boolean read;
+    try {
+      switch (mFormat) {
+        case GPX:
+          read = nextGpx(out);
+          break;
+        case NMEA:
+          read = nextNmea(out);
+          break;
+        case CSV:
+        default:
+          read = nextCsv(out);
+      }
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      throw new IOException("Malformed " + mFormat + " trace: " + e.getMessage(), e);
+    }
+    if (!read) return false;
+
+    if (mFirstTime == Long.MIN_VALUE) mFirstTime = out.time;
+    out.elapsedRealtimeNanos = (out.time - mFirstTime) * 1000000L;
+    out.hasSmoothed = false;
+    return true;
+  }
+
+  public void close() throws IOException {
+    mReader.close();
+  }
+
+  private boolean nextCsv(Fix out) throws IOException {
+    String line;
+    while ((line = mReader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || !Character.isDigit(line.charAt(0))) continue;
+
+      String[] columns = line.split(",");
+      if (columns.length < 3) continue;
+      out.time = Long.parseLong(columns[0].trim());
+      out.latitude = Double.parseDouble(columns[1]);
+      out.longitude = Double.parseDouble(columns[2]);
+      out.altitude = columns.length > 3 ? Double.parseDouble(columns[3]) : 0;
+      out.accuracy = columns.length > 4 ? Float.parseFloat(columns[4]) : DEFAULT_ACCURACY;
+      out.speed = columns.length > 5 ? Float.parseFloat(columns[5]) : 0;
+      out.bearing = columns.length > 6 ? Float.parseFloat(columns[6]) : 0;
+      out.setMotionFlags((columns.length > 5 ? Fix.MOTION_HAS_SPEED : 0)
+        | (columns.length > 6 ? Fix.MOTION_HAS_BEARING : 0));
+      return true;
+    }
+    return false;
+  }
+
+  private boolean nextGpx(Fix out) throws IOException {
+    boolean inPoint = false;
+    String tag;
+
+    while ((tag = nextTag()) != null) {
+      String name = tagName(tag);
+      if (name.equals("trkpt") || name.equals("rtept") || name.equals("wpt")) {
+        inPoint = true;
+        out.latitude = Double.parseDouble(attribute(tag, "lat"));
+        out.longitude = Double.parseDouble(attribute(tag, "lon"));
+        out.altitude = 0;
+        out.accuracy = DEFAULT_ACCURACY;
+        out.speed = 0;
+        out.bearing = 0;
+        out.setMotionFlags(0);
+        out.time = 0;
+        if (tag.endsWith("/")) return true;
+      } else if (!inPoint) {
+        continue;
+      } else if (name.equals("/trkpt") || name.equals("/rtept") || name.equals("/wpt")) {
+        return true;
+      } else if (name.equals("/ele")) {
+        out.altitude = Double.parseDouble(mText.toString().trim());
+      } else if (name.equals("/time")) {
+        out.time = parseIsoTime(mText.toString().trim());
+      } else if (name.equals("/hdop")) {
+        out.accuracy = Float.parseFloat(mText.toString().trim()) * UERE;
+      } else if (name.equals("/speed")) {
+        out.speed = Float.parseFloat(mText.toString().trim());
+        out.hasSpeed = true;
+      } else if (name.equals("/course")) {
+        out.bearing = Float.parseFloat(mText.toString().trim());
+        out.hasBearing = true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the contents of the next tag (without the angle brackets), with the text before it in {@link #mText}
+   */
+  private String nextTag() throws IOException {
+    mText.setLength(0);
+    int c;
+    while ((c = mReader.read()) >= 0 && c != '<')
+      mText.append((char) c);
+    if (c < 0) return null;
+
+    StringBuilder tag = new StringBuilder();
+    while ((c = mReader.read()) >= 0 && c != '>')
+      tag.append((char) c);
+    return tag.toString().trim();
+  }
+
+  private static String tagName(String tag) {
+    int end = 0;
+    while (end < tag.length() && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end) != '/')
+      end++;
+    if (end == 0 && tag.startsWith("/")) {
+      end = 1;
+      while (end < tag.length() && !Character.isWhitespace(tag.charAt(end))) end++;
+    }
+    String name = tag.substring(0, end);
+    // Ignore namespace prefixes
+    int colon = name.indexOf(':');
+    if (colon < 0) return name;
+    return (name.startsWith("/") ? "/" : "") + name.substring(colon + 1);
+  }
+
+  private static String attribute(String tag, String name) throws IOException {
+    int start = 0;
+    while ((start = tag.indexOf(name, start)) >= 0) {
+      int i = start + name.length();
+      boolean delimited = start > 0 && Character.isWhitespace(tag.charAt(start - 1));
+      while (i < tag.length() && Character.isWhitespace(tag.charAt(i))) i++;
+      if (delimited && i < tag.length() && tag.charAt(i) == '=') {
+        i++;
+        while (i < tag.length() && Character.isWhitespace(tag.charAt(i))) i++;
+        char quote = tag.charAt(i);
+        int end = tag.indexOf(quote, i + 1);
+        return tag.substring(i + 1, end);
+      }
+      start = i;
+    }
+    throw new IOException("Missing attribute " + name + " in <" + tag + ">");
+  }
+
+  /**
+   * Parses an ISO 8601 time such as {@code 2017-07-14T09:30:00.5+02:00}, with optional fraction and UTC offset.
+   */
+  private long parseIsoTime(String text) throws IOException {
+    try {
+      long time = mIsoFormat.parse(text.substring(0, 19)).getTime();
+      int end = 19;
+      if (text.length() > 20 && text.charAt(19) == '.') {
+        end = 20;
+        while (end < text.length() && Character.isDigit(text.charAt(end))) end++;
+        String fraction = (text.substring(20, end) + "000").substring(0, 3);
+        time += Integer.parseInt(fraction);
+      }
+      return time - parseUtcOffset(text.substring(end)) * 60000L;
+    } catch (ParseException | IndexOutOfBoundsException | NumberFormatException e) {
+      throw new IOException("Invalid time " + text);
+    }
+  }
+
+  /**
+   * @param text a UTC offset such as {@code Z}, {@code +02:00}, {@code -0530} or {@code +02}, or an empty string
+   * @return the offset in minutes
+   */
+  private static int parseUtcOffset(String text) throws IOException {
+    if (text.isEmpty() || text.equals("Z")) return 0;
+
+    char sign = text.charAt(0);
+    String digits = text.substring(1).replace(":", "");
+    if (sign != '+' && sign != '-' || digits.length() != 2 && digits.length() != 4)
+      throw new IOException("Invalid UTC offset " + text);
+
+    int minutes = Integer.parseInt(digits.substring(0, 2)) * 60
+      + (digits.length() == 4 ? Integer.parseInt(digits.substring(2)) : 0);
+    return sign == '-' ? -minutes : minutes;
+  }
+
+  private boolean nextNmea(Fix out) throws IOException {
+    String line;
+    while ((line = mReader.readLine()) != null) {
+      int start = line.indexOf('$');
+      if (start < 0 || line.length() < start + 6) continue;
+      int checksum = line.indexOf('*');
+      String[] fields = line.substring(start + 1, checksum > start ? checksum : line.length()).split(",", -1);
+      String type = fields[0].substring(2);
+
+      if (type.equals("GGA") && fields.length > 9) {
+        if (!fields[8].isEmpty()) mAccuracy = Float.parseFloat(fields[8]) * UERE;
+        if (!fields[9].isEmpty()) mAltitude = Double.parseDouble(fields[9]);
+      } else if (type.equals("RMC") && fields.length > 9 && "A".equals(fields[2])) {
+        out.latitude = parseCoordinate(fields[3], fields[4]);
+        out.longitude = parseCoordinate(fields[5], fields[6]);
+        out.speed = fields[7].isEmpty() ? 0 : (float) (Double.parseDouble(fields[7]) * KNOTS);
+        out.bearing = fields[8].isEmpty() ? 0 : Float.parseFloat(fields[8]);
+        out.setMotionFlags((fields[7].isEmpty() ? 0 : Fix.MOTION_HAS_SPEED)
+          | (fields[8].isEmpty() ? 0 : Fix.MOTION_HAS_BEARING));
+        out.altitude = mAltitude;
+        out.accuracy = mAccuracy;
+        out.time = parseNmeaTime(fields[1], fields[9]);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static double parseCoordinate(String value, String hemisphere) {
+    int dot = value.indexOf('.');
+    int degreeDigits = (dot < 0 ? value.length() : dot) - 2;
+    double degrees = Double.parseDouble(value.substring(0, degreeDigits));
+    double minutes = Double.parseDouble(value.substring(degreeDigits));
+    double coordinate = degrees + minutes / 60;
+    return hemisphere.equals("S") || hemisphere.equals("W") ? -coordinate : coordinate;
+  }
+
+  private long parseNmeaTime(String time, String date) {
+    int year = Integer.parseInt(date.substring(4, 6));
+    mCalendar.clear();
+    mCalendar.set(year < 80 ? 2000 + year : 1900 + year, Integer.parseInt(date.substring(2, 4)) - 1,
+      Integer.parseInt(date.substring(0, 2)), Integer.parseInt(time.substring(0, 2)),
+      Integer.parseInt(time.substring(2, 4)), Integer.parseInt(time.substring(4, 6)));
+    long millis = mCalendar.getTimeInMillis();
+    if (time.length() > 7)
+      millis += Math.round(Double.parseDouble("0" + time.substring(6)) * 1000);
+    return millis;
+  }
+}
@@ -0,0 +1,126 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * A fixed-capacity ring buffer of recent fixes, backed by parallel primitive arrays so that appending never
+ * allocates. Once full, every append overwrites the oldest fix.
+ */
+public class TrackBuffer {
+  private final int mCapacity;
+  private final double[] mLatitude;
+  private final double[] mLongitude;
+  private final double[] mAltitude;
+  private final float[] mAccuracy;
+  private final float[] mSpeed;
+  private final float[] mBearing;
+  private final byte[] mFlags;
+  private final byte[] mProvider;
+  private final long[] mTime;
+  private final long[] mElapsedNanos;
+
+  private int mHead = 0;
+  private int mSize = 0;
+
+  public TrackBuffer(int capacity) {
+    mCapacity = Math.max(1, capacity);
+    mLatitude = new double[mCapacity];
+    mLongitude = new double[mCapacity];
+    mAltitude = new double[mCapacity];
+    mAccuracy = new float[mCapacity];
+    mSpeed = new float[mCapacity];
+    mBearing = new float[mCapacity];
+    mFlags = new byte[mCapacity];
+    mProvider = new byte[mCapacity];
+    mTime = new long[mCapacity];
+    mElapsedNanos = new long[mCapacity];
+  }
+
+  public void append(Fix fix) {
+    int i = mHead;
+    mLatitude[i] = fix.latitude;
+    mLongitude[i] = fix.longitude;
+    mAltitude[i] = fix.altitude;
+    mAccuracy[i] = fix.accuracy;
+    mSpeed[i] = fix.speed;
+    mBearing[i] = fix.bearing;
+    mFlags[i] = (byte) fix.getMotionFlags();
+    mProvider[i] = (byte) fix.provider;
+    mTime[i] = fix.time;
+    mElapsedNanos[i] = fix.elapsedRealtimeNanos;
+
+    mHead = (mHead + 1) % mCapacity;
+    if (mSize < mCapacity) mSize++;
+  }
+
+  public int capacity() {
+    return mCapacity;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public void clear() {
+    mHead = 0;
+    mSize = 0;
+  }
+
+  /**
+   * Copies a buffered fix.
+   *
+   * @param age how many fixes ago the fix was appended, 0 being the most recent one
+   * @param out the fix to copy into
+   */
+  public void get(int age, Fix out) {
+    if (age < 0 || age >= mSize)
+      throw new IndexOutOfBoundsException("age " + age + ", size " + mSize);
+
+    int i = index(age);
+    out.latitude = mLatitude[i];
+    out.longitude = mLongitude[i];
+    out.altitude = mAltitude[i];
+    out.accuracy = mAccuracy[i];
+    out.speed = mSpeed[i];
+    out.bearing = mBearing[i];
+    out.setMotionFlags(mFlags[i]);
+    out.provider = mProvider[i];
+    out.time = mTime[i];
+    out.elapsedRealtimeNanos = mElapsedNanos[i];
+  }
+
+  public double latitude(int age) {
+    return mLatitude[index(age)];
+  }
+
+  public double longitude(int age) {
+    return mLongitude[index(age)];
+  }
+
+  public float speed(int age) {
+    return mSpeed[index(age)];
+  }
+
+  public long time(int age) {
+    return mTime[index(age)];
+  }
+
+  public long elapsedRealtimeNanos(int age) {
+    return mElapsedNanos[index(age)];
+  }
+
+  /**
+   * Counts the most recent fixes that were taken at or after the given time.
+   *
+   * @param sinceTime UTC time in milliseconds
+   * @return the number of fixes, i.e. the ages {@code 0..count-1} are within the window
+   */
+  public int countSince(long sinceTime) {
+    int count = 0;
+    while (count < mSize && mTime[index(count)] >= sinceTime)
+      count++;
+    return count;
+  }
+
+  private int index(int age) {
+    return (mHead - 1 - age + 2 * mCapacity) % mCapacity;
+  }
+}
@@ -0,0 +1,86 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Simplifies the track online with the opening-window algorithm: fixes are held back as long as every held fix
+ * lies within the tolerance of the straight segment between the last emitted fix and the newest one. Once that
+ * no longer holds (or the window is full), the last fix that still fitted is emitted and becomes the new anchor.
+ * Only shape-significant fixes are passed on, each of them with a delay of at most the window size.
+ */
+public class TrackSimplifier extends FixStage {
+  private final double mTolerance;
+  private final Fix[] mWindow;
+  private final Fix mAnchor = new Fix();
+  private final Fix mOut = new Fix();
+  private boolean mHasAnchor = false;
+  private int mCount = 0;
+
+  /**
+   * @param tolerance  maximum distance (in metres) between a dropped fix and the simplified track
+   * @param windowSize maximum number of fixes held back
+   */
+  public TrackSimplifier(double tolerance, int windowSize) {
+    mTolerance = tolerance;
+    mWindow = new Fix[Math.max(1, windowSize)];
+    for (int i = 0; i < mWindow.length; i++)
+      mWindow[i] = new Fix();
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    if (!mHasAnchor) {
+      mHasAnchor = true;
+      emit(fix);
+      return;
+    }
+
+    if (mCount == mWindow.length || !fitsSegment(fix)) {
+      emit(mWindow[mCount - 1]);
+      mCount = 0;
+    }
+
+    mWindow[mCount++].set(fix);
+  }
+
+  @Override
+  public void flush() {
+    if (mCount > 0) {
+      emit(mWindow[mCount - 1]);
+      mCount = 0;
+    }
+  }
+
+  @Override
+  public void reset() {
+    mHasAnchor = false;
+    mCount = 0;
+  }
+
+  private boolean fitsSegment(Fix end) {
+    double metresPerDegreeLatitude = Math.toRadians(Geo.EARTH_RADIUS);
+    double metresPerDegreeLongitude = metresPerDegreeLatitude * Math.cos(Math.toRadians(mAnchor.latitude));
+
+    double ex = (end.longitude - mAnchor.longitude) * metresPerDegreeLongitude;
+    double ey = (end.latitude - mAnchor.latitude) * metresPerDegreeLatitude;
+    double lengthSquared = ex * ex + ey * ey;
+    double toleranceSquared = mTolerance * mTolerance;
+
+    for (int i = 0; i < mCount; i++) {
+      double px = (mWindow[i].longitude - mAnchor.longitude) * metresPerDegreeLongitude;
+      double py = (mWindow[i].latitude - mAnchor.latitude) * metresPerDegreeLatitude;
+
+      double t = lengthSquared > 0 ? (px * ex + py * ey) / lengthSquared : 0;
+      t = Math.max(0, Math.min(1, t));
+      double dx = px - t * ex;
+      double dy = py - t * ey;
+      if (dx * dx + dy * dy > toleranceSquared) return false;
+    }
+
+    return true;
+  }
+
+  private void emit(Fix fix) {
+    mAnchor.set(fix);
+    mOut.set(fix);
+    next.onFix(mOut);
+  }
+}
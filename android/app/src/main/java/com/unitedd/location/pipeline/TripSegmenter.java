@@ -0,0 +1,192 @@
+package com.unitedd.location.pipeline;
+
+/**
+ * Splits the fix stream into trips and stops as it arrives. A stop starts once fixes have stayed within a radius
+ * of an anchor fix for a minimum duration; any fix leaving that radius moves the anchor and, after a stop, starts
+ * a new trip. Trip summaries are accumulated incrementally, so the state is constant no matter how long it runs.
+ */
+public class TripSegmenter implements FixSink {
+
+  public interface Listener {
+    /**
+     * Called when movement is detected after a stop, or after the first fix.
+     *
+     * @param latitude     where the trip started, i.e. the last position before leaving the stop
+     * @param longitude    where the trip started
+     * @param time         when the trip started (in milliseconds since epoch)
+     * @param stopDuration how long (in milliseconds) the preceding stop lasted, or -1 if the trip did not start
+     *                     from a stop
+     */
+    void onTripStart(double latitude, double longitude, long time, long stopDuration);
+
+    /**
+     * Called once fixes have stayed within the stop radius for the stop duration.
+     *
+     * @param latitude  the anchor of the stop
+     * @param longitude the anchor of the stop
+     * @param time      when the stop started (in milliseconds since epoch), i.e. when the anchor was taken
+     * @param trip      the summary of the preceding trip, only valid for the duration of the call, or {@code null}
+     *                  if the stop did not follow a trip
+     */
+    void onStopStart(double latitude, double longitude, long time, Summary trip);
+
+    /**
+     * Called right before {@link #onStopStart} if a trip was in progress. The trip ends at the stop's anchor.
+     *
+     * @param trip the summary of the trip, only valid for the duration of the call
+     */
+    void onTripEnd(Summary trip);
+  }
+
+  /**
+   * Incrementally computed summary of a trip.
+   */
+  public static final class Summary {
+    public long startTime;
+    public long endTime;
+    /** Distance travelled, in metres */
+    public double distance;
+    /** Maximum speed, in metres per second */
+    public double maxSpeed;
+    public double minLatitude;
+    public double minLongitude;
+    public double maxLatitude;
+    public double maxLongitude;
+
+    /**
+     * @return the duration in milliseconds
+     */
+    public long getDuration() {
+      return endTime - startTime;
+    }
+
+    /**
+     * @return the average speed over the whole trip, in metres per second
+     */
+    public double getAverageSpeed() {
+      long duration = getDuration();
+      return duration > 0 ? distance * 1000 / duration : 0;
+    }
+
+    void start(double latitude, double longitude, long time) {
+      startTime = endTime = time;
+      distance = maxSpeed = 0;
+      minLatitude = maxLatitude = latitude;
+      minLongitude = maxLongitude = longitude;
+    }
+
+    void add(double latitude, double longitude, long time, double distance, double speed) {
+      endTime = time;
+      this.distance += distance;
+      maxSpeed = Math.max(maxSpeed, speed);
+      minLatitude = Math.min(minLatitude, latitude);
+      maxLatitude = Math.max(maxLatitude, latitude);
+      minLongitude = Math.min(minLongitude, longitude);
+      maxLongitude = Math.max(maxLongitude, longitude);
+    }
+
+    void set(Summary other) {
+      startTime = other.startTime;
+      endTime = other.endTime;
+      distance = other.distance;
+      maxSpeed = other.maxSpeed;
+      minLatitude = other.minLatitude;
+      minLongitude = other.minLongitude;
+      maxLatitude = other.maxLatitude;
+      maxLongitude = other.maxLongitude;
+    }
+  }
+
+  private enum State {UNKNOWN, MOVING, STOPPED}
+
+  private final Listener mListener;
+  private final double mStopRadius;
+  private final long mStopDuration;
+
+  private State mState = State.UNKNOWN;
+  private boolean mHasLast = false;
+  private double mLastLatitude;
+  private double mLastLongitude;
+  private long mLastTime;
+  private double mAnchorLatitude;
+  private double mAnchorLongitude;
+  private long mAnchorTime;
+  private long mStopTime;
+  private final Summary mTrip = new Summary();
+  /** The trip as it was when the anchor was last taken, which is where it ends if a stop follows */
+  private final Summary mTripAtAnchor = new Summary();
+
+  /**
+   * @param stopRadius   the radius (in metres) fixes must stay within to count as a stop
+   * @param stopDuration the time (in milliseconds) fixes must stay within the radius to count as a stop
+   */
+  public TripSegmenter(Listener listener, double stopRadius, long stopDuration) {
+    mListener = listener;
+    mStopRadius = stopRadius;
+    mStopDuration = stopDuration;
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    if (!mHasLast) {
+      mHasLast = true;
+      setLast(fix);
+      setAnchor(fix);
+      return;
+    }
+
+    double step = Geo.equirectangular(mLastLatitude, mLastLongitude, fix.latitude, fix.longitude);
+    long interval = fix.time - mLastTime;
+    double speed = fix.speed > 0 ? fix.speed : interval > 0 ? step * 1000 / interval : 0;
+
+    // Give inaccurate fixes the benefit of the doubt, so that a noisy fix does not break up a stop
+    double fromAnchor = Geo.equirectangular(mAnchorLatitude, mAnchorLongitude, fix.latitude, fix.longitude);
+    boolean isInside = fromAnchor - fix.accuracy <= mStopRadius;
+
+    if (!isInside) {
+      if (mState != State.MOVING) {
+        long stopDuration = mState == State.STOPPED ? mLastTime - mStopTime : -1;
+        mState = State.MOVING;
+        mTrip.start(mLastLatitude, mLastLongitude, mLastTime);
+        mListener.onTripStart(mLastLatitude, mLastLongitude, mLastTime, stopDuration);
+      }
+      mTrip.add(fix.latitude, fix.longitude, fix.time, step, speed);
+      mTripAtAnchor.set(mTrip);
+      setAnchor(fix);
+    } else {
+      if (mState == State.MOVING)
+        mTrip.add(fix.latitude, fix.longitude, fix.time, step, speed);
+
+      if (mState != State.STOPPED && fix.time - mAnchorTime >= mStopDuration) {
+        boolean wasMoving = mState == State.MOVING;
+        if (wasMoving)
+          mListener.onTripEnd(mTripAtAnchor);
+        mState = State.STOPPED;
+        mStopTime = mAnchorTime;
+        mListener.onStopStart(mAnchorLatitude, mAnchorLongitude, mAnchorTime, wasMoving ? mTripAtAnchor : null);
+      }
+    }
+
+    setLast(fix);
+  }
+
+  /**
+   * Forgets the current trip or stop, e.g. when observation restarts.
+   */
+  public void reset() {
+    mState = State.UNKNOWN;
+    mHasLast = false;
+  }
+
+  private void setLast(Fix fix) {
+    mLastLatitude = fix.latitude;
+    mLastLongitude = fix.longitude;
+    mLastTime = fix.time;
+  }
+
+  private void setAnchor(Fix fix) {
+    mAnchorLatitude = fix.latitude;
+    mAnchorLongitude = fix.longitude;
+    mAnchorTime = fix.time;
+  }
+}
@@ -0,0 +1,124 @@
+package com.unitedd.location.store;
+
+import java.util.List;
+
+/**
+ * The schema and SQL of the {@link TrackStore}. They are kept free of Android classes so that inserts and queries
+ * can be benchmarked on a plain JVM against the same SQLite statements and settings.
+ */
+public final class TrackSchema {
+  public static final int VERSION = 1;
+
+  /** Size of a spatial cell, in degrees */
+  public static final double CELL_SIZE = 0.01;
+
+  public static final String[] CREATE = {
+    "CREATE TABLE fixes (" +
+      "id INTEGER PRIMARY KEY, " +
+      "time INTEGER NOT NULL, " +
+      "elapsed INTEGER NOT NULL, " +
+      "latitude REAL NOT NULL, " +
+      "longitude REAL NOT NULL, " +
+      "altitude REAL, " +
+      "accuracy REAL, " +
+      "speed REAL, " +
+      "bearing REAL, " +
+      "provider INTEGER NOT NULL DEFAULT 0, " +
+      "motion INTEGER NOT NULL DEFAULT 0, " +
+      "cell INTEGER NOT NULL)",
+    "CREATE INDEX fixes_time ON fixes (time)",
+    "CREATE INDEX fixes_cell ON fixes (cell, time)"
+  };
+
+  /** With write-ahead logging, syncing on checkpoints only is still safe against corruption */
+  public static final String SYNCHRONOUS = "PRAGMA synchronous = NORMAL";
+
+  /**
+   * The columns of a fix, in the order {@link #INSERT} binds and {@link #select} returns them; {@code motion} holds
+   * the {@link com.unitedd.location.pipeline.Fix#getMotionFlags() motion flags}
+   */
+  public static final String COLUMNS =
+    "time, elapsed, latitude, longitude, altitude, accuracy, speed, bearing, provider, motion";
+
+  /** Binds the {@link #COLUMNS} and then the cell of the fix */
+  public static final String INSERT =
+    "INSERT INTO fixes (" + COLUMNS + ", cell) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  private static final int MAX_QUERY_CELLS = 64;
+  private static final int CELLS_PER_ROW = (int) Math.round(360 / CELL_SIZE);
+
+  private TrackSchema() {}
+
+  /**
+   * @return the key of the cell a position lies in, cells being {@link #CELL_SIZE} degrees wide and high
+   */
+  public static long cellOf(double latitude, double longitude) {
+    long row = (long) Math.floor((latitude + 90) / CELL_SIZE);
+    long column = (long) Math.floor((longitude + 180) / CELL_SIZE);
+    return row * CELLS_PER_ROW + column;
+  }
+
+  /**
+   * Builds the query for one page of fixes, see {@link TrackStore#query}. The query returns the id followed by the
+   * {@link #COLUMNS}.
+   *
+   * @param args the list to add the arguments of the query to
+   * @return the SQL of the query
+   * @throws IllegalArgumentException if the limit is less than 1
+   */
+  public static String select(long from, long to, double[] bbox, int limit, String cursor, List<String> args) {
+    if (limit < 1) throw new IllegalArgumentException("Invalid limit " + limit);
+
+    // Keyset paging on (time, id) stays fast however deep the page, unlike an offset, as long as the cursor also
+    // raises the start of the time range: the index search then starts at the cursor instead of at the first fix
+    String cursorTime = null, cursorId = null;
+    if (cursor != null) {
+      int separator = cursor.indexOf(':');
+      cursorTime = cursor.substring(0, separator);
+      cursorId = cursor.substring(separator + 1);
+      from = Math.max(from, Long.parseLong(cursorTime));
+    }
+
+    StringBuilder where = new StringBuilder("time BETWEEN ? AND ?");
+    args.add(Long.toString(from));
+    args.add(Long.toString(to));
+
+    if (cursor != null) {
+      where.append(" AND (time > ? OR id > ?)");
+      args.add(cursorTime);
+      args.add(cursorId);
+    }
+
+    if (bbox != null) {
+      appendCells(where, bbox);
+      where.append(" AND latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?");
+      args.add(Double.toString(bbox[0]));
+      args.add(Double.toString(bbox[2]));
+      args.add(Double.toString(bbox[1]));
+      args.add(Double.toString(bbox[3]));
+    }
+
+    return "SELECT id, " + COLUMNS + " FROM fixes WHERE " + where + " ORDER BY time, id LIMIT " + limit;
+  }
+
+  /**
+   * Restricts the query to the cells overlapping the bounding box, so that the cell index can be used. Boxes
+   * spanning too many cells are left to the time index and the plain coordinate filter.
+   */
+  private static void appendCells(StringBuilder where, double[] bbox) {
+    long minRow = (long) Math.floor((bbox[0] + 90) / CELL_SIZE);
+    long maxRow = (long) Math.floor((bbox[2] + 90) / CELL_SIZE);
+    long minColumn = (long) Math.floor((bbox[1] + 180) / CELL_SIZE);
+    long maxColumn = (long) Math.floor((bbox[3] + 180) / CELL_SIZE);
+    if ((maxRow - minRow + 1) * (maxColumn - minColumn + 1) > MAX_QUERY_CELLS) return;
+
+    where.append(" AND cell IN (");
+    for (long row = minRow; row <= maxRow; row++) {
+      for (long column = minColumn; column <= maxColumn; column++) {
+        if (row != minRow || column != minColumn) where.append(',');
+        where.append(row * CELLS_PER_ROW + column);
+      }
+    }
+    where.append(')');
+  }
+}
@@ -0,0 +1,257 @@
+package com.unitedd.location.store;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.TrackBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SQLite store for days of track history, indexed by time and by a spatial cell key.
+ * Like the journal, appending only stages the fix in memory; a background thread inserts the staged fixes in one
+ * transaction per batch, with write-ahead logging so that queries never wait for the writer. Staged fixes become
+ * visible to queries once their batch is written, at most {@link #MAX_BATCH_LATENCY} milliseconds later.
+ */
+public class TrackStore {
+  private static final int STAGING_FIXES = 1024;
+  private static final int BATCH_SIZE = 128;
+  private static final long MAX_BATCH_LATENCY = 5000;
+
+  private final SQLiteDatabase mDatabase;
+  private final SQLiteStatement mInsert;
+
+  private final Object mLock = new Object();
+  private TrackBuffer mStaging = new TrackBuffer(STAGING_FIXES);
+  private TrackBuffer mWriting = new TrackBuffer(STAGING_FIXES);
+  private long mFirstStagedAt;
+  private boolean isFlushRequested = false;
+  private boolean mClosed = false;
+  private long mDropped = 0;
+
+  private final Thread mWriter = new Thread("TrackStore") {
+    @Override
+    public void run() {
+      drainLoop();
+    }
+  };
+
+  /**
+   * Opens the store, creating the database if needed.
+   *
+   * @param context the context to resolve the database path with
+   * @param name    the file name of the database
+   */
+  public TrackStore(Context context, String name) {
+    Helper helper = new Helper(context, name);
+    helper.setWriteAheadLoggingEnabled(true);
+    mDatabase = helper.getWritableDatabase();
+    mInsert = mDatabase.compileStatement(TrackSchema.INSERT);
+
+    mWriter.setDaemon(true);
+    mWriter.start();
+  }
+
+  /**
+   * Stages a fix for writing. Never blocks on I/O; if the writer falls behind by more than the staging capacity,
+   * the fix is dropped and counted in {@link #getDroppedCount()}.
+   *
+   * @param fix the fix to store
+   */
+  public void append(Fix fix) {
+    synchronized (mLock) {
+      if (mClosed) return;
+      if (mStaging.size() == mStaging.capacity()) {
+        mDropped++;
+        return;
+      }
+
+      if (mStaging.size() == 0)
+        mFirstStagedAt = SystemClock.elapsedRealtime();
+      mStaging.append(fix);
+      // Wake the writer to start the latency timer, or to write a full batch
+      if (mStaging.size() == 1 || mStaging.size() >= BATCH_SIZE)
+        mLock.notify();
+    }
+  }
+
+  /**
+   * Has the writer write all staged fixes right away rather than waiting for a full batch.
+   */
+  public void flush() {
+    synchronized (mLock) {
+      isFlushRequested = true;
+      mLock.notify();
+    }
+  }
+
+  /**
+   * Reads one page of stored fixes, ordered by time.
+   *
+   * @param from   UTC time (in milliseconds) of the earliest fix
+   * @param to     UTC time (in milliseconds) of the latest fix
+   * @param bbox   minimum latitude, minimum longitude, maximum latitude and maximum longitude of the fixes, or
+   *               {@code null} for no spatial restriction
+   * @param limit  maximum number of fixes to read, at least 1
+   * @param cursor the cursor returned with the previous page, or {@code null} for the first page
+   * @param out    the list to fill with the fixes
+   * @return the cursor to read the next page with, or {@code null} if this was the last page
+   */
+  public @Nullable String query(long from, long to, @Nullable double[] bbox, int limit, @Nullable String cursor,
+                                List<Fix> out) throws SQLException {
+    List<String> args = new ArrayList<>();
+    String sql = TrackSchema.select(from, to, bbox, limit, cursor, args);
+
+    Cursor rows = mDatabase.rawQuery(sql, args.toArray(new String[args.size()]));
+    try {
+      long lastId = 0;
+      long lastTime = 0;
+      while (rows.moveToNext()) {
+        Fix fix = new Fix();
+        lastId = rows.getLong(0);
+        fix.time = lastTime = rows.getLong(1);
+        fix.elapsedRealtimeNanos = rows.getLong(2);
+        fix.latitude = rows.getDouble(3);
+        fix.longitude = rows.getDouble(4);
+        fix.altitude = rows.getDouble(5);
+        fix.accuracy = rows.getFloat(6);
+        fix.speed = rows.getFloat(7);
+        fix.bearing = rows.getFloat(8);
+        fix.provider = rows.getInt(9);
+        fix.setMotionFlags(rows.getInt(10));
+        out.add(fix);
+      }
+      return rows.getCount() < limit ? null : lastTime + ":" + lastId;
+    } finally {
+      rows.close();
+    }
+  }
+
+  /**
+   * Deletes all fixes older than the given time.
+   *
+   * @param time UTC time (in milliseconds) of the oldest fix to keep
+   * @return the number of fixes deleted
+   */
+  public int pruneBefore(long time) throws SQLException {
+    return mDatabase.delete("fixes", "time < ?", new String[]{Long.toString(time)});
+  }
+
+  /**
+   * @return the number of fixes dropped because the writer could not keep up or a batch could not be written
+   */
+  public long getDroppedCount() {
+    synchronized (mLock) {
+      return mDropped;
+    }
+  }
+
+  /**
+   * Writes out all staged fixes, stops the writer thread and closes the database.
+   */
+  public void close() {
+    synchronized (mLock) {
+      mClosed = true;
+      mLock.notify();
+    }
+
+    try {
+      mWriter.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    mDatabase.close();
+  }
+
+  private void drainLoop() {
+    while (true) {
+      synchronized (mLock) {
+        try {
+          while (!mClosed && !isFlushRequested && mStaging.size() < BATCH_SIZE) {
+            if (mStaging.size() == 0) {
+              mLock.wait();
+              continue;
+            }
+
+            long wait = mFirstStagedAt + MAX_BATCH_LATENCY - SystemClock.elapsedRealtime();
+            if (wait <= 0) break;
+            mLock.wait(wait);
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        isFlushRequested = false;
+        if (mStaging.size() == 0) {
+          if (mClosed) break;
+          continue;
+        }
+        TrackBuffer staged = mStaging;
+        mStaging = mWriting;
+        mWriting = staged;
+      }
+
+      try {
+        write(mWriting);
+      } catch (SQLException e) {
+        synchronized (mLock) {
+          mDropped += mWriting.size();
+        }
+      } finally {
+        mWriting.clear();
+      }
+    }
+  }
+
+  private void write(TrackBuffer fixes) {
+    Fix fix = new Fix();
+    mDatabase.beginTransactionNonExclusive();
+    try {
+      for (int age = fixes.size() - 1; age >= 0; age--) {
+        fixes.get(age, fix);
+        mInsert.bindLong(1, fix.time);
+        mInsert.bindLong(2, fix.elapsedRealtimeNanos);
+        mInsert.bindDouble(3, fix.latitude);
+        mInsert.bindDouble(4, fix.longitude);
+        mInsert.bindDouble(5, fix.altitude);
+        mInsert.bindDouble(6, fix.accuracy);
+        mInsert.bindDouble(7, fix.speed);
+        mInsert.bindDouble(8, fix.bearing);
+        mInsert.bindLong(9, fix.provider);
+        mInsert.bindLong(10, fix.getMotionFlags());
+        mInsert.bindLong(11, TrackSchema.cellOf(fix.latitude, fix.longitude));
+        mInsert.executeInsert();
+      }
+      mDatabase.setTransactionSuccessful();
+    } finally {
+      mDatabase.endTransaction();
+    }
+  }
+
+  private static class Helper extends SQLiteOpenHelper {
+    Helper(Context context, String name) {
+      super(context, name, null, TrackSchema.VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      for (String statement : TrackSchema.CREATE)
+        db.execSQL(statement);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+      db.execSQL(TrackSchema.SYNCHRONOUS);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+  }
+}
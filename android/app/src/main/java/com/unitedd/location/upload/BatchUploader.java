@@ -0,0 +1,362 @@
+package com.unitedd.location.upload;
+
+import com.unitedd.location.journal.LocationJournal;
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.FixSink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads fixes to an HTTP endpoint without going through JS. Fixes are collected into size- or time-bounded
+ * batches, which are gzipped and POSTed as {@code {"locations": [...]}} by a bounded pool of threads. Failed
+ * batches are retried with exponential backoff.
+ * <p>
+ * Every fix is also written to a journal, which is only acknowledged up to the last batch that the server accepted
+ * and that every earlier batch was accepted before. Fixes that were not uploaded when the process died, or whose
+ * batch was given up on, are uploaded again by the next uploader on the same journal, so a fix may be uploaded more
+ * than once but is not lost.
+ */
+public class BatchUploader implements FixSink {
+
+  public interface Listener {
+    /**
+     * Called on an upload thread once a batch has been accepted by the server.
+     *
+     * @param count    number of fixes in the batch
+     * @param bytes    size of the compressed payload
+     * @param latency  time (in milliseconds) from sealing the batch to its successful upload, including retries
+     * @param attempts number of attempts it took
+     */
+    void onBatchUploaded(int count, int bytes, long latency, int attempts);
+
+    /**
+     * Called on an upload thread once a batch has been given up on. Unless the server rejected it, its fixes are
+     * uploaded again by the next uploader.
+     *
+     * @param count   number of fixes in the batch
+     * @param message a plain-text description of the last error
+     */
+    void onBatchFailed(int count, String message);
+  }
+
+  public static class Config {
+    public String url;
+    public Map<String, String> headers = new HashMap<>();
+    public int batchSize = 50;
+    public long maxBatchLatency = 60000;
+    public int maxConcurrency = 2;
+    public int maxRetries = 5;
+    public long initialBackoff = 1000;
+    public long maxBackoff = 300000;
+    public int maxPendingBatches = 100;
+    public int timeout = 30000;
+  }
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Config mConfig;
+  private final LocationJournal mJournal;
+  private final Listener mListener;
+  private final ScheduledThreadPoolExecutor mExecutor;
+  private final Random mRandom = new Random();
+
+  private StringBuilder mBatch;
+  private int mBatchCount = 0;
+  private long mBatchLastSequence = Long.MIN_VALUE;
+  private ScheduledFuture<?> mLatencyTimer;
+  private final ArrayDeque<Batch> mPending = new ArrayDeque<>();
+  /** Batches in journal order, from the oldest one not accepted by the server yet */
+  private final ArrayDeque<Batch> mUnacknowledged = new ArrayDeque<>();
+  /** Cleared once a batch is given up on, as the journal must then keep its fixes and all later ones */
+  private boolean isAcknowledging = true;
+  private int mInFlight = 0;
+  private boolean isShutdown = false;
+
+  /**
+   * Creates the uploader and queues the fixes left in the journal by earlier uploaders.
+   *
+   * @param journal the journal to keep the fixes in until they are uploaded, only used by this uploader
+   */
+  public BatchUploader(Config config, LocationJournal journal, Listener listener) throws IOException {
+    mConfig = config;
+    mJournal = journal;
+    mListener = listener;
+    mExecutor = new ScheduledThreadPoolExecutor(Math.max(1, config.maxConcurrency));
+
+    synchronized (this) {
+      mJournal.readPending(Integer.MAX_VALUE, new LocationJournal.RecordSink() {
+        @Override
+        public void onRecord(long sequence, Fix fix) {
+          add(fix, sequence);
+        }
+      });
+      flush();
+    }
+  }
+
+  @Override
+  public synchronized void onFix(Fix fix) {
+    if (isShutdown) return;
+    add(fix, mJournal.append(fix));
+  }
+
+  /**
+   * @param sequence the sequence number of the fix in the journal, or -1 if it is not journaled
+   */
+  private void add(Fix fix, long sequence) {
+    if (mBatch == null) {
+      mBatch = new StringBuilder(mConfig.batchSize * 160).append("{\"locations\":[");
+      if (mConfig.maxBatchLatency > 0)
+        mLatencyTimer = mExecutor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        }, mConfig.maxBatchLatency, TimeUnit.MILLISECONDS);
+    } else
+      mBatch.append(',');
+
+    mBatch.append("{\"latitude\":").append(fix.latitude)
+      .append(",\"longitude\":").append(fix.longitude)
+      .append(",\"altitude\":").append(fix.altitude);
+    appendField("accuracy", fix.accuracy);
+    appendField("speed", fix.speed);
+    appendField("heading", fix.bearing);
+    mBatch.append(",\"timestamp\":").append(fix.time);
+    if (fix.isSpeedDerived)
+      mBatch.append(",\"speedDerived\":true");
+    if (fix.isBearingDerived)
+      mBatch.append(",\"headingDerived\":true");
+    mBatch.append('}');
+    mBatchLastSequence = Math.max(mBatchLastSequence, sequence);
+
+    if (++mBatchCount >= mConfig.batchSize)
+      flush();
+  }
+
+  /**
+   * Appends a field unless its value is NaN or infinite, which JSON cannot represent.
+   */
+  private void appendField(String name, float value) {
+    if (!Float.isNaN(value) && !Float.isInfinite(value))
+      mBatch.append(",\"").append(name).append("\":").append(value);
+  }
+
+  /**
+   * Seals the current batch and queues it for upload.
+   */
+  public synchronized void flush() {
+    if (mLatencyTimer != null) {
+      mLatencyTimer.cancel(false);
+      mLatencyTimer = null;
+    }
+    if (mBatch == null) return;
+
+    Batch batch;
+    try {
+      batch = new Batch(gzip(mBatch.append("]}").toString()), mBatchCount, mBatchLastSequence);
+    } catch (IOException e) {
+      mListener.onBatchFailed(mBatchCount, e.toString());
+      abandon();
+      return;
+    } finally {
+      mBatch = null;
+      mBatchCount = 0;
+      mBatchLastSequence = Long.MIN_VALUE;
+    }
+
+    if (mPending.size() >= mConfig.maxPendingBatches) {
+      Batch dropped = mPending.poll();
+      mListener.onBatchFailed(dropped.count, "Upload queue is full");
+      abandon();
+    }
+
+    if (isAcknowledging)
+      mUnacknowledged.add(batch);
+    mPending.add(batch);
+    dispatch();
+  }
+
+  /**
+   * Uploads the current batch and stops accepting new ones once all queued batches have been processed.
+   */
+  public synchronized void shutdown() {
+    flush();
+    isShutdown = true;
+    terminateIfIdle();
+  }
+
+  private synchronized void dispatch() {
+    while (mInFlight < mConfig.maxConcurrency && !mPending.isEmpty()) {
+      final Batch batch = mPending.poll();
+      mInFlight++;
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          send(batch);
+        }
+      });
+    }
+  }
+
+  private void send(final Batch batch) {
+    batch.attempts++;
+    String error;
+
+    try {
+      int status = post(batch.payload);
+      if (status >= 200 && status < 300) {
+        acknowledge(batch);
+        mListener.onBatchUploaded(batch.count, batch.payload.length,
+          (System.nanoTime() - batch.createdNanos) / 1000000, batch.attempts);
+        release();
+        return;
+      }
+
+      error = "HTTP " + status;
+      if (status < 500 && status != 408 && status != 429) {
+        // The server will not accept this batch no matter how often we try, so keeping it would only hold back the
+        // acknowledgement of every later batch
+        acknowledge(batch);
+        mListener.onBatchFailed(batch.count, error);
+        release();
+        return;
+      }
+    } catch (IOException e) {
+      error = e.toString();
+    }
+
+    if (batch.attempts > mConfig.maxRetries) {
+      mListener.onBatchFailed(batch.count, error);
+      abandon();
+      release();
+      return;
+    }
+
+    long backoff = Math.min(mConfig.maxBackoff, mConfig.initialBackoff << Math.min(batch.attempts - 1, 20));
+    backoff = backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+    mExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        send(batch);
+      }
+    }, backoff, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Acknowledges the journal up to the last batch that, like all batches before it, is done with.
+   */
+  private void acknowledge(Batch batch) {
+    long upToSequence = Long.MIN_VALUE;
+    synchronized (this) {
+      batch.isDone = true;
+      while (!mUnacknowledged.isEmpty() && mUnacknowledged.peek().isDone)
+        upToSequence = Math.max(upToSequence, mUnacknowledged.poll().lastSequence);
+    }
+    if (upToSequence < 0) return;
+
+    try {
+      mJournal.acknowledge(upToSequence);
+    } catch (IOException ignored) {
+      // The fixes are uploaded again by the next uploader
+    }
+  }
+
+  /**
+   * Stops acknowledging the journal, so that the fixes of a batch given up on are left for the next uploader.
+   */
+  private synchronized void abandon() {
+    isAcknowledging = false;
+    mUnacknowledged.clear();
+  }
+
+  private synchronized void release() {
+    mInFlight--;
+    dispatch();
+    terminateIfIdle();
+  }
+
+  private void terminateIfIdle() {
+    if (isShutdown && mInFlight == 0 && mPending.isEmpty())
+      mExecutor.shutdown();
+  }
+
+  private int post(byte[] payload) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(mConfig.url).openConnection();
+    try {
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setConnectTimeout(mConfig.timeout);
+      connection.setReadTimeout(mConfig.timeout);
+      connection.setFixedLengthStreamingMode(payload.length);
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setRequestProperty("Content-Encoding", "gzip");
+      for (Map.Entry<String, String> header : mConfig.headers.entrySet())
+        connection.setRequestProperty(header.getKey(), header.getValue());
+
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(payload);
+      } finally {
+        out.close();
+      }
+
+      int status = connection.getResponseCode();
+      InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      if (in != null) {
+        // Drain the response so that the underlying connection can be kept alive
+        byte[] buffer = new byte[1024];
+        try {
+          while (in.read(buffer) >= 0);
+        } finally {
+          in.close();
+        }
+      }
+      return status;
+    } catch (IOException e) {
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  private static byte[] gzip(String json) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length() / 4);
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    try {
+      out.write(json.getBytes(UTF_8));
+    } finally {
+      out.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  private static class Batch {
+    final byte[] payload;
+    final int count;
+    /** Sequence number of the last journaled fix in the batch, or a negative number if there is none */
+    final long lastSequence;
+    final long createdNanos = System.nanoTime();
+    int attempts = 0;
+    boolean isDone = false;
+
+    Batch(byte[] payload, int count, long lastSequence) {
+      this.payload = payload;
+      this.count = count;
+      this.lastSequence = lastSequence;
+    }
+  }
+}
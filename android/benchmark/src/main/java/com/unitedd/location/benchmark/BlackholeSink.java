@@ -0,0 +1,23 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.FixSink;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Terminates a pipeline under test, making sure the JIT cannot eliminate the work done on the fixes.
+ */
+class BlackholeSink implements FixSink {
+  private final Blackhole mBlackhole;
+
+  BlackholeSink(Blackhole blackhole) {
+    mBlackhole = blackhole;
+  }
+
+  @Override
+  public void onFix(Fix fix) {
+    mBlackhole.consume(fix.latitude);
+    mBlackhole.consume(fix.longitude);
+    mBlackhole.consume(fix.smoothedLatitude);
+  }
+}
@@ -0,0 +1,36 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.Geo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the distance between consecutive fixes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoBenchmark {
+
+  @Benchmark
+  public double haversine(TraceState trace) {
+    Fix fix = trace.next();
+    return Geo.haversine(fix.latitude, fix.longitude, fix.latitude + 0.0001, fix.longitude + 0.0001);
+  }
+
+  @Benchmark
+  public double equirectangular(TraceState trace) {
+    Fix fix = trace.next();
+    return Geo.equirectangular(fix.latitude, fix.longitude, fix.latitude + 0.0001, fix.longitude + 0.0001);
+  }
+}
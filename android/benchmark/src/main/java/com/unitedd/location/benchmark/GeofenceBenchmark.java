@@ -0,0 +1,80 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.geofence.Geofence;
+import com.unitedd.location.geofence.GeofenceEngine;
+import com.unitedd.location.pipeline.Fix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-fix cost of evaluating a large number of geofences scattered around the synthetic trace, and the cost of
+ * loading them in bulk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeofenceBenchmark {
+  @Param({"1000", "10000"})
+  public int fences;
+
+  private List<Geofence> mFences;
+  private GeofenceEngine mEngine;
+
+  @Setup
+  public void setUp(final Blackhole blackhole) {
+    Random random = new Random(7);
+    mFences = new ArrayList<>(fences);
+    for (int i = 0; i < fences; i++) {
+      double latitude = 48.7 + random.nextDouble() * 0.4;
+      double longitude = 2.2 + random.nextDouble() * 0.4;
+      if (i % 10 == 0)
+        mFences.add(Geofence.polygon("p" + i,
+          new double[]{latitude, latitude + 0.002, latitude + 0.002, latitude},
+          new double[]{longitude, longitude, longitude + 0.003, longitude + 0.003}, 60000));
+      else
+        mFences.add(Geofence.circle("c" + i, latitude, longitude, 50 + random.nextDouble() * 450, 60000));
+    }
+
+    mEngine = new GeofenceEngine(new GeofenceEngine.Listener() {
+      @Override
+      public void onGeofenceTransition(Geofence fence, GeofenceEngine.Transition transition, Fix fix) {
+        blackhole.consume(transition);
+      }
+    });
+    mEngine.addAll(mFences);
+  }
+
+  @Benchmark
+  public void evaluate(TraceState trace) {
+    mEngine.onFix(trace.next());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 3)
+  @Measurement(iterations = 10)
+  public GeofenceEngine load() {
+    GeofenceEngine engine = new GeofenceEngine(null);
+    engine.addAll(mFences);
+    return engine;
+  }
+}
@@ -0,0 +1,131 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.journal.LocationJournal;
+import com.unitedd.location.pipeline.Fix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of journaling fixes from the location callback. Appends that outrun the writer thread are dropped
+ * rather than blocking, so the number of dropped records is printed after each trial. Also measures reading a page
+ * of pending records, which should not depend on how many records before them were already acknowledged.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JournalBenchmark {
+  private static final int PAGE_SIZE = 500;
+
+  private File mDirectory;
+  private LocationJournal mJournal;
+
+  @State(Scope.Thread)
+  public static class PendingState {
+    /** Number of records acknowledged before the pending ones, out of the 60000 journaled */
+    @Param({"0", "59000"})
+    public int acknowledged;
+
+    File mDirectory;
+    LocationJournal mJournal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      mDirectory = createDirectory();
+      mJournal = new LocationJournal(mDirectory, 4096, 16);
+
+      TraceState trace = new TraceState();
+      trace.trace = Traces.SYNTHETIC;
+      trace.load();
+      long acknowledgedSequence = 0;
+      for (int i = 0; i < 60000; i++) {
+        long sequence = mJournal.append(trace.next());
+        if (i < acknowledged) acknowledgedSequence = sequence;
+
+        // Let the writer catch up rather than dropping records
+        if (i % 200 == 199) {
+          mJournal.close();
+          mJournal = new LocationJournal(mDirectory, 4096, 16);
+        }
+      }
+      mJournal.close();
+      mJournal = new LocationJournal(mDirectory, 4096, 16);
+      mJournal.acknowledge(acknowledgedSequence);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      mJournal.close();
+      deleteDirectory(mDirectory);
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    mDirectory = createDirectory();
+    mJournal = new LocationJournal(mDirectory, 4096, 16);
+  }
+
+  @TearDown
+  public void tearDown() {
+    mJournal.close();
+    System.out.println("Dropped records: " + mJournal.getDroppedCount());
+    deleteDirectory(mDirectory);
+  }
+
+  @Benchmark
+  public void append(TraceState trace) {
+    mJournal.append(trace.next());
+  }
+
+  /**
+   * A page of pending records, as the app reads them before uploading.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int readPending(PendingState state, Blackhole blackhole) throws IOException {
+    final BlackholeSink sink = new BlackholeSink(blackhole);
+    return state.mJournal.readPending(PAGE_SIZE, new LocationJournal.RecordSink() {
+      @Override
+      public void onRecord(long sequence, Fix fix) {
+        sink.onFix(fix);
+      }
+    });
+  }
+
+  private static File createDirectory() throws IOException {
+    File directory = File.createTempFile("journal", "");
+    if (!directory.delete() || !directory.mkdir())
+      throw new IOException("Could not create " + directory);
+    return directory;
+  }
+
+  private static void deleteDirectory(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null)
+      for (File file : files)
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    //noinspection ResultOfMethodCallIgnored
+    directory.delete();
+  }
+}
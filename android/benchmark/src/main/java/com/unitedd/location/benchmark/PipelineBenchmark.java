@@ -0,0 +1,282 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.pipeline.DistanceGate;
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.FixPipeline;
+import com.unitedd.location.pipeline.FixSink;
+import com.unitedd.location.pipeline.KalmanSmoother;
+import com.unitedd.location.pipeline.KinematicFilter;
+import com.unitedd.location.pipeline.MotionEstimator;
+import com.unitedd.location.pipeline.PipelineStats;
+import com.unitedd.location.pipeline.ReorderBuffer;
+import com.unitedd.location.pipeline.SamplingScheduler;
+import com.unitedd.location.pipeline.TrackBuffer;
+import com.unitedd.location.pipeline.TrackSimplifier;
+import com.unitedd.location.pipeline.TripSegmenter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-fix cost of the individual pipeline stages and of a pipeline with all of them enabled, plus the sinks that
+ * run next to the pipeline on every fix.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+  private DistanceGate mDistanceGate;
+  private KalmanSmoother mKalmanSmoother;
+  private TrackSimplifier mTrackSimplifier;
+  private SamplingScheduler mSamplingScheduler;
+  private TrackBuffer mTrackBuffer;
+  private TripSegmenter mTripSegmenter;
+  private KinematicFilter mKinematicFilter;
+  private MotionEstimator mMotionEstimator;
+  private ReorderBuffer mReorderBuffer;
+  private FixPipeline mPipeline;
+
+  /**
+   * Prints how many fixes of the whole trace the {@link KinematicFilter} drops, since JMH only measures time.
+   * Run with {@code -p trace=synthetic-outliers} to compare against the outliers injected into the synthetic trace.
+   */
+  @State(Scope.Benchmark)
+  public static class OutlierState {
+    @Setup
+    public void measureRejections(TraceState trace) throws IOException {
+      Fix[] fixes = Traces.load(trace.trace);
+      PipelineStats stats = new PipelineStats();
+      KinematicFilter filter = new KinematicFilter(KinematicFilter.DRIVING_MAX_SPEED,
+        KinematicFilter.DRIVING_MAX_ACCELERATION, 0, stats);
+      filter.then(new FixSink() {
+        @Override
+        public void onFix(Fix fix) {}
+      });
+
+      Fix fix = new Fix();
+      for (Fix recorded : fixes) {
+        fix.set(recorded);
+        filter.onFix(fix);
+      }
+
+      System.out.printf("Outliers of %d fixes: speed %d, acceleration %d, accuracy %d%s%n", fixes.length,
+        stats.speedOutliers.get(), stats.accelerationOutliers.get(), stats.accuracyOutliers.get(),
+        Traces.SYNTHETIC_OUTLIERS.equals(trace.trace)
+          ? String.format(" (%d injected)", (fixes.length - 1) / Traces.OUTLIER_SPACING) : "");
+    }
+  }
+
+  /**
+   * Prints how far the speed and bearing the {@link MotionEstimator} derives are off from the ones in the trace.
+   */
+  @State(Scope.Benchmark)
+  public static class MotionState {
+    @Setup
+    public void measureError(TraceState trace) throws IOException {
+      final Fix[] fixes = Traces.load(trace.trace);
+      final double[] error = new double[4];
+      MotionEstimator estimator = new MotionEstimator(10000);
+      estimator.then(new FixSink() {
+        private int mIndex = 0;
+
+        @Override
+        public void onFix(Fix fix) {
+          Fix recorded = fixes[mIndex++];
+          if (fix.isSpeedDerived) {
+            error[0] += Math.abs(fix.speed - recorded.speed);
+            error[1]++;
+          }
+          if (fix.isBearingDerived && recorded.speed > 1) {
+            double difference = Math.abs(fix.bearing - recorded.bearing) % 360;
+            error[2] += Math.min(difference, 360 - difference);
+            error[3]++;
+          }
+        }
+      });
+
+      Fix fix = new Fix();
+      for (Fix recorded : fixes) {
+        fix.set(recorded);
+        fix.hasSpeed = false;
+        fix.hasBearing = false;
+        estimator.onFix(fix);
+      }
+
+      System.out.printf("Derived motion error: speed %.2f m/s over %d fixes, bearing %.1f deg over %d moving fixes%n",
+        error[0] / error[1], (long) error[1], error[2] / error[3], (long) error[3]);
+    }
+  }
+
+  /**
+   * Replays the trace with every 10th fix delivered after its successor and every 25th fix delivered twice, the
+   * way fixes arrive around restarts of the location request. Prints what the {@link ReorderBuffer} makes of the
+   * whole trace.
+   */
+  @State(Scope.Thread)
+  public static class ShuffledState {
+    private Fix[] mFixes;
+    private int mNext = 0;
+    private long mTimeOffset = 0;
+    private final Fix mFix = new Fix();
+
+    @Setup
+    public void shuffle(TraceState trace) throws IOException {
+      Fix[] fixes = Traces.load(trace.trace);
+      List<Fix> shuffled = new ArrayList<>();
+      for (int i = 0; i < fixes.length; i++) {
+        if (i % 10 == 9 && i + 1 < fixes.length) {
+          shuffled.add(fixes[i + 1]);
+          shuffled.add(fixes[i++]);
+        } else
+          shuffled.add(fixes[i]);
+        if (i % 25 == 0)
+          shuffled.add(fixes[i]);
+      }
+      mFixes = shuffled.toArray(new Fix[shuffled.size()]);
+
+      final long[] last = {Long.MIN_VALUE, 0, 0};
+      PipelineStats stats = new PipelineStats();
+      ReorderBuffer buffer = new ReorderBuffer(2000, 16, stats);
+      buffer.then(new FixSink() {
+        @Override
+        public void onFix(Fix fix) {
+          if (fix.elapsedRealtimeNanos <= last[0]) last[2]++;
+          last[0] = fix.elapsedRealtimeNanos;
+          last[1]++;
+        }
+      });
+      for (Fix fix : mFixes)
+        buffer.onFix(fix);
+      buffer.flush();
+
+      System.out.printf("Reordered %d deliveries of %d fixes: %d let through, %d duplicates, %d out of order, " +
+          "%d not monotonic%n", mFixes.length, fixes.length, last[1], stats.duplicates.get(),
+        stats.outOfOrder.get(), last[2]);
+    }
+
+    /**
+     * @return the next delivery; timestamps keep increasing when the trace wraps around
+     */
+    public Fix next() {
+      if (mNext == mFixes.length) {
+        mNext = 0;
+        mTimeOffset += mFixes[mFixes.length - 1].elapsedRealtimeNanos + 2000000000L;
+      }
+
+      mFix.set(mFixes[mNext++]);
+      mFix.elapsedRealtimeNanos += mTimeOffset;
+      return mFix;
+    }
+  }
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    BlackholeSink sink = new BlackholeSink(blackhole);
+    SamplingScheduler.Listener listener = new SamplingScheduler.Listener() {
+      @Override
+      public void onTierChanged(SamplingScheduler.Tier tier, SamplingScheduler.Tier previous, double speed) {}
+    };
+
+    mDistanceGate = new DistanceGate(10, 0);
+    mDistanceGate.then(sink);
+    mKalmanSmoother = new KalmanSmoother(1);
+    mKalmanSmoother.then(sink);
+    mTrackSimplifier = new TrackSimplifier(10, 64);
+    mTrackSimplifier.then(sink);
+    mSamplingScheduler = new SamplingScheduler(listener);
+    mSamplingScheduler.then(sink);
+    mTrackBuffer = new TrackBuffer(1000);
+    mTripSegmenter = new TripSegmenter(new TripSegmenter.Listener() {
+      @Override
+      public void onTripStart(double latitude, double longitude, long time, long stopDuration) {}
+
+      @Override
+      public void onStopStart(double latitude, double longitude, long time, TripSegmenter.Summary trip) {}
+
+      @Override
+      public void onTripEnd(TripSegmenter.Summary trip) {}
+    }, 100, 300000);
+    mKinematicFilter = new KinematicFilter(KinematicFilter.DRIVING_MAX_SPEED,
+      KinematicFilter.DRIVING_MAX_ACCELERATION, 0, new PipelineStats());
+    mKinematicFilter.then(sink);
+    mMotionEstimator = new MotionEstimator(10000);
+    mMotionEstimator.then(sink);
+    mReorderBuffer = new ReorderBuffer(2000, 16, new PipelineStats());
+    mReorderBuffer.then(sink);
+
+    mPipeline = new FixPipeline(sink)
+      .add(new SamplingScheduler(listener))
+      .add(new KalmanSmoother(1))
+      .add(new DistanceGate(10, 0))
+      .add(new TrackSimplifier(10, 64));
+  }
+
+  @Benchmark
+  public void distanceGate(TraceState trace) {
+    mDistanceGate.onFix(trace.next());
+  }
+
+  @Benchmark
+  public void kalmanSmoother(TraceState trace) {
+    mKalmanSmoother.onFix(trace.next());
+  }
+
+  @Benchmark
+  public void trackSimplifier(TraceState trace) {
+    mTrackSimplifier.onFix(trace.next());
+  }
+
+  @Benchmark
+  public void samplingScheduler(TraceState trace) {
+    mSamplingScheduler.onFix(trace.next());
+  }
+
+  @Benchmark
+  public void trackBufferAppend(TraceState trace) {
+    mTrackBuffer.append(trace.next());
+  }
+
+  @Benchmark
+  public void tripSegmenter(TraceState trace) {
+    mTripSegmenter.onFix(trace.next());
+  }
+
+  @Benchmark
+  public void kinematicFilter(TraceState trace, OutlierState outliers) {
+    mKinematicFilter.onFix(trace.next());
+  }
+
+  @Benchmark
+  public void motionEstimator(TraceState trace, MotionState motion) {
+    Fix fix = trace.next();
+    fix.hasSpeed = false;
+    fix.hasBearing = false;
+    mMotionEstimator.onFix(fix);
+  }
+
+  @Benchmark
+  public void reorderBuffer(ShuffledState trace) {
+    mReorderBuffer.onFix(trace.next());
+  }
+
+  @Benchmark
+  public void fullPipeline(TraceState trace) {
+    mPipeline.onFix(trace.next());
+  }
+}
@@ -0,0 +1,109 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.geofence.Geofence;
+import com.unitedd.location.geofence.GeofenceEngine;
+import com.unitedd.location.pipeline.DistanceGate;
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.FixPipeline;
+import com.unitedd.location.pipeline.KalmanSmoother;
+import com.unitedd.location.pipeline.SamplingScheduler;
+import com.unitedd.location.pipeline.TraceReader;
+import com.unitedd.location.pipeline.TrackSimplifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test: replays a whole trace through the full pipeline and 1000 geofences as fast as possible.
+ * The synthetic trace is a week of driving at 1 Hz; a recorded trace is streamed from disk with
+ * {@link TraceReader}, so parsing is included.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+  private static final int WEEK = 7 * 24 * 3600;
+
+  /** {@code synthetic} or the path of a GPX, NMEA or CSV trace */
+  @Param(Traces.SYNTHETIC)
+  public String trace;
+
+  private Fix[] mSynthetic;
+  private FixPipeline mPipeline;
+  private GeofenceEngine mGeofences;
+
+  @Setup
+  public void setUp(final Blackhole blackhole) {
+    if (Traces.SYNTHETIC.equals(trace))
+      mSynthetic = Traces.synthetic(WEEK, 42);
+
+    mPipeline = new FixPipeline(new BlackholeSink(blackhole))
+      .add(new SamplingScheduler(new SamplingScheduler.Listener() {
+        @Override
+        public void onTierChanged(SamplingScheduler.Tier tier, SamplingScheduler.Tier previous, double speed) {
+          blackhole.consume(tier);
+        }
+      }))
+      .add(new KalmanSmoother(1))
+      .add(new DistanceGate(10, 0))
+      .add(new TrackSimplifier(10, 64));
+
+    Random random = new Random(7);
+    List<Geofence> fences = new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+      fences.add(Geofence.circle("c" + i, 48.7 + random.nextDouble() * 0.4, 2.2 + random.nextDouble() * 0.4,
+        100 + random.nextDouble() * 400, 60000));
+    mGeofences = new GeofenceEngine(new GeofenceEngine.Listener() {
+      @Override
+      public void onGeofenceTransition(Geofence fence, GeofenceEngine.Transition transition, Fix fix) {
+        blackhole.consume(transition);
+      }
+    });
+    mGeofences.addAll(fences);
+  }
+
+  @Benchmark
+  public void replay() throws IOException {
+    mPipeline.reset();
+    Fix fix = new Fix();
+
+    if (mSynthetic != null) {
+      for (Fix recorded : mSynthetic) {
+        fix.set(recorded);
+        mGeofences.onFix(fix);
+        mPipeline.onFix(fix);
+      }
+    } else {
+      TraceReader reader = new TraceReader(new FileReader(trace), TraceReader.formatOf(trace));
+      try {
+        while (reader.next(fix)) {
+          mGeofences.onFix(fix);
+          mPipeline.onFix(fix);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    mPipeline.flush();
+  }
+}
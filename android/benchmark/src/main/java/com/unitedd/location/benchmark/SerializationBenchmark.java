@@ -0,0 +1,132 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.pipeline.ColumnarEncoder;
+import com.unitedd.location.pipeline.Fix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a fix into an event payload.
+ * {@code WritableMap} needs the React Native runtime, so the map benchmark uses a {@link HashMap} with the same
+ * keys and boxed values, which is what the bridge's Java-only map implementation is backed by.
+ * The JSON benchmarks stand in for what crosses the bridge; all batch benchmarks report time per fix.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+  static final int BATCH_SIZE = 50;
+
+  @State(Scope.Thread)
+  public static class CompactState {
+    final ColumnarEncoder encoder = new ColumnarEncoder(0, BATCH_SIZE);
+    final double[] values = new double[BATCH_SIZE * encoder.getColumnCount()];
+    final StringBuilder json = new StringBuilder(BATCH_SIZE * 200);
+
+    /**
+     * Prints the payload size of both encodings over the whole trace, since JMH only measures time.
+     */
+    @Setup
+    public void measureSize(TraceState trace) throws IOException {
+      Fix[] fixes = Traces.load(trace.trace);
+      long mapBytes = 0;
+      long compactBytes = 0;
+
+      for (int i = 0; i < fixes.length; i += BATCH_SIZE) {
+        json.setLength(0);
+        json.append('[');
+        encoder.clear();
+        for (int j = i; j < Math.min(i + BATCH_SIZE, fixes.length); j++) {
+          if (j > i) json.append(',');
+          appendJson(json, fixes[j]);
+          encoder.add(fixes[j]);
+        }
+        mapBytes += json.append(']').length();
+        compactBytes += appendCompactJson(this).length();
+      }
+
+      System.out.printf("Bytes per fix: map %.1f, compact %.1f%n",
+        (double) mapBytes / fixes.length, (double) compactBytes / fixes.length);
+    }
+  }
+
+  @Benchmark
+  public Map<String, Object> map(TraceState trace) {
+    Fix fix = trace.next();
+    Map<String, Object> map = new HashMap<>();
+    map.put("latitude", fix.latitude);
+    map.put("longitude", fix.longitude);
+    map.put("altitude", fix.altitude);
+    map.put("accuracy", (double) fix.accuracy);
+    map.put("speed", (double) fix.speed);
+    map.put("heading", (double) fix.bearing);
+    map.put("timestamp", (double) fix.time);
+    return map;
+  }
+
+  @Benchmark
+  public String json(TraceState trace) {
+    return appendJson(new StringBuilder(160), trace.next()).toString();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public double[] compact(TraceState trace, CompactState state) {
+    state.encoder.clear();
+    for (int i = 0; i < BATCH_SIZE; i++)
+      state.encoder.add(trace.next());
+    state.encoder.encode(state.values);
+    return state.values;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public String compactJson(TraceState trace, CompactState state) {
+    state.encoder.clear();
+    for (int i = 0; i < BATCH_SIZE; i++)
+      state.encoder.add(trace.next());
+    return appendCompactJson(state).toString();
+  }
+
+  private static StringBuilder appendJson(StringBuilder json, Fix fix) {
+    return json
+      .append("{\"latitude\":").append(fix.latitude)
+      .append(",\"longitude\":").append(fix.longitude)
+      .append(",\"altitude\":").append(fix.altitude)
+      .append(",\"accuracy\":").append(fix.accuracy)
+      .append(",\"speed\":").append(fix.speed)
+      .append(",\"heading\":").append(fix.bearing)
+      .append(",\"timestamp\":").append(fix.time)
+      .append('}');
+  }
+
+  private static StringBuilder appendCompactJson(CompactState state) {
+    int length = state.encoder.encode(state.values);
+    StringBuilder json = state.json;
+    json.setLength(0);
+    json.append("{\"fields\":").append(state.encoder.getFields())
+      .append(",\"count\":").append(state.encoder.size())
+      .append(",\"values\":[");
+    for (int i = 0; i < length; i++) {
+      if (i > 0) json.append(',');
+      json.append(state.values[i]);
+    }
+    return json.append("]}");
+  }
+}
@@ -0,0 +1,45 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.pipeline.Fix;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * Replays a trace one fix per benchmark invocation, wrapping around at its end.
+ * Fixes are copied into a single scratch instance, the way the module reuses one {@link Fix} per callback.
+ */
+@State(Scope.Thread)
+public class TraceState {
+  /** {@code synthetic} or the path of a recorded CSV trace, see {@link Traces#load(String)} */
+  @Param(Traces.SYNTHETIC)
+  public String trace;
+
+  private Fix[] mFixes;
+  private int mNext = 0;
+  private long mTimeOffset = 0;
+  private final Fix mFix = new Fix();
+
+  @Setup
+  public void load() throws IOException {
+    mFixes = Traces.load(trace);
+  }
+
+  /**
+   * @return the next fix of the trace; timestamps keep increasing when the trace wraps around
+   */
+  public Fix next() {
+    if (mNext == mFixes.length) {
+      mNext = 0;
+      mTimeOffset += mFixes[mFixes.length - 1].elapsedRealtimeNanos + 1000000000L;
+    }
+
+    mFix.set(mFixes[mNext++]);
+    mFix.elapsedRealtimeNanos += mTimeOffset;
+    mFix.time += mTimeOffset / 1000000L;
+    return mFix;
+  }
+}
@@ -0,0 +1,122 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.pipeline.TraceReader;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Loads the traces the benchmarks replay.
+ */
+final class Traces {
+  static final String SYNTHETIC = "synthetic";
+  static final String SYNTHETIC_OUTLIERS = "synthetic-outliers";
+  /** Every how many fixes {@link #SYNTHETIC_OUTLIERS} has an outlier */
+  static final int OUTLIER_SPACING = 50;
+
+  private Traces() {}
+
+  /**
+   * @param trace {@link #SYNTHETIC}, {@link #SYNTHETIC_OUTLIERS}, or the path of a GPX, NMEA or CSV trace, see
+   *              {@link TraceReader}
+   */
+  static Fix[] load(String trace) throws IOException {
+    if (SYNTHETIC.equals(trace))
+      return synthetic(20000, 42);
+    if (SYNTHETIC_OUTLIERS.equals(trace))
+      return withOutliers(synthetic(20000, 42), OUTLIER_SPACING, 43);
+    return file(trace);
+  }
+
+  /**
+   * A drive at 1 Hz alternating between cruising, turning and standing still, with gaussian position noise that
+   * matches the reported accuracy.
+   */
+  static Fix[] synthetic(int count, long seed) {
+    Random random = new Random(seed);
+    Fix[] fixes = new Fix[count];
+    double latitude = 48.8566, longitude = 2.3522, heading = 0, speed = 0;
+    double metresPerDegree = Math.toRadians(6371008.8);
+
+    for (int i = 0; i < count; i++) {
+      int phase = (i / 300) % 4;
+      double target = phase == 0 ? 0 : phase == 1 ? 14 : phase == 2 ? 30 : 8;
+      speed += Math.max(-3, Math.min(2, target - speed));
+      if (phase == 3) heading += 2;
+
+      latitude += speed * Math.cos(Math.toRadians(heading)) / metresPerDegree;
+      longitude += speed * Math.sin(Math.toRadians(heading)) /
+        (metresPerDegree * Math.cos(Math.toRadians(latitude)));
+
+      float accuracy = (float) (5 + random.nextDouble() * 25);
+      Fix fix = new Fix();
+      fix.latitude = latitude + random.nextGaussian() * accuracy / 2 / metresPerDegree;
+      fix.longitude = longitude + random.nextGaussian() * accuracy / 2 /
+        (metresPerDegree * Math.cos(Math.toRadians(latitude)));
+      fix.altitude = 35;
+      fix.accuracy = accuracy;
+      fix.speed = (float) speed;
+      fix.bearing = (float) (heading % 360);
+      fix.hasSpeed = true;
+      fix.hasBearing = true;
+      fix.time = 1500000000000L + i * 1000L;
+      fix.elapsedRealtimeNanos = i * 1000000000L;
+      fixes[i] = fix;
+    }
+    return fixes;
+  }
+
+  /**
+   * Replaces every {@code spacing}th fix with an outlier, cycling through a jump of a few kilometres, a multipath
+   * jump of a hundred metres with a plausible accuracy, and an accuracy spike.
+   */
+  static Fix[] withOutliers(Fix[] fixes, int spacing, long seed) {
+    Random random = new Random(seed);
+    double metresPerDegree = Math.toRadians(6371008.8);
+
+    for (int i = spacing; i < fixes.length; i += spacing) {
+      Fix fix = fixes[i];
+      double bearing = random.nextDouble() * 2 * Math.PI;
+      double distance;
+
+      switch (i / spacing % 3) {
+        case 0:
+          distance = 2000 + random.nextDouble() * 3000;
+          break;
+        case 1:
+          distance = 100 + random.nextDouble() * 50;
+          break;
+        default:
+          distance = 300;
+          fix.accuracy = 500;
+          break;
+      }
+
+      fix.latitude += distance * Math.cos(bearing) / metresPerDegree;
+      fix.longitude += distance * Math.sin(bearing) / (metresPerDegree * Math.cos(Math.toRadians(fix.latitude)));
+    }
+    return fixes;
+  }
+
+  private static Fix[] file(String path) throws IOException {
+    List<Fix> fixes = new ArrayList<>();
+    TraceReader reader = new TraceReader(new FileReader(path), TraceReader.formatOf(path));
+    try {
+      Fix fix = new Fix();
+      while (reader.next(fix)) {
+        fixes.add(fix);
+        fix = new Fix();
+      }
+    } finally {
+      reader.close();
+    }
+
+    if (fixes.isEmpty())
+      throw new IOException("No fixes in " + path);
+    return fixes.toArray(new Fix[fixes.size()]);
+  }
+}
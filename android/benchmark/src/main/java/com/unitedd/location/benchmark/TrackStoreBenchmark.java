@@ -0,0 +1,237 @@
+package com.unitedd.location.benchmark;
+
+import com.unitedd.location.pipeline.Fix;
+import com.unitedd.location.store.TrackSchema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the track store's batched inserts, and of its range queries on a million stored fixes. Runs the store's
+ * own schema, statements and settings against SQLite through JDBC rather than on a device, so absolute numbers
+ * differ from a phone's flash storage, but the query plans are the same.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackStoreBenchmark {
+  /** The batch size the store's writer thread inserts with */
+  private static final int BATCH_SIZE = 128;
+  private static final int PAGE_SIZE = 500;
+  private static final long HOUR = 3600000;
+
+  @State(Scope.Thread)
+  public static class InsertState {
+    File mFile;
+    Connection mConnection;
+    PreparedStatement mInsert;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+      mFile = File.createTempFile("track", ".db");
+      mConnection = open(mFile);
+      mInsert = mConnection.prepareStatement(TrackSchema.INSERT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+      mConnection.close();
+      delete(mFile);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class QueryState {
+    @Param("1000000")
+    public int rows;
+
+    File mFile;
+    Connection mConnection;
+    long mFirstTime;
+    long mLastTime;
+    // The replayed trace, to query around its positions
+    Fix[] mTrace;
+    final Random mRandom = new Random(11);
+    final List<Fix> mOut = new ArrayList<>(PAGE_SIZE);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+      mFile = File.createTempFile("track", ".db");
+      mConnection = open(mFile);
+      TraceState trace = new TraceState();
+      trace.trace = Traces.SYNTHETIC;
+      trace.load();
+      mTrace = Traces.load(Traces.SYNTHETIC);
+
+      PreparedStatement insert = mConnection.prepareStatement(TrackSchema.INSERT);
+      for (int i = 0; i < rows; i += BATCH_SIZE) {
+        for (int j = i; j < Math.min(rows, i + BATCH_SIZE); j++) {
+          Fix fix = trace.next();
+          if (j == 0) mFirstTime = fix.time;
+          mLastTime = fix.time;
+          bind(insert, fix);
+          insert.addBatch();
+        }
+        insert.executeBatch();
+        mConnection.commit();
+      }
+      insert.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+      mConnection.close();
+      delete(mFile);
+    }
+
+    /**
+     * @return the start of a random window of the given length within the stored time range
+     */
+    long randomStart(long length) {
+      return mFirstTime + (long) (mRandom.nextDouble() * (mLastTime - mFirstTime - length));
+    }
+  }
+
+  /**
+   * One transaction of the writer thread, per fix.
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void insertBatch(InsertState state, TraceState trace) throws SQLException {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      bind(state.mInsert, trace.next());
+      state.mInsert.addBatch();
+    }
+    state.mInsert.executeBatch();
+    state.mConnection.commit();
+  }
+
+  /**
+   * The first page of an hour of history, by the time index.
+   */
+  @Benchmark
+  public int rangeQuery(QueryState state) throws SQLException {
+    long from = state.randomStart(HOUR);
+    return query(state, from, from + HOUR, null, null);
+  }
+
+  /**
+   * A page deep into a day of history, by keyset paging from a cursor.
+   */
+  @Benchmark
+  public int rangeQueryPage(QueryState state) throws SQLException {
+    long from = state.randomStart(24 * HOUR);
+    String cursor = (from + 12 * HOUR) + ":0";
+    return query(state, from, from + 24 * HOUR, null, cursor);
+  }
+
+  /**
+   * A day of history around a position on the trace, by the cell index.
+   */
+  @Benchmark
+  public int boundingBoxQuery(QueryState state) throws SQLException {
+    Fix center = state.mTrace[state.mRandom.nextInt(state.mTrace.length)];
+    double[] bbox = {
+      center.latitude - 0.01, center.longitude - 0.01, center.latitude + 0.01, center.longitude + 0.01};
+    long from = state.randomStart(24 * HOUR);
+    return query(state, from, from + 24 * HOUR, bbox, null);
+  }
+
+  private static int query(QueryState state, long from, long to, double[] bbox, String cursor)
+    throws SQLException {
+    List<String> args = new ArrayList<>();
+    PreparedStatement select = state.mConnection.prepareStatement(
+      TrackSchema.select(from, to, bbox, PAGE_SIZE, cursor, args));
+    try {
+      for (int i = 0; i < args.size(); i++)
+        select.setString(i + 1, args.get(i));
+
+      // Reads the rows the way TrackStore.query does
+      List<Fix> out = state.mOut;
+      out.clear();
+      ResultSet rows = select.executeQuery();
+      while (rows.next()) {
+        Fix fix = new Fix();
+        fix.time = rows.getLong(2);
+        fix.elapsedRealtimeNanos = rows.getLong(3);
+        fix.latitude = rows.getDouble(4);
+        fix.longitude = rows.getDouble(5);
+        fix.altitude = rows.getDouble(6);
+        fix.accuracy = rows.getFloat(7);
+        fix.speed = rows.getFloat(8);
+        fix.bearing = rows.getFloat(9);
+        fix.provider = rows.getInt(10);
+        fix.setMotionFlags(rows.getInt(11));
+        out.add(fix);
+      }
+      return out.size();
+    } finally {
+      select.close();
+    }
+  }
+
+  /**
+   * Opens a database with the store's schema and settings, in manual commit mode.
+   */
+  private static Connection open(File file) throws SQLException {
+    Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+    Statement statement = connection.createStatement();
+    try {
+      // What SQLiteOpenHelper.setWriteAheadLoggingEnabled sets on Android
+      statement.execute("PRAGMA journal_mode = WAL");
+      statement.execute(TrackSchema.SYNCHRONOUS);
+      for (String create : TrackSchema.CREATE)
+        statement.execute(create);
+    } finally {
+      statement.close();
+    }
+    connection.setAutoCommit(false);
+    return connection;
+  }
+
+  private static void bind(PreparedStatement insert, Fix fix) throws SQLException {
+    insert.setLong(1, fix.time);
+    insert.setLong(2, fix.elapsedRealtimeNanos);
+    insert.setDouble(3, fix.latitude);
+    insert.setDouble(4, fix.longitude);
+    insert.setDouble(5, fix.altitude);
+    insert.setDouble(6, fix.accuracy);
+    insert.setDouble(7, fix.speed);
+    insert.setDouble(8, fix.bearing);
+    insert.setLong(9, fix.provider);
+    insert.setLong(10, fix.getMotionFlags());
+    insert.setLong(11, TrackSchema.cellOf(fix.latitude, fix.longitude));
+  }
+
+  private static void delete(File file) {
+    for (String suffix : new String[]{"", "-wal", "-shm"})
+      //noinspection ResultOfMethodCallIgnored
+      new File(file.getPath() + suffix).delete();
+  }
+}
@@ -0,0 +1,107 @@
+package com.unitedd.location.geofence;
+
+import com.unitedd.location.pipeline.Fix;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class GeofenceEngineTest {
+  private static final double LATITUDE = 48.8566;
+  private static final double LONGITUDE = 2.3522;
+
+  private final List<String> mTransitions = new ArrayList<>();
+  private GeofenceEngine mEngine;
+  private long mTime = 0;
+
+  @Before
+  public void setUp() {
+    mEngine = new GeofenceEngine(new GeofenceEngine.Listener() {
+      @Override
+      public void onGeofenceTransition(Geofence fence, GeofenceEngine.Transition transition, Fix fix) {
+        mTransitions.add(transition + " " + fence.id);
+      }
+    });
+    add(Geofence.circle("home", LATITUDE, LONGITUDE, 100, 60000));
+    feed(LATITUDE, LONGITUDE);
+    assertEquals("[ENTER home]", mTransitions.toString());
+    mTransitions.clear();
+  }
+
+  @Test
+  public void keepsStateOfFenceReplacedWithSameGeometry() {
+    add(Geofence.circle("home", LATITUDE, LONGITUDE, 100, 60000));
+    feed(LATITUDE, LONGITUDE);
+    assertEquals("[]", mTransitions.toString());
+  }
+
+  @Test
+  public void keepsStateOfResizedFenceStillContainingPosition() {
+    add(Geofence.circle("home", LATITUDE, LONGITUDE, 500, 60000));
+    feed(LATITUDE, LONGITUDE);
+    assertEquals("[]", mTransitions.toString());
+
+    // The dwell timer keeps running from the original enter
+    mTime += 60000;
+    feed(LATITUDE, LONGITUDE);
+    assertEquals("[DWELL home]", mTransitions.toString());
+  }
+
+  @Test
+  public void exitsAndEntersFenceMovedAwayAndBack() {
+    add(Geofence.circle("home", LATITUDE + 0.1, LONGITUDE, 100, 60000));
+    assertEquals("[EXIT home]", mTransitions.toString());
+    feed(LATITUDE, LONGITUDE);
+    assertEquals("[EXIT home]", mTransitions.toString());
+
+    add(Geofence.circle("home", LATITUDE, LONGITUDE, 100, 60000));
+    feed(LATITUDE, LONGITUDE);
+    assertEquals("[EXIT home, ENTER home]", mTransitions.toString());
+
+    // The dwell timer starts at the last fix before the fence was moved back
+    mTime += 58000;
+    feed(LATITUDE, LONGITUDE);
+    assertEquals("[EXIT home, ENTER home, DWELL home]", mTransitions.toString());
+  }
+
+  @Test
+  public void keepsLastFenceWithSameIdInBatch() {
+    mEngine.addAll(Arrays.asList(
+      Geofence.circle("home", LATITUDE + 0.1, LONGITUDE, 100, 60000),
+      Geofence.circle("home", LATITUDE, LONGITUDE, 500, 60000)));
+    assertEquals(1, mEngine.size());
+    feed(LATITUDE, LONGITUDE);
+    assertEquals("[]", mTransitions.toString());
+  }
+
+  @Test
+  public void exitsReplacedFence() {
+    add(Geofence.polygon("home",
+      new double[]{LATITUDE - 0.001, LATITUDE - 0.001, LATITUDE + 0.001, LATITUDE + 0.001},
+      new double[]{LONGITUDE - 0.001, LONGITUDE + 0.001, LONGITUDE + 0.001, LONGITUDE - 0.001}, 0));
+    feed(LATITUDE, LONGITUDE);
+    feed(LATITUDE + 0.01, LONGITUDE);
+    assertEquals("[EXIT home]", mTransitions.toString());
+  }
+
+  private void add(Geofence fence) {
+    mEngine.addAll(Collections.singletonList(fence));
+  }
+
+  private void feed(double latitude, double longitude) {
+    Fix fix = new Fix();
+    fix.latitude = latitude;
+    fix.longitude = longitude;
+    fix.accuracy = 10;
+    fix.time = 1500000000000L + mTime;
+    fix.elapsedRealtimeNanos = mTime * 1000000L;
+    mTime += 1000;
+    mEngine.onFix(fix);
+  }
+}
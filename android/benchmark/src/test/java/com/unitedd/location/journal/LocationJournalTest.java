@@ -0,0 +1,181 @@
+package com.unitedd.location.journal;
+
+import com.unitedd.location.pipeline.Fix;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LocationJournalTest {
+  private static final int SEGMENT_RECORDS = 100;
+  private static final int COUNT = 450;
+  private static final long START = 1500000000000L;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private File mDirectory;
+  private LocationJournal mJournal;
+
+  /**
+   * Journals one fix per second over several segments. The journal is reopened before the staging buffer fills up,
+   * so that no record is dropped and every record is on disk.
+   */
+  @Before
+  public void setUp() throws IOException {
+    mDirectory = mFolder.newFolder("journal");
+    mJournal = new LocationJournal(mDirectory, SEGMENT_RECORDS, 16);
+    Fix fix = new Fix();
+    for (int i = 0; i < COUNT; i++) {
+      fix.latitude = 48.8566 + i * 0.0001;
+      fix.longitude = 2.3522;
+      fix.accuracy = 10;
+      fix.provider = i % 3;
+      fix.time = START + i * 1000L;
+      fix.elapsedRealtimeNanos = i * 1000000000L;
+      mJournal.append(fix);
+      if (i % 200 == 199) reopen();
+    }
+    reopen();
+  }
+
+  @After
+  public void tearDown() {
+    mJournal.close();
+  }
+
+  @Test
+  public void readsFromAcknowledgedRecord() throws IOException {
+    assertEquals(range(0, 50), read(50));
+
+    // Acknowledged in the middle of the third segment, sequence numbers start at 1
+    mJournal.acknowledge(250);
+    assertEquals(range(250, 80), read(80));
+    assertEquals(range(250, COUNT - 250), read(COUNT));
+
+    mJournal.acknowledge(400);
+    reopen();
+    assertEquals(range(400, 50), read(COUNT));
+  }
+
+  @Test
+  public void readsNothingWhenAllAcknowledged() throws IOException {
+    mJournal.acknowledge(COUNT);
+    assertEquals(range(0, 0), read(COUNT));
+
+    Fix fix = new Fix();
+    fix.time = START + (COUNT + 1) * 1000L;
+    mJournal.append(fix);
+    reopen();
+    assertEquals(range(COUNT + 1, 1), read(COUNT));
+  }
+
+  @Test
+  public void keepsFixesAfterClockStepsBack() throws IOException {
+    mJournal.acknowledge(COUNT);
+    Fix fix = new Fix();
+    fix.elapsedRealtimeNanos = COUNT * 1000000000L;
+    fix.time = START + 10 * 1000L;
+    mJournal.append(fix);
+    // Same time, later fix
+    fix.elapsedRealtimeNanos += 1000000000L;
+    mJournal.append(fix);
+    fix.elapsedRealtimeNanos += 1000000000L;
+    fix.time = START + 5 * 1000L;
+    mJournal.append(fix);
+    reopen();
+
+    assertEquals(Arrays.asList(10, 10, 5), read(COUNT));
+  }
+
+  @Test
+  public void skipsFixAppendedAgain() throws IOException {
+    mJournal.acknowledge(COUNT);
+    Fix fix = new Fix();
+    fix.elapsedRealtimeNanos = COUNT * 1000000000L;
+    fix.time = START + COUNT * 1000L;
+    assertEquals(COUNT + 1, mJournal.append(fix));
+    assertEquals(-1, mJournal.append(fix));
+    reopen();
+
+    assertEquals(range(COUNT, 1), read(COUNT));
+  }
+
+  @Test
+  public void countsOnlyPendingRecordsOfDiscardedSegment() throws IOException {
+    File directory = mFolder.newFolder("capped");
+    LocationJournal journal = new LocationJournal(directory, 10, 2);
+    Fix fix = new Fix();
+    for (int i = 0; i < 20; i++) {
+      fix.elapsedRealtimeNanos = i;
+      journal.append(fix);
+    }
+    journal.close();
+
+    // Discards the first segment, half of which was acknowledged
+    journal = new LocationJournal(directory, 10, 2);
+    journal.acknowledge(5);
+    fix.elapsedRealtimeNanos = 20;
+    journal.append(fix);
+    journal.close();
+    assertEquals(5, journal.getDroppedCount());
+  }
+
+  @Test
+  public void decodesRecords() throws IOException {
+    final List<Fix> fixes = new ArrayList<>();
+    mJournal.readPending(3, new LocationJournal.RecordSink() {
+      @Override
+      public void onRecord(long sequence, Fix fix) {
+        Fix copy = new Fix();
+        copy.set(fix);
+        fixes.add(copy);
+      }
+    });
+
+    assertEquals(3, fixes.size());
+    for (int i = 0; i < fixes.size(); i++) {
+      assertEquals(48.8566 + i * 0.0001, fixes.get(i).latitude, 0);
+      assertEquals(i % 3, fixes.get(i).provider);
+      assertEquals(i * 1000000000L, fixes.get(i).elapsedRealtimeNanos);
+    }
+  }
+
+  private void reopen() throws IOException {
+    mJournal.close();
+    assertEquals(0, mJournal.getDroppedCount());
+    mJournal = new LocationJournal(mDirectory, SEGMENT_RECORDS, 16);
+  }
+
+  /**
+   * @return the indices of the pending records, in read order
+   */
+  private List<Integer> read(int limit) throws IOException {
+    final List<Integer> indices = new ArrayList<>();
+    int count = mJournal.readPending(limit, new LocationJournal.RecordSink() {
+      @Override
+      public void onRecord(long sequence, Fix fix) {
+        indices.add((int) ((fix.time - START) / 1000));
+      }
+    });
+    assertEquals(indices.size(), count);
+    return indices;
+  }
+
+  private static List<Integer> range(int first, int count) {
+    List<Integer> indices = new ArrayList<>();
+    for (int i = 0; i < count; i++)
+      indices.add(first + i);
+    return indices;
+  }
+}
@@ -0,0 +1,173 @@
+package com.unitedd.location.pipeline;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KalmanSmootherTest {
+  private static final int COUNT = 1200;
+  private static final double SPEED = 14;
+  private static final float ACCURACY = 15;
+  private static final int LEG_SECONDS = 60;
+  private static final int TURN_SECONDS = 6;
+  private static final double ORIGIN_LATITUDE = 48.8566;
+  private static final double ORIGIN_LONGITUDE = 2.3522;
+  private static final double METRES_PER_DEGREE = Math.toRadians(Geo.EARTH_RADIUS);
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  // True east and north position and heading of every second of the drive
+  private final double[] mX = new double[COUNT];
+  private final double[] mY = new double[COUNT];
+  private final double[] mHeading = new double[COUNT];
+  private File mTrace;
+
+  /**
+   * Records a drive of straight legs joined by 90 degree turns, with gaussian noise that matches the reported
+   * accuracy, as a CSV trace.
+   */
+  @Before
+  public void recordTrace() throws IOException {
+    Random random = new Random(42);
+    double x = 0, y = 0, heading = 0;
+    mTrace = mFolder.newFile("drive.csv");
+
+    Writer writer = new FileWriter(mTrace);
+    try {
+      for (int i = 0; i < COUNT; i++) {
+        if (isTurning(i))
+          heading += 90.0 / TURN_SECONDS;
+        x += SPEED * Math.sin(Math.toRadians(heading));
+        y += SPEED * Math.cos(Math.toRadians(heading));
+        mX[i] = x;
+        mY[i] = y;
+        mHeading[i] = heading;
+
+        // The accuracy is a 68% radius, which a per-axis deviation of about two thirds of it matches
+        double noisyX = x + random.nextGaussian() * ACCURACY * 0.66;
+        double noisyY = y + random.nextGaussian() * ACCURACY * 0.66;
+        writer.write(String.format(Locale.US, "%d,%.8f,%.8f,0,%.1f%n", 1500000000000L + i * 1000L,
+          latitudeOf(noisyY), longitudeOf(noisyX), ACCURACY));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void reducesErrorOfReplayedTrace() throws IOException {
+    Errors errors = replay();
+    assertEquals(COUNT, errors.count);
+    assertTrue("smoothed RMS error " + errors.smoothedRms() + " m, raw " + errors.rawRms() + " m",
+      errors.smoothedRms() < 0.75 * errors.rawRms());
+  }
+
+  @Test
+  public void addsNoLagAtTurns() throws IOException {
+    Errors errors = replay();
+    assertTrue(errors.turnCount > 0);
+    assertTrue("smoothed RMS error at turns " + errors.smoothedTurnRms() + " m, raw " + errors.rawTurnRms() + " m",
+      errors.smoothedTurnRms() <= errors.rawTurnRms());
+    // Lagging behind shows as a negative mean error along the direction of travel
+    assertTrue("smoothed fixes trail by " + -errors.meanTurnAlongTrack() + " m at turns",
+      errors.meanTurnAlongTrack() > -ACCURACY / 2);
+  }
+
+  private Errors replay() throws IOException {
+    final Errors errors = new Errors();
+    KalmanSmoother smoother = new KalmanSmoother(1);
+    smoother.then(new FixSink() {
+      @Override
+      public void onFix(Fix fix) {
+        int i = errors.count++;
+        assertTrue(fix.hasSmoothed);
+        double rawX = xOf(fix.longitude) - mX[i], rawY = yOf(fix.latitude) - mY[i];
+        double smoothedX = xOf(fix.smoothedLongitude) - mX[i], smoothedY = yOf(fix.smoothedLatitude) - mY[i];
+
+        double raw = rawX * rawX + rawY * rawY;
+        double smoothed = smoothedX * smoothedX + smoothedY * smoothedY;
+        errors.raw += raw;
+        errors.smoothed += smoothed;
+
+        // The first leg lets the filter settle, afterwards look at the fixes during and right after each turn
+        if (i > LEG_SECONDS && (isTurning(i) || isTurning(i - TURN_SECONDS))) {
+          errors.turnCount++;
+          errors.rawTurn += raw;
+          errors.smoothedTurn += smoothed;
+          double heading = Math.toRadians(mHeading[i]);
+          errors.turnAlongTrack += smoothedX * Math.sin(heading) + smoothedY * Math.cos(heading);
+        }
+      }
+    });
+
+    TraceReader reader = new TraceReader(new FileReader(mTrace), TraceReader.formatOf(mTrace.getName()));
+    try {
+      Fix fix = new Fix();
+      while (reader.next(fix))
+        smoother.onFix(fix);
+    } finally {
+      reader.close();
+    }
+    return errors;
+  }
+
+  private static boolean isTurning(int second) {
+    return second % LEG_SECONDS >= LEG_SECONDS - TURN_SECONDS;
+  }
+
+  private static double latitudeOf(double y) {
+    return ORIGIN_LATITUDE + y / METRES_PER_DEGREE;
+  }
+
+  private static double longitudeOf(double x) {
+    return ORIGIN_LONGITUDE + x / (METRES_PER_DEGREE * Math.cos(Math.toRadians(ORIGIN_LATITUDE)));
+  }
+
+  private static double yOf(double latitude) {
+    return (latitude - ORIGIN_LATITUDE) * METRES_PER_DEGREE;
+  }
+
+  private static double xOf(double longitude) {
+    return (longitude - ORIGIN_LONGITUDE) * METRES_PER_DEGREE * Math.cos(Math.toRadians(ORIGIN_LATITUDE));
+  }
+
+  private static class Errors {
+    int count;
+    double raw, smoothed;
+    int turnCount;
+    double rawTurn, smoothedTurn, turnAlongTrack;
+
+    double rawRms() {
+      return Math.sqrt(raw / count);
+    }
+
+    double smoothedRms() {
+      return Math.sqrt(smoothed / count);
+    }
+
+    double rawTurnRms() {
+      return Math.sqrt(rawTurn / turnCount);
+    }
+
+    double smoothedTurnRms() {
+      return Math.sqrt(smoothedTurn / turnCount);
+    }
+
+    double meanTurnAlongTrack() {
+      return turnAlongTrack / turnCount;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.unitedd.location.pipeline;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KinematicFilterTest {
+  private static final int COUNT = 600;
+  private static final double SPEED = 14;
+  private static final float ACCURACY = 10;
+  private static final long START = 1500000000000L;
+  private static final double METRES_PER_DEGREE = Math.toRadians(Geo.EARTH_RADIUS);
+
+  /** A teleport of a few kilometres */
+  private static final int TELEPORT = 100;
+  /** A multipath jump of 150 metres, with a plausible accuracy */
+  private static final int MULTIPATH = 200;
+  /** An accuracy spike at the right position */
+  private static final int ACCURACY_SPIKE = 300;
+  /** Two jumps in a row to the same wrong position */
+  private static final int DOUBLE_JUMP = 400;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private final PipelineStats mStats = new PipelineStats();
+  private File mTrace;
+
+  /**
+   * Records a drive north with gaussian noise that matches the reported accuracy, with the outliers injected.
+   */
+  @Before
+  public void recordTrace() throws IOException {
+    Random random = new Random(7);
+    double longitudeScale = METRES_PER_DEGREE * Math.cos(Math.toRadians(48.8566));
+    mTrace = mFolder.newFile("jumps.csv");
+
+    Writer writer = new FileWriter(mTrace);
+    try {
+      for (int i = 0; i < COUNT; i++) {
+        double north = i * SPEED + random.nextGaussian() * ACCURACY / 1.5;
+        double east = random.nextGaussian() * ACCURACY / 1.5;
+        float accuracy = ACCURACY;
+
+        if (i == TELEPORT) {
+          east += 4000;
+        } else if (i == MULTIPATH) {
+          east += 150;
+          accuracy = 12;
+        } else if (i == ACCURACY_SPIKE) {
+          accuracy = 400;
+        } else if (i == DOUBLE_JUMP || i == DOUBLE_JUMP + 1) {
+          east -= 300;
+        }
+
+        writer.write(String.format(Locale.US, "%d,%.8f,%.8f,35,%.1f,%.1f,0%n", START + i * 1000L,
+          48.8566 + north / METRES_PER_DEGREE, 2.3522 + east / longitudeScale, accuracy, SPEED));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void rejectsInjectedJumpsOnly() throws IOException {
+    List<Integer> rejected = replay(new KinematicFilter(
+      KinematicFilter.DRIVING_MAX_SPEED, KinematicFilter.DRIVING_MAX_ACCELERATION, 0, mStats));
+
+    assertEquals(Arrays.asList(TELEPORT, MULTIPATH, ACCURACY_SPIKE, DOUBLE_JUMP, DOUBLE_JUMP + 1), rejected);
+    assertEquals(4, mStats.speedOutliers.get() + mStats.accelerationOutliers.get());
+    assertEquals(1, mStats.accuracyOutliers.get());
+  }
+
+  @Test
+  public void dropsFixesAboveMaxAccuracy() throws IOException {
+    List<Integer> rejected = replay(new KinematicFilter(
+      KinematicFilter.DRIVING_MAX_SPEED, KinematicFilter.DRIVING_MAX_ACCELERATION, 100, mStats));
+
+    assertEquals(Arrays.asList(TELEPORT, MULTIPATH, ACCURACY_SPIKE, DOUBLE_JUMP, DOUBLE_JUMP + 1), rejected);
+    assertEquals(1, mStats.accuracyOutliers.get());
+  }
+
+  /**
+   * @return the indices of the fixes of the trace that the filter dropped
+   */
+  private List<Integer> replay(KinematicFilter filter) throws IOException {
+    final List<Integer> passed = new ArrayList<>();
+    filter.then(new FixSink() {
+      @Override
+      public void onFix(Fix fix) {
+        passed.add((int) ((fix.time - START) / 1000));
+      }
+    });
+
+    TraceReader reader = new TraceReader(new FileReader(mTrace), TraceReader.Format.CSV);
+    try {
+      Fix fix = new Fix();
+      while (reader.next(fix))
+        filter.onFix(fix);
+    } finally {
+      reader.close();
+    }
+
+    List<Integer> rejected = new ArrayList<>();
+    for (int i = 0, next = 0; i < COUNT; i++) {
+      if (next < passed.size() && passed.get(next) == i)
+        next++;
+      else
+        rejected.add(i);
+    }
+    assertEquals(COUNT, passed.size() + rejected.size());
+    return rejected;
+  }
+}
@@ -0,0 +1,91 @@
+package com.unitedd.location.pipeline;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SamplingSchedulerTest {
+  private static final long STATIONARY_INTERVAL = 60000;
+  /** The interval of a subscription that does not set one */
+  private static final long DEFAULT_INTERVAL = 5000;
+  private static final double METRES_PER_DEGREE = Math.toRadians(Geo.EARTH_RADIUS);
+
+  private final List<SamplingScheduler.Tier> mTiers = new ArrayList<>();
+  private SamplingScheduler mScheduler;
+  private long mTime = 0;
+  private double mLatitude = 48.8566;
+
+  @Before
+  public void setUp() {
+    mScheduler = new SamplingScheduler(new SamplingScheduler.Listener() {
+      @Override
+      public void onTierChanged(SamplingScheduler.Tier tier, SamplingScheduler.Tier previous, double speed) {
+        mTiers.add(tier);
+      }
+    });
+    mScheduler.then(new FixSink() {
+      @Override
+      public void onFix(Fix fix) {}
+    });
+  }
+
+  @Test
+  public void leavesStationaryWithoutReportedSpeed() {
+    for (int i = 0; i < 3; i++)
+      feed(STATIONARY_INTERVAL, 0);
+    assertEquals(SamplingScheduler.Tier.STATIONARY, mScheduler.getTier());
+
+    // Driving at 15 m/s, sampled at the stationary interval plus some jitter
+    for (int i = 0; i < 3; i++)
+      feed(STATIONARY_INTERVAL + 800, 15);
+    assertEquals(SamplingScheduler.Tier.DRIVING, mScheduler.getTier());
+    assertEquals(2, mTiers.size());
+  }
+
+  @Test
+  public void leavesStationaryForWalking() {
+    for (int i = 0; i < 3; i++)
+      feed(STATIONARY_INTERVAL, 0);
+
+    for (int i = 0; i < 3; i++)
+      feed(STATIONARY_INTERVAL, 1.5);
+    assertEquals(SamplingScheduler.Tier.WALKING, mScheduler.getTier());
+  }
+
+  @Test
+  public void stationaryLowersDefaultInterval() {
+    for (int i = 0; i < 3; i++)
+      feed(5000, 0);
+    assertEquals(SamplingScheduler.Tier.STATIONARY, mScheduler.getTier());
+
+    // Without an explicit interval, the default interval of a subscription is no floor
+    long requested = SamplingScheduler.getRequestedInterval(mScheduler.getTier(), SamplingScheduler.NO_FLOOR);
+    assertEquals(STATIONARY_INTERVAL, requested);
+    assertTrue(requested > DEFAULT_INTERVAL);
+
+    // An explicit interval still is
+    assertEquals(DEFAULT_INTERVAL, SamplingScheduler.getRequestedInterval(mScheduler.getTier(), DEFAULT_INTERVAL));
+    assertEquals(2000, SamplingScheduler.getRequestedInterval(SamplingScheduler.Tier.DRIVING, DEFAULT_INTERVAL));
+  }
+
+  /**
+   * Feeds a fix without a reported speed, after moving north at the given speed for the given time.
+   */
+  private void feed(long interval, double speed) {
+    mTime += interval;
+    mLatitude += speed * interval / 1000.0 / METRES_PER_DEGREE;
+
+    Fix fix = new Fix();
+    fix.latitude = mLatitude;
+    fix.longitude = 2.3522;
+    fix.accuracy = 20;
+    fix.time = 1500000000000L + mTime;
+    fix.elapsedRealtimeNanos = mTime * 1000000L;
+    mScheduler.onFix(fix);
+  }
+}
@@ -0,0 +1,50 @@
+package com.unitedd.location.pipeline;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TraceReaderTest {
+  /** 2017-07-14T02:40:00Z */
+  private static final long TIME = 1500000000000L;
+
+  @Test
+  public void appliesGpxUtcOffsets() throws IOException {
+    String[] times = {
+      "2017-07-14T02:40:00",
+      "2017-07-14T02:40:00Z",
+      "2017-07-14T04:40:00+02:00",
+      "2017-07-14T04:40:00+0200",
+      "2017-07-14T04:40:00+02",
+      "2017-07-13T21:10:00.000-05:30",
+    };
+    StringBuilder gpx = new StringBuilder("<gpx><trk><trkseg>");
+    for (String time : times)
+      gpx.append("<trkpt lat=\"48.1\" lon=\"11.5\"><time>").append(time).append("</time></trkpt>");
+    gpx.append("</trkseg></trk></gpx>");
+
+    TraceReader reader = new TraceReader(new StringReader(gpx.toString()), TraceReader.Format.GPX);
+    Fix fix = new Fix();
+    for (String time : times) {
+      reader.next(fix);
+      assertEquals(time, TIME, fix.time);
+    }
+    assertFalse(reader.next(fix));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsInvalidUtcOffset() throws IOException {
+    String gpx = "<gpx><wpt lat=\"48.1\" lon=\"11.5\"><time>2017-07-14T02:40:00 CEST</time></wpt></gpx>";
+    new TraceReader(new StringReader(gpx), TraceReader.Format.GPX).next(new Fix());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsMalformedCsvLine() throws IOException {
+    String csv = "time,latitude,longitude\n1500000000000,48.1,11.5x\n";
+    new TraceReader(new StringReader(csv), TraceReader.Format.CSV).next(new Fix());
+  }
+}
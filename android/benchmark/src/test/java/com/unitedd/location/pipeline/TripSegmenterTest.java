@@ -0,0 +1,104 @@
+package com.unitedd.location.pipeline;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TripSegmenterTest {
+  private static final double STOP_RADIUS = 50;
+  private static final long STOP_DURATION = 300000;
+  private static final double METRES_PER_DEGREE = Math.toRadians(Geo.EARTH_RADIUS);
+
+  private final List<String> mEvents = new ArrayList<>();
+  private final List<Double> mTripDistances = new ArrayList<>();
+  private final List<Long> mStopDurations = new ArrayList<>();
+  private final List<Long> mTripStartTimes = new ArrayList<>();
+  private final List<Long> mStopStartTimes = new ArrayList<>();
+  private double mTripEndDistance;
+  private TripSegmenter mSegmenter;
+  private long mTime = 0;
+  private double mNorth = 0;
+
+  @Before
+  public void setUp() {
+    mSegmenter = new TripSegmenter(new TripSegmenter.Listener() {
+      @Override
+      public void onTripStart(double latitude, double longitude, long time, long stopDuration) {
+        mEvents.add("tripStart");
+        mStopDurations.add(stopDuration);
+        mTripStartTimes.add(time);
+      }
+
+      @Override
+      public void onStopStart(double latitude, double longitude, long time, TripSegmenter.Summary trip) {
+        mEvents.add("stopStart");
+        mTripDistances.add(trip == null ? -1 : trip.distance);
+        mStopStartTimes.add(time);
+      }
+
+      @Override
+      public void onTripEnd(TripSegmenter.Summary trip) {
+        mEvents.add("tripEnd");
+        mTripEndDistance = trip.distance;
+      }
+    }, STOP_RADIUS, STOP_DURATION);
+  }
+
+  @Test
+  public void summarizesPrecedingTripAndStop() {
+    stay(600);
+    drive(200, 10);
+    stay(600);
+    drive(10, 10);
+
+    assertEquals("[stopStart, tripStart, tripEnd, stopStart, tripStart]", mEvents.toString());
+
+    // The first stop did not follow a trip, the second one followed a trip of 2 km, less the stop radii at its ends
+    assertEquals(-1, mTripDistances.get(0), 0);
+    assertEquals(mTripEndDistance, mTripDistances.get(1), 0);
+    assertEquals(2000, mTripDistances.get(1), 2 * (STOP_RADIUS + 5));
+
+    // Both stops lasted about ten minutes, up to the last fix before leaving the stop radius
+    for (int i = 0; i < 2; i++) {
+      assertEquals(mTripStartTimes.get(i) - mStopStartTimes.get(i), (long) mStopDurations.get(i));
+      assertEquals(600000, mStopDurations.get(i), 10000);
+    }
+  }
+
+  @Test
+  public void startsFirstTripWithoutStop() {
+    drive(10, 10);
+    assertEquals("[tripStart]", mEvents.toString());
+    assertEquals(-1, (long) mStopDurations.get(0));
+  }
+
+  private void stay(int seconds) {
+    for (int i = 0; i < seconds; i++)
+      feed(0);
+  }
+
+  private void drive(int seconds, double speed) {
+    for (int i = 0; i < seconds; i++)
+      feed(speed);
+  }
+
+  /**
+   * Feeds a fix one second after the previous one, after moving north at the given speed.
+   */
+  private void feed(double speed) {
+    mNorth += speed;
+    Fix fix = new Fix();
+    fix.latitude = 48.8566 + mNorth / METRES_PER_DEGREE;
+    fix.longitude = 2.3522;
+    fix.accuracy = 5;
+    fix.speed = (float) speed;
+    fix.time = 1500000000000L + mTime;
+    fix.elapsedRealtimeNanos = mTime * 1000000L;
+    mTime += 1000;
+    mSegmenter.onFix(fix);
+  }
+}
@@ -0,0 +1,135 @@
+package com.unitedd.location.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the store's statements against SQLite through JDBC.
+ */
+public class TrackSchemaTest {
+  private static final int COUNT = 1000;
+  private static final long START = 1500000000000L;
+
+  private Connection mConnection;
+
+  @Before
+  public void setUp() throws SQLException {
+    mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    Statement statement = mConnection.createStatement();
+    for (String create : TrackSchema.CREATE)
+      statement.execute(create);
+    statement.close();
+
+    // Two fixes per second, so that pages end in the middle of a second
+    PreparedStatement insert = mConnection.prepareStatement(TrackSchema.INSERT);
+    for (int i = 0; i < COUNT; i++) {
+      double latitude = 48.8 + i * 0.0001, longitude = 2.3;
+      insert.setLong(1, START + i / 2 * 1000);
+      insert.setLong(2, i / 2 * 1000000000L);
+      insert.setDouble(3, latitude);
+      insert.setDouble(4, longitude);
+      insert.setDouble(5, 35);
+      insert.setDouble(6, 10);
+      insert.setDouble(7, 1);
+      insert.setDouble(8, 0);
+      insert.setInt(9, i % 5);
+      insert.setInt(10, i % 16);
+      insert.setLong(11, TrackSchema.cellOf(latitude, longitude));
+      insert.execute();
+    }
+    insert.close();
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    mConnection.close();
+  }
+
+  @Test
+  public void pagesThroughEveryFixOnce() throws SQLException {
+    List<Long> ids = new ArrayList<>();
+    String cursor = null;
+    do {
+      cursor = page(START + 100000, START + 400000, null, 33, cursor, ids);
+    } while (cursor != null);
+
+    // Seconds 100 to 400 inclusive
+    assertEquals(602, ids.size());
+    for (int i = 0; i < ids.size(); i++)
+      assertEquals(201 + i, (long) ids.get(i));
+  }
+
+  @Test
+  public void filtersByBoundingBox() throws SQLException {
+    List<Long> ids = new ArrayList<>();
+    double[] bbox = {48.81995, 2.29, 48.82995, 2.31};
+    String cursor = null;
+    do {
+      cursor = page(START, START + COUNT * 1000, bbox, 25, cursor, ids);
+    } while (cursor != null);
+
+    assertEquals(100, ids.size());
+    for (long id : ids)
+      assertTrue(id > 200 && id <= 300);
+  }
+
+  @Test
+  public void storesProviderAndMotionFlags() throws SQLException {
+    List<String> args = new ArrayList<>();
+    PreparedStatement select = prepare(TrackSchema.select(START, START + 4000, null, 100, null, args), args);
+    ResultSet rows = select.executeQuery();
+    for (int i = 0; rows.next(); i++) {
+      assertEquals(i % 5, rows.getInt(10));
+      assertEquals(i % 16, rows.getInt(11));
+    }
+    select.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsLimitBelowOne() {
+    TrackSchema.select(START, START + 4000, null, 0, null, new ArrayList<String>());
+  }
+
+  /**
+   * Reads a page the way {@link TrackStore#query} does.
+   */
+  private String page(long from, long to, double[] bbox, int limit, String cursor, List<Long> ids)
+    throws SQLException {
+    List<String> args = new ArrayList<>();
+    PreparedStatement select = prepare(TrackSchema.select(from, to, bbox, limit, cursor, args), args);
+    try {
+      ResultSet rows = select.executeQuery();
+      int count = 0;
+      long lastId = 0, lastTime = 0;
+      while (rows.next()) {
+        lastId = rows.getLong(1);
+        lastTime = rows.getLong(2);
+        ids.add(lastId);
+        count++;
+      }
+      return count < limit ? null : lastTime + ":" + lastId;
+    } finally {
+      select.close();
+    }
+  }
+
+  private PreparedStatement prepare(String sql, List<String> args) throws SQLException {
+    PreparedStatement select = mConnection.prepareStatement(sql);
+    for (int i = 0; i < args.size(); i++)
+      select.setString(i + 1, args.get(i));
+    return select;
+  }
+}
@@ -0,0 +1,388 @@
+package com.unitedd.location.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.unitedd.location.journal.LocationJournal;
+import com.unitedd.location.pipeline.Fix;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads batches to an HTTP server on the loopback interface, whose responses each test scripts.
+ */
+public class BatchUploaderTest {
+  private static final long TIMEOUT = 10000;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private LocationJournal mJournal;
+  private HttpServer mServer;
+  private ExecutorService mServerExecutor;
+  private volatile Handler mHandler;
+  private final BlockingQueue<Request> mRequests = new LinkedBlockingQueue<>();
+  private final BlockingQueue<String> mResults = new LinkedBlockingQueue<>();
+  private final AtomicInteger mUploaded = new AtomicInteger();
+  private BatchUploader mUploader;
+
+  private interface Handler {
+    /**
+     * @return the status to respond to the request with
+     */
+    int handle(Request request) throws Exception;
+  }
+
+  private static class Request {
+    String encoding;
+    String body;
+    long receivedNanos;
+    // Number of batches reported as uploaded right before the response was sent
+    volatile int uploaded;
+  }
+
+  @Before
+  public void startServer() throws IOException {
+    mJournal = new LocationJournal(mFolder.getRoot(), 64, 4);
+    mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    mServerExecutor = Executors.newCachedThreadPool();
+    mServer.setExecutor(mServerExecutor);
+    mServer.createContext("/locations", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        Request request = new Request();
+        request.receivedNanos = System.nanoTime();
+        request.encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        InputStream in = exchange.getRequestBody();
+        request.body = new String(readAll("gzip".equals(request.encoding) ? new GZIPInputStream(in) : in), "UTF-8");
+        mRequests.add(request);
+
+        int status;
+        try {
+          status = mHandler.handle(request);
+        } catch (Exception e) {
+          status = 599;
+        }
+        request.uploaded = mUploaded.get();
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    mServer.start();
+  }
+
+  @After
+  public void stopServer() {
+    if (mUploader != null)
+      mUploader.shutdown();
+    mServer.stop(0);
+    mServerExecutor.shutdownNow();
+    mJournal.close();
+  }
+
+  @Test
+  public void postsGzippedBatches() throws Exception {
+    mHandler = respond(200);
+    BatchUploader.Config config = config();
+    config.batchSize = 3;
+    config.headers.put("Authorization", "Bearer token");
+    mUploader = new BatchUploader(config, mJournal, new Results());
+
+    for (int i = 0; i < 3; i++) {
+      Fix fix = fix(i);
+      fix.isSpeedDerived = i == 1;
+      mUploader.onFix(fix);
+    }
+
+    Request request = mRequests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+    assertNotNull(request);
+    assertEquals("gzip", request.encoding);
+    assertTrue(request.body, request.body.startsWith("{\"locations\":[") && request.body.endsWith("]}"));
+
+    Matcher timestamps = Pattern.compile("\"timestamp\":(\\d+)").matcher(request.body);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(request.body, timestamps.find());
+      assertEquals(fix(i).time, Long.parseLong(timestamps.group(1)));
+    }
+    assertTrue(request.body.contains("\"latitude\":48.8566,"));
+    assertEquals(request.body.indexOf("\"speedDerived\":true"), request.body.lastIndexOf("\"speedDerived\":true"));
+    assertTrue(request.body.contains("\"timestamp\":1500000001000,\"speedDerived\":true}"));
+    assertEquals("uploaded 3 1", nextResult());
+  }
+
+  @Test
+  public void retriesServerErrorsWithBackoff() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    mHandler = new Handler() {
+      @Override
+      public int handle(Request request) {
+        return attempts.incrementAndGet() <= 2 ? 503 : 200;
+      }
+    };
+    BatchUploader.Config config = config();
+    config.initialBackoff = 200;
+    mUploader = new BatchUploader(config, mJournal, new Results());
+
+    mUploader.onFix(fix(0));
+    mUploader.flush();
+    assertEquals("uploaded 1 3", nextResult());
+
+    List<Request> requests = new ArrayList<>();
+    mRequests.drainTo(requests);
+    assertEquals(3, requests.size());
+    // The jittered backoff is at least half of 200 ms, then of 400 ms
+    assertTrue(nanosToMillis(requests.get(1).receivedNanos - requests.get(0).receivedNanos) >= 100);
+    assertTrue(nanosToMillis(requests.get(2).receivedNanos - requests.get(1).receivedNanos) >= 200);
+    for (Request request : requests)
+      assertEquals(requests.get(0).body, request.body);
+  }
+
+  @Test
+  public void limitsConcurrentUploads() throws Exception {
+    final AtomicInteger active = new AtomicInteger();
+    final List<Integer> concurrency = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch release = new CountDownLatch(1);
+    mHandler = new Handler() {
+      @Override
+      public int handle(Request request) throws InterruptedException {
+        concurrency.add(active.incrementAndGet());
+        try {
+          release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+          active.decrementAndGet();
+        }
+        return 200;
+      }
+    };
+    BatchUploader.Config config = config();
+    config.batchSize = 1;
+    config.maxConcurrency = 2;
+    mUploader = new BatchUploader(config, mJournal, new Results());
+
+    for (int i = 0; i < 6; i++)
+      mUploader.onFix(fix(i));
+
+    // Two uploads are held by the server, the others have to wait for them
+    assertNotNull(mRequests.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+    assertNotNull(mRequests.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+    assertNull(mRequests.poll(500, TimeUnit.MILLISECONDS));
+    release.countDown();
+
+    // A kept-alive connection the server has closed in the meantime costs a retry, which is fine here
+    for (int i = 0; i < 6; i++)
+      assertTrue(nextResult().startsWith("uploaded 1 "));
+    assertTrue(concurrency.size() >= 6);
+    for (int count : concurrency)
+      assertTrue("concurrent uploads: " + concurrency, count <= 2);
+  }
+
+  @Test
+  public void acknowledgesOnlySuccessfulUploads() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    mHandler = new Handler() {
+      @Override
+      public int handle(Request request) throws InterruptedException {
+        // Answer slowly, so that an acknowledgement sent before the response would show
+        Thread.sleep(100);
+        return attempts.incrementAndGet() == 1 ? 500 : 204;
+      }
+    };
+    mUploader = new BatchUploader(config(), mJournal, new Results());
+
+    mUploader.onFix(fix(0));
+    mUploader.flush();
+    assertEquals("uploaded 1 2", nextResult());
+    assertEquals(0, mRequests.take().uploaded);
+    assertEquals(0, mRequests.take().uploaded);
+    assertNull(mResults.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(0, reopenJournal());
+  }
+
+  @Test
+  public void uploadsFixesLeftInJournalAfterRestart() throws Exception {
+    mHandler = respond(503);
+    BatchUploader.Config config = config();
+    config.batchSize = 2;
+    config.maxRetries = 0;
+    mUploader = new BatchUploader(config, mJournal, new Results());
+
+    for (int i = 0; i < 3; i++)
+      mUploader.onFix(fix(i));
+    mUploader.flush();
+    assertEquals(Arrays.asList("failed 1 HTTP 503", "failed 2 HTTP 503"), nextResults(2));
+    mUploader.shutdown();
+    assertEquals(3, reopenJournal());
+
+    mRequests.clear();
+    mHandler = respond(200);
+    mUploader = new BatchUploader(config, mJournal, new Results());
+    assertEquals(Arrays.asList("uploaded 1 1", "uploaded 2 1"), nextResults(2));
+
+    StringBuilder bodies = new StringBuilder();
+    for (Request request : mRequests)
+      bodies.append(request.body);
+    for (int i = 0; i < 3; i++)
+      assertTrue(bodies.toString(), bodies.indexOf("\"timestamp\":" + fix(i).time) >= 0);
+    assertEquals(0, reopenJournal());
+  }
+
+  @Test
+  public void leavesOutValuesJsonCannotRepresent() throws Exception {
+    mHandler = respond(200);
+    mUploader = new BatchUploader(config(), mJournal, new Results());
+
+    Fix fix = fix(0);
+    fix.accuracy = Float.NaN;
+    fix.speed = Float.POSITIVE_INFINITY;
+    fix.bearing = Float.NEGATIVE_INFINITY;
+    mUploader.onFix(fix);
+    mUploader.flush();
+
+    String body = mRequests.poll(TIMEOUT, TimeUnit.MILLISECONDS).body;
+    assertFalse(body, body.contains("NaN") || body.contains("Infinity"));
+    assertFalse(body, body.contains("accuracy") || body.contains("speed") || body.contains("heading"));
+    assertTrue(body, body.contains("\"altitude\":0.0,\"timestamp\":"));
+  }
+
+  @Test
+  public void givesUpOnServerErrors() throws Exception {
+    mHandler = respond(500);
+    BatchUploader.Config config = config();
+    config.maxRetries = 2;
+    mUploader = new BatchUploader(config, mJournal, new Results());
+
+    mUploader.onFix(fix(0));
+    mUploader.flush();
+    assertEquals("failed 1 HTTP 500", nextResult());
+    assertEquals(3, mRequests.size());
+    assertEquals(0, mUploaded.get());
+    assertEquals(1, reopenJournal());
+  }
+
+  @Test
+  public void doesNotRetryClientErrors() throws Exception {
+    mHandler = respond(400);
+    mUploader = new BatchUploader(config(), mJournal, new Results());
+
+    mUploader.onFix(fix(0));
+    mUploader.flush();
+    assertEquals("failed 1 HTTP 400", nextResult());
+    assertNull(mResults.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, mRequests.size());
+    assertEquals(0, reopenJournal());
+  }
+
+  private BatchUploader.Config config() {
+    BatchUploader.Config config = new BatchUploader.Config();
+    config.url = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/locations";
+    config.maxBatchLatency = 0;
+    config.initialBackoff = 10;
+    config.timeout = (int) TIMEOUT;
+    return config;
+  }
+
+  private String nextResult() throws InterruptedException {
+    String result = mResults.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+    assertNotNull("no batch was uploaded or given up on", result);
+    return result;
+  }
+
+  /**
+   * Writes out the journal and opens it again, as after a restart of the process.
+   *
+   * @return the number of fixes pending in the journal
+   */
+  private int reopenJournal() throws IOException {
+    mJournal.close();
+    mJournal = new LocationJournal(mFolder.getRoot(), 64, 4);
+    return mJournal.readPending(Integer.MAX_VALUE, new LocationJournal.RecordSink() {
+      @Override
+      public void onRecord(long sequence, Fix fix) {}
+    });
+  }
+
+  /**
+   * @return the next results, sorted as concurrent uploads finish in any order
+   */
+  private List<String> nextResults(int count) throws InterruptedException {
+    List<String> results = new ArrayList<>();
+    for (int i = 0; i < count; i++)
+      results.add(nextResult());
+    Collections.sort(results);
+    return results;
+  }
+
+  private static Handler respond(final int status) {
+    return new Handler() {
+      @Override
+      public int handle(Request request) {
+        return status;
+      }
+    };
+  }
+
+  private static Fix fix(int i) {
+    Fix fix = new Fix();
+    fix.latitude = 48.8566;
+    fix.longitude = 2.3522 + i * 0.001;
+    fix.accuracy = 10;
+    fix.time = 1500000000000L + i * 1000L;
+    fix.elapsedRealtimeNanos = i * 1000000000L;
+    return fix;
+  }
+
+  private static long nanosToMillis(long nanos) {
+    return nanos / 1000000;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) >= 0)
+      out.write(buffer, 0, read);
+    return out.toByteArray();
+  }
+
+  private class Results implements BatchUploader.Listener {
+    @Override
+    public void onBatchUploaded(int count, int bytes, long latency, int attempts) {
+      mUploaded.incrementAndGet();
+      mResults.add("uploaded " + count + " " + attempts);
+    }
+
+    @Override
+    public void onBatchFailed(int count, String message) {
+      mResults.add("failed " + count + " " + message);
+    }
+  }
+}
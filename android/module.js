@@ -6,33 +6,207 @@ import NativeEventEmitter from 'NativeEventEmitter'
 import { BackgroundLocation } from 'NativeModules'
 const BackgroundLocationEventEmitter = new NativeEventEmitter(BackgroundLocation)
 
-var updatesEnabled = false;
+var subscriptions = {};
+
+// Column order of the compact encoding, optional columns follow in the order of their field bits
+const COMPACT_COLUMNS = ['latitude', 'longitude', 'altitude', 'accuracy', 'speed', 'heading', 'timestamp'];
+const COMPACT_FIELDS = [
+  [1, ['elapsedRealtime']],
+  [2, ['provider']],
+  [4, ['smoothedLatitude', 'smoothedLongitude']],
+  [8, ['motion']],
+];
+// Bits of the motion column
+const MOTION_SPEED_DERIVED = 4;
+const MOTION_HEADING_DERIVED = 8;
+const PROVIDERS = ['unknown', 'fused', 'gps', 'network', 'passive'];
+
+type CompactBatch = {
+  fields: number,
+  count: number,
+  values: Array<number>,
+}
+
+function decodeLocations(batch: Array<Object> | CompactBatch): Array<Object> {
+  if (Array.isArray(batch)) return batch
+
+  var columns = COMPACT_COLUMNS.slice();
+  COMPACT_FIELDS.forEach(function(field) {
+    if (batch.fields & field[0]) columns = columns.concat(field[1])
+  });
+
+  var count = batch.count;
+  var values = batch.values;
+  var locations = new Array(count);
+  for (var i = 0; i < count; i++) {
+    var location = {};
+    for (var c = 0; c < columns.length; c++)
+      location[columns[c]] = values[c * count + i];
+    if (location.provider !== undefined)
+      location.provider = PROVIDERS[location.provider];
+    if (location.motion !== undefined) {
+      if (location.motion & MOTION_SPEED_DERIVED) location.speedDerived = true;
+      if (location.motion & MOTION_HEADING_DERIVED) location.headingDerived = true;
+      delete location.motion;
+    }
+    locations[i] = location;
+  }
+  return locations
+}
+
+type UploadOptions = {
+  url: string,
+  headers: { [key: string]: string },
+  batchSize: number,
+  maxBatchLatencyMs: number,
+  maxConcurrency: number,
+  maxRetries: number,
+}
+
+type Geofence = {
+  id: string,
+  latitude?: number,
+  longitude?: number,
+  radius?: number,
+  polygon?: Array<{ latitude: number, longitude: number }>,
+  dwellTime?: number,
+}
+
+type OutlierFilterOptions = {
+  profile?: 'walking' | 'driving',
+  maxSpeed?: number,
+  maxAcceleration?: number,
+  maxAccuracy?: number,
+}
+
+type BoundingBox = {
+  minLatitude: number,
+  minLongitude: number,
+  maxLatitude: number,
+  maxLongitude: number,
+}
+
+type TrackPage = {
+  locations: Array<Object>,
+  cursor: ?string,
+}
 
 type GeoOptions = {
+  id: string,
   timeout: number,
   maximumAge: number,
+  maxAccuracy: number,
   accuracy: number,
   distanceFilter: number,
+  minUpdateInterval: number,
+  batchSize: number,
+  maxBatchLatencyMs: number,
+  maxWaitTime: number,
+  journal: boolean,
+  historySize: number,
+  smoothing: boolean,
+  smoothingAcceleration: number,
+  simplifyTolerance: number,
+  upload: UploadOptions,
+  adaptive: boolean,
+  processInBackground: boolean,
+  replay: { path: string, speed?: number },
+  encoding: 'map' | 'compact',
+  compactFields: Array<'elapsedRealtime' | 'provider' | 'smoothed' | 'motion'>,
+  notification: { title?: string, text?: string },
+  store: boolean,
+  outlierFilter: OutlierFilterOptions,
+  deriveMotion: boolean,
+  reorderWindow: number,
+  segmentTrips: boolean,
+  stopRadius: number,
+  stopDuration: number,
 }
 
 var Geolocation = {
+  getCurrentPosition: function(success: Function, error?: Function, options?: GeoOptions): void {
+   BackgroundLocation.getCurrentPosition(options || {}).then(success, error);
+  },
+
   watchPosition: function(success: Function, error?: Function, options?: GeoOptions): void {
-   if (updatesEnabled) return
+   var id = options && options.id || 'default'
+   if (subscriptions[id]) return
 
-   BackgroundLocation.startObserving(options || {});
+   BackgroundLocation.startObserving(options || {}).catch(function(e) {
+     // e.g. session options that differ from the running session's
+     delete subscriptions[id];
+     if (error) error(e);
+   });
    //BackgroundLocationEventEmitter.addListener('backgroundLocationDidChange', success)
    //if (error) BackgroundLocationEventEmitter.addListener('backgroundLocationError', error)
-   updatesEnabled = true;
+   subscriptions[id] = true;
   },
 
-  stopObserving: function() {
-   if (!updatesEnabled) return
+  stopObserving: function(id?: string) {
+   if (id) {
+     if (!subscriptions[id]) return
+
+     BackgroundLocation.removeSubscription(id);
+     delete subscriptions[id];
+     return
+   }
 
    BackgroundLocation.stopObserving();
    //BackgroundLocationEventEmitter.removeListener('backgroundLocationDidChange')
    //BackgroundLocationEventEmitter.removeListener('backgroundLocationError')
-   updatesEnabled = false;
+   subscriptions = {};
+ },
+
+ updateOptions: function(options: GeoOptions): Promise<void> {
+   return BackgroundLocation.updateOptions(options);
+ },
+
+ getStats: function(): Promise<Object> {
+   return BackgroundLocation.getStats();
+ },
+
+ resetStats: function(): void {
+   BackgroundLocation.resetStats();
+ },
+
+ getAcquisitionStats: function(): Promise<?Object> {
+   return BackgroundLocation.getAcquisitionStats();
+ },
+
+ getRecentLocations: function(sinceMs: number, limit: number): Promise<Array<Object>> {
+   return BackgroundLocation.getRecentLocations(sinceMs, limit);
+ },
+
+ getPendingLocations: function(limit: number): Promise<Array<Object>> {
+   return BackgroundLocation.getPendingLocations(limit);
  },
+
+ acknowledge: function(upToTimestamp: number): Promise<void> {
+   return BackgroundLocation.acknowledge(upToTimestamp);
+ },
+
+ queryTrack: function(from: number, to: number, bbox: ?BoundingBox, limit: number, cursor?: ?string): Promise<TrackPage> {
+   return BackgroundLocation.queryTrack(from, to, bbox || null, limit, cursor || null);
+ },
+
+ pruneBefore: function(timestamp: number): Promise<number> {
+   return BackgroundLocation.pruneBefore(timestamp);
+ },
+
+ addGeofences: function(fences: Array<Geofence>): Promise<number> {
+   return BackgroundLocation.addGeofences(fences);
+ },
+
+ removeGeofences: function(ids: Array<string>): void {
+   BackgroundLocation.removeGeofences(ids);
+ },
+
+ clearGeofences: function(): void {
+   BackgroundLocation.clearGeofences();
+ },
+
+ decodeLocations: decodeLocations,
+
  AccuracyLevels: BackgroundLocation.AccuracyLevels
 };
 